@@ -1,6 +1,6 @@
 package factors.discrete;
 
-import com.google.common.collect.Iterables;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.google.common.primitives.Doubles;
 import factors.Factor;
@@ -8,7 +8,7 @@ import org.apache.commons.lang3.tuple.Pair;
 import primitives.Event;
 import util.ListOps;
 
-import java.util.Arrays;
+import java.nio.DoubleBuffer;
 import java.util.List;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -17,6 +17,18 @@ import java.util.stream.IntStream;
  * Implements a conditional probability distribution where one variable is
  * conditioned upon other variables or no variables.
  *
+ * A distribution keeps its table in double precision unless it is converted
+ * to single precision with toPrecision, which halves the memory and the
+ * bandwidth of reading it. Values are widened to double whenever they are
+ * read, and the table of a single precision distribution is replaced rather
+ * than written in place, so it can be shared with the FloatDiscreteFactors
+ * made from it.
+ *
+ * A distribution made with fromBuffer reads its table from a read-only
+ * buffer, such as a slice of a memory mapped network file, until it is first
+ * written, when the table is copied to the heap. Its DiscreteFactors read the
+ * same buffer, and each keeps the mapping reachable while it uses it.
+ *
  * @see DiscreteFactor
  *
  * @version 1.0.0
@@ -24,8 +36,16 @@ import java.util.stream.IntStream;
  * @author Sean McMillan
  */
 public class ConditionalProbabilityDistribution extends DiscreteFactor {
+  public enum Precision {
+    DOUBLE,  // Eight byte cells in the values array
+    FLOAT  // Four byte cells in a float table
+  }
+
   private String variable;
   private int vCard;
+  private Precision precision = Precision.DOUBLE;
+  private float[] floatTable;  // The table when the precision is FLOAT
+  private DoubleBuffer mappedTable;  // The table until written, see fromBuffer
 
   public ConditionalProbabilityDistribution() {
     this(null, 0, null, null, null);
@@ -48,6 +68,12 @@ public class ConditionalProbabilityDistribution extends DiscreteFactor {
    */
   public ConditionalProbabilityDistribution(String variable, int vCardinality,
       List<String> evidence, List<Integer> eCardinality, double[][] values) {
+    this(variable, vCardinality, evidence, eCardinality);
+    this.setValues(Doubles.concat(transpose(values)));
+  }
+
+  private ConditionalProbabilityDistribution(String variable, int vCardinality,
+      List<String> evidence, List<Integer> eCardinality) {
     super();
 
     List<String> variables = Lists.newArrayList();
@@ -66,7 +92,104 @@ public class ConditionalProbabilityDistribution extends DiscreteFactor {
     this.vCard = vCardinality;
     this.setVariables(variables);
     this.setCardinality(cardinality);
-    this.setValues(Doubles.concat(transpose(values)));
+  }
+
+  /**
+   * Create a distribution from its flat table, in which the evidence
+   * variables come first in the given order and the variable moves fastest.
+   * This is the layout returned by getTable, so no transposition is done.
+   *
+   * @param variable the variable
+   * @param vCardinality the cardinality of the variable
+   * @param evidence the variables upon which to condition
+   * @param eCardinality the cardinality of the conditioned variables
+   * @param table the flat table, used directly by the distribution so it must
+   *              not be changed afterwards
+   * @return the distribution
+   */
+  public static ConditionalProbabilityDistribution fromTable(String variable,
+      int vCardinality, List<String> evidence, List<Integer> eCardinality,
+      double[] table) {
+    ConditionalProbabilityDistribution cpd = new ConditionalProbabilityDistribution(
+        variable, vCardinality, evidence, eCardinality);
+    Preconditions.checkArgument(table.length == cpd.size(),
+        String.format("Incorrect size of table. Expecting array of size %d. " +
+            "Instead received array of size %d.", cpd.size(), table.length));
+    cpd.setTable(cpd.scope(), cpd.cardinality(), table);
+
+    return cpd;
+  }
+
+  /**
+   * Create a distribution reading its flat table, laid out as for fromTable,
+   * from a buffer rather than copying it to the heap. The table is copied
+   * only when the distribution is first written, so a distribution read from
+   * a memory mapped file keeps no heap table of its own until then.
+   *
+   * @param variable the variable
+   * @param vCardinality the cardinality of the variable
+   * @param evidence the variables upon which to condition
+   * @param eCardinality the cardinality of the conditioned variables
+   * @param table the buffer whose remaining values are the flat table, read
+   *              through a read-only view so they must not be changed
+   *              afterwards
+   * @return the distribution
+   */
+  public static ConditionalProbabilityDistribution fromBuffer(String variable,
+      int vCardinality, List<String> evidence, List<Integer> eCardinality,
+      DoubleBuffer table) {
+    ConditionalProbabilityDistribution cpd = new ConditionalProbabilityDistribution(
+        variable, vCardinality, evidence, eCardinality);
+    Preconditions.checkArgument(table.remaining() == cpd.size(),
+        String.format("Incorrect size of table. Expecting buffer of size %d. " +
+            "Instead received buffer of size %d.", cpd.size(), table.remaining()));
+    cpd.values = null;
+    cpd.mappedTable = table.slice().asReadOnlyBuffer();
+
+    return cpd;
+  }
+
+  private ConditionalProbabilityDistribution(ConditionalProbabilityDistribution other) {
+    super(other);
+    this.variable = other.variable;
+    this.vCard = other.vCard;
+    this.precision = other.precision;
+    this.floatTable = other.floatTable;
+    this.mappedTable = other.mappedTable;
+  }
+
+  /**
+   * @param precision the precision of the table
+   * @return this distribution if its table already has the precision,
+   * otherwise a copy of it with the table rounded or widened to precision
+   */
+  public ConditionalProbabilityDistribution toPrecision(Precision precision) {
+    if(precision == this.precision) {
+      return this;
+    }
+
+    double[] table = new double[this.size()];
+    this.copyRun(0, table, 0, table.length);
+
+    ConditionalProbabilityDistribution result = new ConditionalProbabilityDistribution(
+        this.variable, this.vCard, this.getEvidence(), this.getEvidenceCardinality());
+    result.precision = precision;
+    result.getReductions().addAll(this.getReductions());
+    result.setTable(this.scope().clone(), this.cardinality().clone(), table);
+
+    return result;
+  }
+
+  public Precision getPrecision() {
+    return this.precision;
+  }
+
+  /**
+   * @return true if the table is still read from the buffer given to
+   * fromBuffer, false once it has been copied to the heap
+   */
+  public boolean isMapped() {
+    return this.mappedTable != null;
   }
 
   public boolean equals(ConditionalProbabilityDistribution other) {
@@ -75,26 +198,30 @@ public class ConditionalProbabilityDistribution extends DiscreteFactor {
       isEqual = false;
     } else if(this.vCard != other.vCard) {
       isEqual = false;
-    } else if(!Iterables.elementsEqual(this.getScope(), other.getScope())) {
-      isEqual = false;
-    } else if(!Iterables.elementsEqual(this.getCardinality(), other.getCardinality())) {
-      isEqual = false;
     } else {
-      isEqual = Iterables.elementsEqual(Doubles.asList(this.values),
-          Doubles.asList(other.values));
+      isEqual = this.equals((DiscreteFactor) other);
     }
 
     return isEqual;
   }
 
   public Factor copy() {
-    return new ConditionalProbabilityDistribution(this.getVariable(),
-        this.getVariableCardinality(),
-        this.getEvidence(), this.getEvidenceCardinality(), this.getValues());
+    return new ConditionalProbabilityDistribution(this);
   }
 
+  /**
+   * @return a DiscreteFactor sharing the values of this distribution until
+   * either of them is changed, a FloatDiscreteFactor if its precision is
+   * FLOAT
+   */
   public DiscreteFactor toDiscreteFactor() {
-    return new DiscreteFactor(this.getScope(), this.getCardinality(), this.values);
+    if(this.precision == Precision.FLOAT) {
+      return FloatDiscreteFactor.fromFactor(this);
+    } else if(this.mappedTable != null) {
+      return new MappedDiscreteFactor(this, this.mappedTable);
+    }
+
+    return new DiscreteFactor(this);
   }
 
   public String getVariable() {
@@ -116,51 +243,156 @@ public class ConditionalProbabilityDistribution extends DiscreteFactor {
         .collect(Collectors.toList());
   }
 
+  /**
+   * @return a copy of the flat table, in which the evidence variables come
+   * first and the variable moves fastest
+   */
+  public double[] getTable() {
+    double[] table = new double[this.size()];
+    this.copyRun(0, table, 0, table.length);
+
+    return table;
+  }
+
   public double[][] getValues() {
-    int rowLength = this.values.length / this.vCard;
+    int rowLength = this.size() / this.vCard;
     double[][] result = new double[this.vCard][rowLength];
 
     for(int r = 0;r < this.vCard;++r) {
       for(int c = 0;c < rowLength;++c) {
-        result[r][c] = this.values[c * this.vCard + r];
+        result[r][c] = this.valueAt(c * this.vCard + r);
       }
     }
 
     return result;
   }
 
+  /**
+   * Normalize the distribution of the variable for every assignment of the
+   * evidence. The variable is the last in scope, so each distribution is a
+   * run of vCard consecutive cells of the table and is normalized in place.
+   */
   @Override
   public Factor normalize(boolean inPlace) {
     ConditionalProbabilityDistribution result = inPlace ? this :
         (ConditionalProbabilityDistribution) this.copy();
 
-    double[][] transposedTable = transpose(result.getValues());
-
-
-    for(int c = 0;c < transposedTable.length;++c) {
-      double sum = Arrays.stream(transposedTable[c]).sum();
-      transposedTable[c] = Arrays.stream(transposedTable[c])
-          .map(v -> v / sum)
-          .toArray();
+    if(result.precision == Precision.FLOAT) {
+      result.floatTable = normalizeRuns(result.floatTable, result.vCard);
+      result.valuesChanged();
+      return result;
     }
 
-    result.setValues(Doubles.concat(transposedTable));
+    double[] table = result.mutableValues();
+    int run = result.vCard;
+    for(int start = 0;start < table.length;start += run) {
+      double sum = 0.0;
+      for(int i = start;i < start + run;++i) {
+        sum += table[i];
+      }
+      for(int i = start;i < start + run;++i) {
+        table[i] /= sum;
+      }
+    }
 
     return result;
   }
 
   @Override public Factor reduce(List<Event> variables,
       boolean inPlace) {
-    Factor factor = super.reduce(variables, inPlace);
-    ((ConditionalProbabilityDistribution)factor).vCard =
-        ((ConditionalProbabilityDistribution) factor).getCardinality().get(
-            factor.getScope().indexOf(this.variable));
-    return factor.normalize(inPlace);
+    ConditionalProbabilityDistribution factor =
+        (ConditionalProbabilityDistribution) super.reduce(variables, inPlace);
+    factor.vCard = factor.cardinality()[factor.indexOf(this.variable)];
+
+    // factor is either this or a new distribution, so normalize it in place
+    return factor.normalize(true);
   }
 
   @Override public Factor marginalize(List<String> variables, boolean inPlace) {
     Factor factor = super.marginalize(variables, inPlace);
-    return factor.normalize(inPlace);
+    return factor.normalize(true);
+  }
+
+  /**
+   * @return a new table holding each run of length consecutive cells of
+   * table scaled by the reciprocal of its sum
+   */
+  private static float[] normalizeRuns(float[] table, int run) {
+    float[] newTable = new float[table.length];
+    for(int start = 0;start < table.length;start += run) {
+      double sum = 0.0;
+      for(int i = start;i < start + run;++i) {
+        sum += table[i];
+      }
+      float scale = (float) (1.0 / sum);
+      for(int i = start;i < start + run;++i) {
+        newTable[i] = table[i] * scale;
+      }
+    }
+
+    return newTable;
+  }
+
+  @Override double valueAt(int index) {
+    if(this.floatTable != null) {
+      return this.floatTable[index];
+    } else if(this.mappedTable != null) {
+      return this.mappedTable.get(index);
+    }
+
+    return super.valueAt(index);
+  }
+
+  @Override void copyRun(int from, double[] dst, int at, int length) {
+    if(this.mappedTable != null) {
+      MappedDiscreteFactor.copyRun(this.mappedTable, from, dst, at, length);
+      return;
+    } else if(this.floatTable == null) {
+      super.copyRun(from, dst, at, length);
+      return;
+    }
+
+    for(int i = 0;i < length;++i) {
+      dst[at + i] = this.floatTable[from + i];
+    }
+  }
+
+  @Override float[] floatTable() {
+    return this.floatTable;
+  }
+
+  /**
+   * Copy a table read from a buffer to the heap before it is written.
+   */
+  @Override double[] mutableValues() {
+    if(this.mappedTable != null) {
+      this.setTable(this.scope(), this.cardinality(),
+          MappedDiscreteFactor.toHeap(this.mappedTable));
+    }
+
+    return super.mutableValues();
+  }
+
+  /**
+   * Replace the table, rounding it into a new float table when the precision
+   * is FLOAT. The values are not recycled as they may belong to the caller
+   * of fromTable.
+   */
+  @Override void setTable(int[] scope, int[] cardinality, double[] values) {
+    this.mappedTable = null;
+    if(this.precision == Precision.DOUBLE) {
+      super.setTable(scope, cardinality, values);
+      return;
+    }
+
+    float[] table = new float[values.length];
+    for(int i = 0;i < values.length;++i) {
+      table[i] = (float) values[i];
+    }
+    this.setShape(scope, cardinality);
+    this.values = null;
+    this.floatTable = table;
+    this.valuesChanged();
   }
 
   /**
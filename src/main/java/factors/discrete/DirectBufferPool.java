@@ -0,0 +1,68 @@
+package factors.discrete;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pool of direct (off-heap) buffers of doubles, kept by exact capacity.
+ * Released buffers are handed out again to the next request of the same
+ * capacity, so off-heap memory is reused as soon as a factor is closed
+ * instead of whenever the garbage collector gets to the buffer.
+ *
+ * At most MAX_POOLED_BYTES are kept, buffers released beyond that are left
+ * to the garbage collector.
+ *
+ * @version 1.0.0
+ *
+ * @author Sean McMillan
+ */
+final class DirectBufferPool {
+  static final long MAX_POOLED_BYTES = 256L << 20;
+
+  private static final Map<Integer, ArrayDeque<DoubleBuffer>> pool = new HashMap<>();
+  private static long pooledBytes = 0;
+
+  private DirectBufferPool() {
+  }
+
+  /**
+   * @param capacity the number of doubles the buffer must hold
+   * @return a native order buffer of exactly capacity doubles, whose contents
+   * are undefined
+   * @throws IllegalArgumentException if capacity doubles do not fit in one
+   * buffer, which is indexed by int
+   */
+  static synchronized DoubleBuffer acquire(int capacity) {
+    long bytes = (long) capacity * Double.BYTES;
+    Preconditions.checkArgument(capacity >= 0 && bytes <= Integer.MAX_VALUE,
+        String.format("A table of %d cells does not fit in one direct buffer.", capacity));
+
+    ArrayDeque<DoubleBuffer> free = pool.get(capacity);
+    if(free != null && !free.isEmpty()) {
+      pooledBytes -= bytes;
+      return free.pop();
+    }
+
+    return ByteBuffer.allocateDirect((int) bytes)
+        .order(ByteOrder.nativeOrder())
+        .asDoubleBuffer();
+  }
+
+  static synchronized void release(DoubleBuffer buffer) {
+    long bytes = (long) buffer.capacity() * Double.BYTES;
+    if(pooledBytes + bytes <= MAX_POOLED_BYTES) {
+      pool.computeIfAbsent(buffer.capacity(), c -> new ArrayDeque<>()).push(buffer);
+      pooledBytes += bytes;
+    }
+  }
+
+  static synchronized long pooledBytes() {
+    return pooledBytes;
+  }
+}
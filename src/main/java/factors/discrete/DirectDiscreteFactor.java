@@ -0,0 +1,291 @@
+package factors.discrete;
+
+import com.google.common.base.Preconditions;
+import factors.Factor;
+import primitives.Event;
+
+import java.nio.DoubleBuffer;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * Implementation of a discrete factor whose values live off the Java heap in
+ * a direct buffer, so that very large tables do not add to garbage collection
+ * pauses. The buffer is returned to a pool by close, after which the factor
+ * can no longer be used.
+ *
+ * Operations on a direct factor that are not done in place return a plain
+ * DiscreteFactor unless their result has at least OFF_HEAP_THRESHOLD cells.
+ *
+ * @see DiscreteFactor
+ *
+ * @version 1.0.0
+ *
+ * @author Sean McMillan
+ */
+public class DirectDiscreteFactor extends DiscreteFactor implements AutoCloseable {
+  public static final int OFF_HEAP_THRESHOLD = 1 << 16;
+
+  private DoubleBuffer buffer;
+
+  private DirectDiscreteFactor() {
+    super();
+  }
+
+  public DirectDiscreteFactor(List<String> variables, List<Integer> cardinality,
+      double[] values) {
+    super();
+    this.setVariables(variables);
+    this.setCardinality(cardinality);
+    // setTable takes ownership of the array, which is recycled once copied
+    this.setTable(this.scope(), this.cardinality(), values.clone());
+  }
+
+  /**
+   * Copy a factor into off-heap storage.
+   *
+   * @param factor the factor to copy
+   * @return a DirectDiscreteFactor with the same scope, values and reductions
+   */
+  public static DirectDiscreteFactor fromFactor(DiscreteFactor factor) {
+    double[] heapValues = new double[factor.size()];
+    factor.copyRun(0, heapValues, 0, heapValues.length);
+
+    DirectDiscreteFactor result = new DirectDiscreteFactor();
+    result.getReductions().addAll(factor.getReductions());
+    result.setTable(factor.scope().clone(), factor.cardinality().clone(), heapValues);
+
+    return result;
+  }
+
+  /**
+   * @return a copy of this factor on the heap
+   */
+  public DiscreteFactor toDiscreteFactor() {
+    double[] heapValues = new double[this.size()];
+    this.copyRun(0, heapValues, 0, heapValues.length);
+
+    DiscreteFactor result = new DiscreteFactor();
+    result.getReductions().addAll(this.getReductions());
+    result.setTable(this.scope().clone(), this.cardinality().clone(), heapValues);
+
+    return result;
+  }
+
+  /**
+   * Return the buffer to the pool. The factor can not be used afterwards.
+   */
+  @Override public void close() {
+    if(this.buffer != null) {
+      DirectBufferPool.release(this.buffer);
+      this.buffer = null;
+    }
+  }
+
+  public boolean isClosed() {
+    return this.buffer == null;
+  }
+
+  private DoubleBuffer buffer() {
+    Preconditions.checkState(this.buffer != null, "Factor has been closed.");
+    return this.buffer;
+  }
+
+  @Override double valueAt(int index) {
+    return this.buffer().get(index);
+  }
+
+  @Override void copyRun(int from, double[] dst, int at, int length) {
+    DoubleBuffer view = this.buffer().duplicate();
+    view.position(from);
+    view.get(dst, at, length);
+  }
+
+  @Override DiscreteFactor target(boolean inPlace) {
+    if(inPlace) {
+      return this;
+    }
+
+    DiscreteFactor result = new DiscreteFactor();
+    result.getReductions().addAll(this.getReductions());
+
+    return result;
+  }
+
+  @Override void setTable(int[] scope, int[] cardinality, double[] values) {
+    this.setShape(scope, cardinality);
+    Preconditions.checkArgument(values.length == this.size(),
+        String.format("Incorrect size of values variables. Expecting array " +
+            "of size %d. Instead received array of size %d.",
+            this.size(), values.length));
+
+    this.close();
+    this.values = null;
+    this.buffer = DirectBufferPool.acquire(values.length);
+    this.buffer.duplicate().put(values);
+    FactorArena.recycle(values);
+  }
+
+  @Override void allocateTable(int[] scope, int[] cardinality) {
+    this.setShape(scope, cardinality);
+    this.close();
+    this.values = null;
+    this.buffer = DirectBufferPool.acquire(this.size());
+  }
+
+  @Override void writeRun(int at, double[] src, int from, int length) {
+    DoubleBuffer view = this.buffer().duplicate();
+    view.position(at);
+    view.put(src, from, length);
+  }
+
+  @Override public String toString() {
+    return this.toDiscreteFactor().toString();
+  }
+
+  @Override public Factor copy() {
+    return fromFactor(this);
+  }
+
+  @Override public Factor normalize(boolean inPlace) {
+    DoubleBuffer values = this.buffer();
+    double sum = 0.0;
+    for(int i = 0;i < this.size();++i) {
+      sum += values.get(i);
+    }
+
+    DirectDiscreteFactor factor = inPlace ? this : (DirectDiscreteFactor) this.copy();
+    DoubleBuffer normalized = factor.buffer();
+    for(int i = 0;i < factor.size();++i) {
+      normalized.put(i, normalized.get(i) / sum);
+    }
+    factor.valuesChanged();
+
+    return factor;
+  }
+
+  /**
+   * A large result is written straight into a pooled direct buffer, without
+   * a heap copy of the table. When reducing in place this factor takes the
+   * buffer of the result.
+   */
+  @Override public Factor reduce(List<Event> events, boolean inPlace) {
+    DiscreteFactor result = this.reduce(events, results(inPlace));
+    return inPlace ? this.adopt((DirectDiscreteFactor) result) : result;
+  }
+
+  /**
+   * See reduce.
+   */
+  @Override public Factor marginalize(List<String> variables, boolean inPlace) {
+    DiscreteFactor result = this.marginalize(variables, results(inPlace));
+    return inPlace ? this.adopt((DirectDiscreteFactor) result) : result;
+  }
+
+  /**
+   * @return a factory of empty factors for a result of the given size, off
+   * the heap if the result is large or replaces the table of this factor
+   */
+  private static IntFunction<DiscreteFactor> results(boolean inPlace) {
+    return size -> inPlace || size >= OFF_HEAP_THRESHOLD ?
+        new DirectDiscreteFactor() : new DiscreteFactor();
+  }
+
+  /**
+   * Take the shape, buffer and reductions of another direct factor, closing
+   * the buffer of this one.
+   */
+  private DirectDiscreteFactor adopt(DirectDiscreteFactor other) {
+    this.close();
+    this.setShape(other.scope(), other.cardinality());
+    this.buffer = other.buffer;
+    other.buffer = null;
+    this.getReductions().clear();
+    this.getReductions().addAll(other.getReductions());
+
+    return this;
+  }
+
+  @Override public DiscreteFactor product(DiscreteFactor other) {
+    if(other instanceof LogDiscreteFactor) {
+      return LogDiscreteFactor.product(this, other);
+    }
+
+    return product(this, other);
+  }
+
+  /**
+   * Multiply two factors, either of which may be off-heap. The scope of the
+   * result is that of left.product(right), and its values are written
+   * straight into off-heap storage if it has at least OFF_HEAP_THRESHOLD
+   * cells, without a heap copy of the table.
+   *
+   * @param left the factor whose variables come first in the result
+   * @param right the factor whose remaining variables are appended
+   * @return the product of left and right
+   */
+  public static DiscreteFactor product(DiscreteFactor left, DiscreteFactor right) {
+    DirectDiscreteFactor result = new DirectDiscreteFactor();
+    IndexWalker walker = left.productShape(right, result);
+
+    if(result.size() < OFF_HEAP_THRESHOLD) {
+      double[] newValues = new double[result.size()];
+      ParallelRange.run(newValues.length, newValues.length, (from, to) -> {
+        IndexWalker chunk = walker.at(from);
+        for(int i = from;i < to;++i) {
+          newValues[i] = left.valueAt(chunk.offset(0)) * right.valueAt(chunk.offset(1));
+          chunk.next();
+        }
+      });
+
+      DiscreteFactor heap = new DiscreteFactor();
+      heap.getReductions().addAll(result.getReductions());
+      heap.setTable(result.scope(), result.cardinality(), newValues);
+      return heap;
+    }
+
+    // Absolute puts to distinct cells of the buffer are safe from any thread
+    DoubleBuffer newValues = DirectBufferPool.acquire(result.size());
+    ParallelRange.run(result.size(), result.size(), (from, to) -> {
+      IndexWalker chunk = walker.at(from);
+      for(int i = from;i < to;++i) {
+        newValues.put(i, left.valueAt(chunk.offset(0)) * right.valueAt(chunk.offset(1)));
+        chunk.next();
+      }
+    });
+    result.values = null;
+    result.buffer = newValues;
+
+    return result;
+  }
+
+  /**
+   * Multiply factors and sum variables out of the product in one pass, see
+   * DiscreteFactor.sumProduct. A result of at least OFF_HEAP_THRESHOLD cells
+   * is written straight into a pooled direct buffer, in blocks, so no heap
+   * table of it is ever built.
+   *
+   * @param factors the factors to multiply, any of which may be off-heap
+   * @param variables the variables to sum out of the product
+   * @return the sum over variables of the factor product of factors
+   */
+  public static DiscreteFactor sumProduct(List<? extends DiscreteFactor> factors,
+      List<String> variables) {
+    return DiscreteFactor.sumProduct(factors, variables, results(false));
+  }
+
+  /**
+   * Copy a factor off the heap if it has at least OFF_HEAP_THRESHOLD cells.
+   *
+   * @param factor the factor to move
+   * @return a DirectDiscreteFactor copy of a large factor, or factor itself
+   */
+  public static DiscreteFactor offHeapIfLarge(DiscreteFactor factor) {
+    if(!(factor instanceof DirectDiscreteFactor) &&
+        factor.size() >= OFF_HEAP_THRESHOLD) {
+      return fromFactor(factor);
+    }
+
+    return factor;
+  }
+}
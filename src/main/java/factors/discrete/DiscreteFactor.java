@@ -2,22 +2,18 @@ package factors.discrete;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
-import com.google.common.base.Splitter;
 import com.google.common.collect.*;
-import com.google.common.primitives.Doubles;
 import com.google.common.primitives.Ints;
 import factors.Factor;
-import org.apache.commons.lang3.tuple.Pair;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import primitives.Event;
-import util.ListOps;
+import primitives.VariableRegistry;
 import util.Misc;
 
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
-import static util.ListOps.zip;
 import static util.Misc.joinPair;
 
 /**
@@ -32,16 +28,24 @@ import static util.Misc.joinPair;
  * @author Sean McMillan
  */
 public class DiscreteFactor implements Factor {
-  private List<String> variables;
-  private List<Integer> cardinality;
+  private static final int WRITE_RUN = 1024;  // Cells computed before each writeRun
+
+  private int[] scope;
+  private VariableRegistry.Pin[] pins;  // Keep the ids of the scope registered
+  private int[] cardinality;
   protected double[] values;
   private int size;
 
   private List<Event> reductions;
   private Map<String, Integer> varCard;
 
-  private ListMultimap<String, Integer> assignmentToIdx;
-  private Map<String, Integer> rangeSize;
+  private int[] strides;
+
+  // True when the arrays of this factor may be referenced by another factor,
+  // in which case the values are copied before they are first written.
+  // Volatile as a distribution is marked shared by the queries of any thread
+  private volatile boolean shared;
+  private int hash;
 
   public DiscreteFactor() {
     // empty constructor, empty set with probability 1
@@ -57,20 +61,32 @@ public class DiscreteFactor implements Factor {
     this.reductions = new ArrayList<>();
   }
 
+  /**
+   * Create a factor that shares the table and shape of another factor until
+   * either of them is written to.
+   */
+  DiscreteFactor(DiscreteFactor other) {
+    this.shareTable(other);
+  }
+
   public String toString() {
+    String[] names = VariableRegistry.names(this.scope);
     String header = Joiner.on(" | ").join(
-        this.getScope().stream()
+        Arrays.stream(names)
             .map(v -> String.format(" %s ", v))
         .collect(Collectors.toList())) +
         " | " + this.factorString();
 
-    TreeMultimap<Integer, String> invertedMap = Multimaps.invertFrom(this.assignmentToIdx,
-        TreeMultimap.create());
-
     List<String> bodyList = Lists.newArrayList();
-    for(int i = 0;i < this.values.length;++i) {
-      bodyList.add(Joiner.on(" | ").join(this.scopeSort(Lists.newArrayList(invertedMap.get(i)))) + " | " +
-              String.format("%.4f", this.values[i])
+    List<String> assignments = Lists.newArrayList();
+    for(int i = 0;i < this.size;++i) {
+      assignments.clear();
+      for(int d = 0;d < this.strides.length;++d) {
+        int assignment = (i / this.strides[d]) % this.cardinality[d];
+        assignments.add(joinPair(names[d], assignment, "="));
+      }
+      bodyList.add(Joiner.on(" | ").join(assignments) + " | " +
+              String.format("%.4f", this.valueAt(i))
       );
     }
 
@@ -91,84 +107,113 @@ public class DiscreteFactor implements Factor {
     return fString.concat(")");
   }
 
-  private List<String> scopeSort(List<String> assignments) {
-    List<Pair<String, Integer>> assignmentsToOrder = new ArrayList<>();
-    for(String assignment : assignments) {
-      String variable = Splitter.on("=").splitToList(assignment).get(0);
-      Integer position = this.getScope().indexOf(variable);
-      assignmentsToOrder.add(Pair.of(assignment, position));
-    }
-
-    return assignmentsToOrder.stream()
-        .sorted(Comparator.comparingInt(Pair::getRight))
-        .map(Pair::getLeft)
-        .collect(Collectors.toList());
-
-  }
-
+  /**
+   * The copy shares its values with this factor, the table is only copied
+   * when one of the two factors is changed in place.
+   */
   public Factor copy() {
-    DiscreteFactor df = new DiscreteFactor(this.getScope(), this.getCardinality(),
-        this.values);
-    df.reductions = Lists.newArrayList(this.reductions);
-
-    return df;
+    return new DiscreteFactor(this);
   }
 
+  /**
+   * Factors are equal if they have the same scope, cardinality and cells,
+   * whatever their storage. The cells are read through valueAt and compared
+   * bit for bit as hashCode hashes them, so equals is symmetric between
+   * storage kinds. A log factor is only equal to another log factor, as its
+   * cells are in another domain.
+   */
   public boolean equals(DiscreteFactor other) {
     boolean isEqual;
-    if(!Iterables.elementsEqual(this.getScope(), other.getScope())) {
+    if(!Arrays.equals(this.scope, other.scope)) {
       isEqual = false;
-    } else if(!Iterables.elementsEqual(this.getCardinality(), other.getCardinality())) {
+    } else if(!Arrays.equals(this.cardinality, other.cardinality)) {
+      isEqual = false;
+    } else if((this instanceof LogDiscreteFactor) != (other instanceof LogDiscreteFactor)) {
       isEqual = false;
     } else {
-      isEqual = Iterables.elementsEqual(Doubles.asList(this.values),
-          Doubles.asList(other.values));
+      isEqual = true;
+      for(int i = 0;i < this.size && isEqual;++i) {
+        isEqual = Double.doubleToLongBits(this.valueAt(i)) ==
+            Double.doubleToLongBits(other.valueAt(i));
+      }
     }
 
     return isEqual;
   }
 
+  @Override public boolean equals(Object other) {
+    return this == other ||
+        (other instanceof DiscreteFactor && this.equals((DiscreteFactor) other));
+  }
+
+  /**
+   * The hash of the scope, cardinality and values, computed on first use and
+   * kept until the factor changes.
+   */
+  @Override public int hashCode() {
+    int h = this.hash;
+    if(h == 0) {
+      h = 31 * Arrays.hashCode(this.scope) + Arrays.hashCode(this.cardinality);
+      for(int i = 0;i < this.size;++i) {
+        h = 31 * h + Double.hashCode(this.valueAt(i));
+      }
+      this.hash = h;
+    }
+
+    return h;
+  }
+
   protected void setVariables(List<String> variables) {
-    this.variables = Lists.newArrayList(variables);
+    this.pins = VariableRegistry.pin(variables);
+    this.scope = VariableRegistry.ids(this.pins);
   }
 
   @Override public List<String> getScope() {
-    return Lists.newArrayList(this.variables);
+    return Lists.newArrayList(VariableRegistry.names(this.scope));
   }
 
-  protected void setCardinality(List<Integer> cardinality) {
-    Preconditions.checkArgument(this.variables.size() == cardinality.size(),
-        "variables and cardinality must have the same size.");
-
-    this.cardinality = Lists.newArrayList(cardinality);
-    this.rangeSize = this.getRangeSize(this.variables, this.cardinality);
-    this.size = this.cardinality.stream()
-      .reduce(1, (a, b) -> a * b);
-    this.assignmentToIdx = this.createAssignments(this.variables,
-        this.cardinality,
-        this.rangeSize,
-        this.size);
+  /**
+   * @param variable the name of a variable
+   * @return true if the variable is in the scope of this factor
+   */
+  public boolean inScope(String variable) {
+    return this.indexOf(variable) >= 0;
   }
 
-  public List<Integer> getCardinality() {
-    return Lists.newArrayList(this.cardinality);
+  /**
+   * Return the scope as the ids given to the variables by the
+   * VariableRegistry.
+   *
+   * @return a copy of the variable ids in scope order
+   */
+  public int[] getScopeIds() {
+    return Arrays.copyOf(this.scope, this.scope.length);
   }
 
-  private ListMultimap<String, Integer> createAssignments(List<String> variables,
-      List<Integer> cardinality, Map<String, Integer> rangeSize, int size) {
-    ListMultimap<String, Integer> assignmentToIdx = ArrayListMultimap.create();
+  protected void setCardinality(List<Integer> cardinality) {
+    Preconditions.checkArgument(this.scope.length == cardinality.size(),
+        "variables and cardinality must have the same size.");
 
-    for(int i = 0;i < size;++i) {
-      for (Pair<String, Integer> varCardPair : zip(variables, cardinality)) {
-        String variable = varCardPair.getLeft();
-        Integer card = varCardPair.getRight();
-        int assignment = (i / rangeSize.get(variable)) % card;
+    this.setShape(this.scope, Ints.toArray(cardinality));
+  }
 
-        assignmentToIdx.put(joinPair(variable, assignment, "="), i);
-      }
+  /**
+   * Set the scope and cardinality together from arrays that are owned by
+   * this factor from now on.
+   */
+  void setShape(int[] scope, int[] cardinality) {
+    if(scope != this.scope) {
+      this.pins = VariableRegistry.pin(scope);
     }
+    this.scope = scope;
+    this.cardinality = cardinality;
+    this.strides = IndexWalker.strides(this.cardinality);
+    this.size = product(this.cardinality);
+    this.hash = 0;
+  }
 
-    return assignmentToIdx;
+  public List<Integer> getCardinality() {
+    return Lists.newArrayList(Ints.asList(this.cardinality));
   }
 
   protected void setValues(double[] values) {
@@ -177,127 +222,474 @@ public class DiscreteFactor implements Factor {
           "of size %d. Instead received array of size %d.",
               this.size, values.length));
     this.values = Arrays.copyOf(values, values.length);
+    this.shared = false;
+    this.hash = 0;
   }
 
-  private HashMap<String, Integer> getRangeSize(List<String> variables,
-      List<Integer> cardinality) {
-    HashMap<String, Integer> rangeSize = new HashMap<>();
-    AtomicInteger prod = new AtomicInteger(1);
-    List<Integer> ranges = Lists.reverse(Lists.reverse(cardinality).stream()
-        .mapToInt(c -> prod.getAndUpdate(p -> c * p))
-        .boxed()
-        .collect(Collectors.toList()));
+  int indexOf(int variable) {
+    for(int i = 0;i < this.scope.length;++i) {
+      if(this.scope[i] == variable) {
+        return i;
+      }
+    }
 
-    IntStream.range(0, variables.size())
-        .forEach(i -> rangeSize.put(variables.get(i), ranges.get(i)));
+    return -1;
+  }
 
-    return rangeSize;
+  int indexOf(String variable) {
+    int id = VariableRegistry.find(variable);
+    return id < 0 ? -1 : this.indexOf(id);
   }
 
+  /**
+   * Return the stride of this factor for each variable of a scope, with a
+   * stride of 0 for variables that are not in this factor.
+   *
+   * @param scope the variable ids to look up
+   * @return the strides aligned with scope
+   */
+  int[] stridesFor(int[] scope) {
+    int[] scopeStrides = new int[scope.length];
+    for(int i = 0;i < scopeStrides.length;++i) {
+      int vIdx = this.indexOf(scope[i]);
+      scopeStrides[i] = vIdx < 0 ? 0 : this.strides[vIdx];
+    }
+
+    return scopeStrides;
+  }
+
+  /**
+   * Return the total value of the cells consistent with an event, i.e. the
+   * value of the event with every other variable summed out.
+   *
+   * @param event the event to look up
+   * @return the summed value, or 0 if the event is not in this factor
+   */
   public double getValue(Event event) {
-    return this.assignmentToIdx.get(event.toString()).stream()
-        .mapToDouble(idx -> this.values[idx]).sum();
+    int vIdx = this.indexOf(event.getVariable());
+    int outcome = outcomeIndex(event);
+    if(vIdx < 0 || outcome < 0 || outcome >= this.cardinality[vIdx]) {
+      return 0.0;
+    }
+
+    int[] otherCardinality = new int[this.scope.length - 1];
+    int[] otherStrides = new int[this.scope.length - 1];
+    for(int d = 0, o = 0;d < this.scope.length;++d) {
+      if(d != vIdx) {
+        otherCardinality[o] = this.cardinality[d];
+        otherStrides[o++] = this.strides[d];
+      }
+    }
+
+    int base = outcome * this.strides[vIdx];
+    int otherSize = this.size / this.cardinality[vIdx];
+    IndexWalker walker = new IndexWalker(otherCardinality, otherStrides);
+    double sum = 0.0;
+    for(int i = 0;i < otherSize;++i) {
+      sum += this.valueAt(base + walker.offset(0));
+      walker.next();
+    }
+
+    return sum;
+  }
+
+  /**
+   * Outcomes are only known by their index, so a named outcome such as B=yes
+   * is in no factor, as is an event without an outcome.
+   *
+   * @param event the event to look up
+   * @return the index of the outcome of event, or -1 if it is not a number
+   */
+  static int outcomeIndex(Event event) {
+    Integer outcome = event.getOutcome() == null ? null : Ints.tryParse(event.getOutcome());
+    return outcome == null ? -1 : outcome;
+  }
+
+  /**
+   * Look up a batch of assignments. Each assignment gives an outcome for
+   * every variable in scope order, or -1 for a free variable which is summed
+   * over, so a partial assignment gets the total value of the cells
+   * consistent with it.
+   *
+   * @param assignments one row of outcomes per assignment
+   * @param out receives the value of each assignment, must be at least as
+   *            long as assignments
+   */
+  public void getValues(int[][] assignments, double[] out) {
+    Preconditions.checkArgument(out.length >= assignments.length,
+        "out must have room for every assignment.");
+
+    BatchLookup lookup = new BatchLookup();
+    for(int r = 0;r < assignments.length;++r) {
+      Preconditions.checkArgument(assignments[r].length == this.scope.length,
+          String.format("Assignment %d has %d outcomes, expecting %d.",
+              r, assignments[r].length, this.scope.length));
+      out[r] = lookup.value(assignments[r], 0);
+    }
+  }
+
+  /**
+   * Look up a batch of assignments stored row after row in a flat array, see
+   * getValues(int[][], double[]).
+   *
+   * @param assignments the outcomes of assignment r start at r * stride and
+   *                    give one outcome per variable in scope order, or -1
+   *                    for a free variable
+   * @param stride the distance between the starts of two assignments, at
+   *               least the number of variables in scope
+   * @param out receives the value of each assignment, one per row
+   */
+  public void getValues(int[] assignments, int stride, double[] out) {
+    Preconditions.checkArgument(stride >= this.scope.length,
+        String.format("stride %d is smaller than the scope size %d.",
+            stride, this.scope.length));
+    Preconditions.checkArgument(out.length == 0 ||
+            (long) (out.length - 1) * stride + this.scope.length <= assignments.length,
+        "assignments must hold a row for every value of out.");
+
+    BatchLookup lookup = new BatchLookup();
+    for(int r = 0;r < out.length;++r) {
+      out[r] = lookup.value(assignments, r * stride);
+    }
+  }
+
+  /**
+   * Evaluates the rows of a batch lookup, keeping the walker over the free
+   * variables of the previous row so that consecutive rows with the same
+   * free variables do not rebuild it.
+   */
+  private final class BatchLookup {
+    private final boolean[] free = new boolean[DiscreteFactor.this.scope.length];
+    private IndexWalker walker = null;
+    private int blockSize = 1;
+
+    double value(int[] row, int at) {
+      int[] cardinality = DiscreteFactor.this.cardinality;
+      int[] strides = DiscreteFactor.this.strides;
+
+      int base = 0;
+      boolean samePattern = this.walker != null;
+      int freeCount = 0;
+      for(int d = 0;d < cardinality.length;++d) {
+        int outcome = row[at + d];
+        Preconditions.checkArgument(outcome >= -1 && outcome < cardinality[d],
+            String.format("Outcome %d is outside the cardinality of %s.", outcome,
+                VariableRegistry.name(DiscreteFactor.this.scope[d])));
+        boolean isFree = outcome < 0;
+        if(isFree) {
+          ++freeCount;
+        } else {
+          base += outcome * strides[d];
+        }
+        samePattern &= this.free[d] == isFree;
+        this.free[d] = isFree;
+      }
+
+      if(freeCount == 0) {
+        return DiscreteFactor.this.valueAt(base);
+      } else if(!samePattern) {
+        int[] freeCardinality = new int[freeCount];
+        int[] freeStrides = new int[freeCount];
+        for(int d = 0, n = 0;d < cardinality.length;++d) {
+          if(this.free[d]) {
+            freeCardinality[n] = cardinality[d];
+            freeStrides[n++] = strides[d];
+          }
+        }
+        this.walker = new IndexWalker(freeCardinality, freeStrides);
+        this.blockSize = product(freeCardinality);
+      }
+
+      // The walker wraps back to the first assignment after a full block
+      double sum = 0.0;
+      for(int j = 0;j < this.blockSize;++j) {
+        sum += DiscreteFactor.this.valueAt(base + this.walker.offset(0));
+        this.walker.next();
+      }
+
+      return sum;
+    }
   }
 
   @Override public Factor normalize(boolean inPlace) {
-    DiscreteFactor factor = inPlace ? this :
-        (DiscreteFactor) this.copy();
+    double sum = 0.0;
+    for(double v : this.values) {
+      sum += v;
+    }
+
+    if(inPlace) {
+      double[] table = this.mutableValues();
+      for(int i = 0;i < table.length;++i) {
+        table[i] /= sum;
+      }
+
+      return this;
+    }
 
-    factor.setValues(ListOps.normalize(factor.values));
+    double[] newValues = FactorArena.allocate(this.size);
+    for(int i = 0;i < newValues.length;++i) {
+      newValues[i] = this.values[i] / sum;
+    }
 
-    return factor;
+    DiscreteFactor result = this.target(false);
+    result.setTable(this.scope, this.cardinality, newValues);
+
+    return result;
   }
 
   // TODO when reducing set new factorString value
   @Override public Factor reduce(List<Event> events,
       boolean inPlace) {
-    HashSet<String> rVars = new HashSet<>();
-    HashSet<Integer> rVarIdxs = new HashSet<>();
-    HashSet reducedIdxs = new HashSet();
-    reducedIdxs.addAll(IntStream.range(0, this.size).boxed().collect(Collectors.toList()));
-    for(Event event : events) {
-      String variable = event.getVariable();
-      int vIdx = this.variables.indexOf(variable);
-
-      rVars.add(variable);
-      rVarIdxs.add(vIdx);
-      List<Integer> assignedIdxs = this.assignmentToIdx.get(event.toString());
-      reducedIdxs.retainAll(Sets.intersection(reducedIdxs,
-          Sets.newHashSet(assignedIdxs)));
-    }
-
-    List<String> newScope = this.getScope().stream()
-        .filter(v -> !rVars.contains(v))
-        .collect(Collectors.toList());
-
-    List<Integer> newCardinality = newScope.stream()
-        .mapToInt(v -> this.getCardinality().get(this.variables.indexOf(v)))
-        .boxed()
-        .collect(Collectors.toList());
-
-    double[] newValues = reducedIdxs.stream()
-        .sorted()
-        .mapToDouble(i -> this.values[(int) i])
-        .toArray();
-
-    DiscreteFactor result = inPlace ? this : (DiscreteFactor)this.copy();
-
-    result.setVariables(newScope);
-    result.setCardinality(newCardinality);
-    result.setValues(newValues);
+    Slice slice = new Slice(events);
+
+    double[] newValues = FactorArena.allocate(slice.size);
+    for(int i = 0;i < newValues.length;i += slice.runLength) {
+      this.copyRun(slice.base + slice.walker.offset(0), newValues, i, slice.runLength);
+      slice.walker.next();
+    }
+
+    DiscreteFactor result = this.target(inPlace);
+
+    result.setTable(slice.scope, slice.cardinality, newValues);
     result.reductions.addAll(events);
 
     return result;
   }
 
-  @Override public Factor marginalize(List<String> variables, boolean inPlace) {
-    HashSet<String> mVars = Sets.newHashSet(variables);
-    List<String> newScope = this.variables.stream()
-        .filter(v -> !mVars.contains(v))
-        .collect(Collectors.toList());
-
-    List<Integer> newCardinality = newScope.stream()
-        .mapToInt(v -> this.cardinality.get(this.variables.indexOf(v)))
-        .boxed()
-        .collect(Collectors.toList());
-
-    HashMap<String, Integer> newRangeSizes =
-        this.getRangeSize(newScope, newCardinality);
-
-    int newSize = newCardinality.stream()
-        .reduce(1, (a, b) -> a * b);
-
-    double[] newValues = new double[newSize];
-    ListMultimap<String, Integer> newAtoI =
-        this.createAssignments(newScope, newCardinality, newRangeSizes, newSize);
-
-    TreeMultimap<Integer, String> invertedMap = Multimaps.invertFrom(newAtoI,
-        TreeMultimap.create());
-
-    for(int i = 0;i < newSize;++i) {
-      Set<Integer> oldIdxs = new HashSet<>();
-      for(String assignment : invertedMap.get(i)) {
-        List<Integer> assignedIdxs = this.assignmentToIdx.get(assignment);
-        if(oldIdxs.isEmpty()) {
-          oldIdxs.addAll(assignedIdxs);
-        } else {
-          oldIdxs.retainAll(Sets.intersection(oldIdxs,
-              Sets.newHashSet(assignedIdxs)));
+  /**
+   * The kernel of reduce writing the result into the storage of the factor
+   * returned by target, which is given the number of cells of the result and
+   * returns an empty factor. A result kept in a heap table receives the runs
+   * of the slice directly, others receive them in blocks through writeRun,
+   * so no heap table of the full result is built for them.
+   */
+  DiscreteFactor reduce(List<Event> events, IntFunction<DiscreteFactor> target) {
+    Slice slice = new Slice(events);
+
+    DiscreteFactor result = target.apply(slice.size);
+    result.allocateTable(slice.scope, slice.cardinality);
+    result.reductions = Lists.newArrayList(this.reductions);
+    result.reductions.addAll(events);
+
+    double[] table = result.values;
+    double[] run = table != null ? null : new double[Math.min(WRITE_RUN, slice.runLength)];
+    for(int i = 0;i < slice.size;i += slice.runLength) {
+      int from = slice.base + slice.walker.offset(0);
+      if(table != null) {
+        this.copyRun(from, table, i, slice.runLength);
+      } else {
+        for(int done = 0;done < slice.runLength;done += run.length) {
+          int length = Math.min(run.length, slice.runLength - done);
+          this.copyRun(from + done, run, 0, length);
+          result.writeRun(i + done, run, 0, length);
         }
       }
-      newValues[i] = oldIdxs.stream()
-          .mapToDouble(idx -> this.values[idx])
-          .sum();
+      slice.walker.next();
+    }
+
+    return result;
+  }
+
+  /**
+   * Reduce the factor by many rows of evidence over the same variables at
+   * once. The result has a first variable, batchVariable, with an outcome per
+   * row, followed by the variables of this factor that are not observed, and
+   * its slice at batchVariable=r is this factor reduced by row r.
+   *
+   * @param variables the observed variables, all in the scope of the factor
+   * @param rows the outcome of each observed variable for each row
+   * @param batchVariable the name of the batch variable, not in the scope of
+   *                      the factor
+   * @return a new DiscreteFactor with the reductions of every row
+   */
+  public DiscreteFactor reduceBatch(List<String> variables, int[][] rows,
+      String batchVariable) {
+    Preconditions.checkArgument(rows.length > 0, "There must be at least one row.");
+    Preconditions.checkArgument(!this.inScope(batchVariable),
+        String.format("%s is already in the scope of %s", batchVariable, this.factorString()));
+
+    int[] observed = new int[variables.size()];
+    boolean[] isObserved = new boolean[this.scope.length];
+    for(int v = 0;v < observed.length;++v) {
+      observed[v] = this.indexOf(variables.get(v));
+      Preconditions.checkArgument(observed[v] >= 0,
+          String.format("%s is not in the scope of %s", variables.get(v), this.factorString()));
+      Preconditions.checkArgument(!isObserved[observed[v]],
+          String.format("%s is observed more than once", variables.get(v)));
+      isObserved[observed[v]] = true;
     }
 
-    DiscreteFactor result = inPlace ? this : (DiscreteFactor)this.copy();
-    result.setVariables(newScope);
-    result.setCardinality(newCardinality);
-    result.setValues(newValues);
+    // The free variables are the same for every row, so are the runs
+    int runStart = this.scope.length;
+    while(runStart > 0 && !isObserved[runStart - 1]) {
+      --runStart;
+    }
+    int runLength = runStart < this.scope.length ?
+        this.strides[runStart] * this.cardinality[runStart] : 1;
+
+    IntArrayList newScope = new IntArrayList();
+    IntArrayList newCardinality = new IntArrayList();
+    IntArrayList walkedCardinality = new IntArrayList();
+    IntArrayList walkedStrides = new IntArrayList();
+    VariableRegistry.Pin batch = VariableRegistry.pin(batchVariable);
+    newScope.add(batch.id());
+    newCardinality.add(rows.length);
+    for(int i = 0;i < this.scope.length;++i) {
+      if(!isObserved[i]) {
+        newScope.add(this.scope[i]);
+        newCardinality.add(this.cardinality[i]);
+        if(i < runStart) {
+          walkedCardinality.add(this.cardinality[i]);
+          walkedStrides.add(this.strides[i]);
+        }
+      }
+    }
+
+    int[] base = new int[rows.length];
+    for(int r = 0;r < rows.length;++r) {
+      Preconditions.checkArgument(rows[r].length == observed.length,
+          String.format("Row %d has %d outcomes, expecting %d.",
+              r, rows[r].length, observed.length));
+      for(int v = 0;v < observed.length;++v) {
+        int outcome = rows[r][v];
+        Preconditions.checkArgument(outcome >= 0 && outcome < this.cardinality[observed[v]],
+            String.format("Outcome %d of row %d is outside the cardinality of %s",
+                outcome, r, variables.get(v)));
+        base[r] += outcome * this.strides[observed[v]];
+      }
+    }
+
+    int sliceSize = product(newCardinality.toIntArray()) / rows.length;
+    double[] newValues = FactorArena.allocate(rows.length * sliceSize);
+    IndexWalker walker = new IndexWalker(walkedCardinality.toIntArray(),
+        walkedStrides.toIntArray());
+    ParallelRange.run(rows.length, (long) rows.length * sliceSize, (from, to) -> {
+      IndexWalker rowWalker = walker.at(0);
+      for(int r = from;r < to;++r) {
+        for(int i = 0;i < sliceSize;i += runLength) {
+          this.copyRun(base[r] + rowWalker.offset(0), newValues, r * sliceSize + i, runLength);
+          rowWalker.next();
+        }
+      }
+    });
+
+    DiscreteFactor result = this.target(false);
+    result.setTable(newScope.toIntArray(), newCardinality.toIntArray(), newValues);
+
+    return result;
+  }
+
+  @Override public Factor marginalize(List<String> variables, boolean inPlace) {
+    SumOut sumOut = new SumOut(variables);
+
+    // For each cell of the new table sum the block of old cells that share
+    // its assignment, the inner walker wrapping back to 0 after every block
+    double[] newValues = FactorArena.allocate(sumOut.size);
+    ParallelRange.run(sumOut.size, (long) sumOut.size * sumOut.blockSize, (from, to) -> {
+      IndexWalker outer = sumOut.outer.at(from);
+      IndexWalker inner = sumOut.inner.at(0);
+      for(int i = from;i < to;++i) {
+        int base = outer.offset(0);
+        double sum = 0.0;
+        for(int j = 0;j < sumOut.blockSize;++j) {
+          sum += this.valueAt(base + inner.offset(0));
+          inner.next();
+        }
+        newValues[i] = sum;
+        outer.next();
+      }
+    });
+
+    DiscreteFactor result = this.target(inPlace);
+    result.setTable(sumOut.scope, sumOut.cardinality, newValues);
+
+    return result;
+  }
+
+  /**
+   * The kernel of marginalize writing the result into the storage of the
+   * factor returned by target, see reduce(List, IntFunction).
+   */
+  DiscreteFactor marginalize(List<String> variables, IntFunction<DiscreteFactor> target) {
+    SumOut sumOut = new SumOut(variables);
+
+    DiscreteFactor result = target.apply(sumOut.size);
+    result.allocateTable(sumOut.scope, sumOut.cardinality);
+    result.reductions = Lists.newArrayList(this.reductions);
+
+    double[] table = result.values;
+    ParallelRange.run(sumOut.size, (long) sumOut.size * sumOut.blockSize, (from, to) -> {
+      IndexWalker outer = sumOut.outer.at(from);
+      IndexWalker inner = sumOut.inner.at(0);
+      double[] run = table != null ? table : new double[Math.min(WRITE_RUN, to - from)];
+      for(int start = from;start < to;start += run.length) {
+        int end = table != null ? to : Math.min(to, start + run.length);
+        int shift = table != null ? 0 : start;
+        for(int i = start;i < end;++i) {
+          int base = outer.offset(0);
+          double sum = 0.0;
+          for(int j = 0;j < sumOut.blockSize;++j) {
+            sum += this.valueAt(base + inner.offset(0));
+            inner.next();
+          }
+          run[i - shift] = sum;
+          outer.next();
+        }
+
+        if(table == null) {
+          result.writeRun(start, run, 0, end - start);
+        }
+      }
+    });
 
     return result;
   }
 
+  /**
+   * Maximize variables out of this factor. Each cell of the result is the
+   * largest of the cells that share its assignment, and the back-pointers of
+   * the returned MaxMarginal record which assignment of the maximized
+   * variables it came from. Values are compared as stored, so a log factor
+   * gives the log of the max-marginal.
+   *
+   * @param variables the variables to maximize out
+   * @return the max-marginal factor and its back-pointers
+   */
+  public MaxMarginal maxMarginalize(List<String> variables) {
+    SumOut sumOut = new SumOut(variables);
+
+    // The block position of the best cell is its row-major assignment of the
+    // maximized variables, as the inner walker moves the last one fastest
+    double[] newValues = FactorArena.allocate(sumOut.size);
+    int[] backPointers = new int[sumOut.size];
+    ParallelRange.run(sumOut.size, (long) sumOut.size * sumOut.blockSize, (from, to) -> {
+      IndexWalker outer = sumOut.outer.at(from);
+      IndexWalker inner = sumOut.inner.at(0);
+      for(int i = from;i < to;++i) {
+        int base = outer.offset(0);
+        double max = Double.NEGATIVE_INFINITY;
+        int best = 0;
+        for(int j = 0;j < sumOut.blockSize;++j) {
+          double value = this.valueAt(base + inner.offset(0));
+          if(value > max) {
+            max = value;
+            best = j;
+          }
+          inner.next();
+        }
+        newValues[i] = max;
+        backPointers[i] = best;
+        outer.next();
+      }
+    });
+
+    DiscreteFactor result = this.target(false);
+    result.setTable(sumOut.scope, sumOut.cardinality, newValues);
+
+    return new MaxMarginal(result, sumOut.summedScope, sumOut.summedCardinality,
+        backPointers);
+  }
+
   /**
    * Will construct a new DiscreteFactor that is the factor of this factor
    * with DiscreteFactor other:
@@ -312,50 +704,517 @@ public class DiscreteFactor implements Factor {
    * @return a new DiscreteFactor that is the factor product of this and other
    */
   public DiscreteFactor product(DiscreteFactor other) {
-    Set<String> overlapping = Sets.intersection(
-        Sets.newHashSet(this.getScope()), Sets.newHashSet(other.getScope()));
-
-    List<String> newScope = this.getScope();
-    List<Integer> newCardinality = this.getCardinality();
-    IntStream.range(0, other.getScope().size())
-        .filter(i -> !overlapping.contains(other.getScope().get(i)))
-        .forEach(i -> {
-          newScope.add(other.getScope().get(i));
-          newCardinality.add(other.getCardinality().get(i));
-        });
+    if(other instanceof LogDiscreteFactor) {
+      return LogDiscreteFactor.product(this, other);
+    } else if(other instanceof SparseDiscreteFactor) {
+      return SparseDiscreteFactor.product(this, (SparseDiscreteFactor) other);
+    } else if(other instanceof DirectDiscreteFactor) {
+      return DirectDiscreteFactor.product(this, other);
+    } else if(this.floatTable() != null || other.floatTable() != null) {
+      return FloatDiscreteFactor.product(this, other);
+    } else if(this.values == null || other.values == null) {
+      // A table outside the values array, such as a mapped one, is read
+      // through valueAt
+      return DirectDiscreteFactor.product(this, other);
+    }
 
     DiscreteFactor result = new DiscreteFactor();
-    result.setVariables(newScope);
-    result.setCardinality(newCardinality);
+    IndexWalker walker = this.productShape(other, result);
+
+    // Walk the new table in order, keeping both operands' offsets in step
+    double[] newValues = FactorArena.allocate(result.size);
+    ParallelRange.run(newValues.length, newValues.length, (from, to) -> {
+      IndexWalker chunk = walker.at(from);
+      for(int i = from;i < to;++i) {
+        newValues[i] = this.values[chunk.offset(0)] * other.values[chunk.offset(1)];
+        chunk.next();
+      }
+    });
 
-    double[] newValues = new double[result.size];
-    TreeMultimap<Integer, String> invertedMap = Multimaps.invertFrom(
-        result.assignmentToIdx, TreeMultimap.create());
-    for(int i = 0;i < newValues.length;++i) {
-      Set<Integer> thisIdx = Sets.newHashSet(IntStream.range(0, this.size).iterator());
-      Set<Integer> otherIdx = Sets.newHashSet(IntStream.range(0, other.size).iterator());
-      for(String assignment : invertedMap.get(i)) {
-        Set<Integer> indices = Sets.newHashSet(this.assignmentToIdx.get(assignment));
-        Set<Integer> oIndices = Sets.newHashSet(other.assignmentToIdx.get(assignment));
-
-        if(indices.size() > 0) {
-          thisIdx = Sets.intersection(thisIdx, indices);
+    result.values = newValues;
+
+    return result;
+  }
+
+  /**
+   * Give result the scope of the product of this and other, and the
+   * reductions of both, and return a walker over the new table tracking the
+   * offsets into this (table 0) and other (table 1).
+   */
+  IndexWalker productShape(DiscreteFactor other, DiscreteFactor result) {
+    // Merge the scopes, appending the variables of other that this lacks
+    BitSet inThis = new BitSet();
+    for(int v : this.scope) {
+      inThis.set(v);
+    }
+
+    int[] newScope = Arrays.copyOf(this.scope, this.scope.length + other.scope.length);
+    int[] newCardinality = Arrays.copyOf(this.cardinality, newScope.length);
+    int n = this.scope.length;
+    for(int i = 0;i < other.scope.length;++i) {
+      if(!inThis.get(other.scope[i])) {
+        newScope[n] = other.scope[i];
+        newCardinality[n++] = other.cardinality[i];
+      }
+    }
+
+    result.setShape(Arrays.copyOf(newScope, n), Arrays.copyOf(newCardinality, n));
+
+    Set<Event> reductions = Sets.newLinkedHashSet(this.reductions);
+    reductions.addAll(other.reductions);
+    result.reductions = Lists.newArrayList(reductions);
+
+    return new IndexWalker(result.cardinality,
+        this.stridesFor(result.scope), other.stridesFor(result.scope));
+  }
+
+  /**
+   * Multiply factors together and sum variables out of the product in a
+   * single pass. The full product is never built: each cell of the result
+   * accumulates the products of the operand cells consistent with it, so the
+   * memory used is that of the result rather than that of the product.
+   *
+   * The scope of the result is the scope of the product of the factors, in
+   * order, without the summed out variables. If any of the factors is a log
+   * factor the cells are multiplied in log space and summed with a streaming
+   * log-sum-exp, giving a LogDiscreteFactor, see LogDiscreteFactor.sumProduct.
+   *
+   * @param factors the factors to multiply
+   * @param variables the variables to sum out of the product
+   * @return a new DiscreteFactor that is the sum over variables of the factor
+   * product of factors
+   */
+  public static DiscreteFactor sumProduct(List<? extends DiscreteFactor> factors,
+      List<String> variables) {
+    return sumProduct(factors, variables, size -> new DiscreteFactor());
+  }
+
+  /**
+   * The fused kernel of sumProduct, writing the result into the storage of
+   * the factor returned by target, which is given the number of cells of the
+   * result and returns an empty factor. Results kept in a heap table are
+   * written in place, others receive their cells in blocks through
+   * writeRun, so no heap table of the full result is built for them.
+   */
+  static DiscreteFactor sumProduct(List<? extends DiscreteFactor> factors,
+      List<String> variables, IntFunction<DiscreteFactor> target) {
+    DiscreteFactor[] operands = factors.toArray(new DiscreteFactor[factors.size()]);
+    if(Arrays.stream(operands).anyMatch(f -> f instanceof LogDiscreteFactor)) {
+      return LogDiscreteFactor.sumProduct(factors, variables);
+    }
+
+    Bucket bucket = new Bucket(operands, variables);
+    DiscreteFactor result = target.apply(bucket.size);
+    result.allocateTable(bucket.scope, bucket.cardinality);
+    double[] table = result.values;
+
+    // The outer walker fixes the first cell of each operand's block, the
+    // inner walker runs over the summed variables and wraps back to 0
+    ParallelRange.run(bucket.size, (long) bucket.size * bucket.blockSize, (from, to) -> {
+      IndexWalker chunkOuter = bucket.outer.at(from);
+      IndexWalker chunkInner = bucket.inner.at(0);
+      int[] base = new int[operands.length];
+      double[] run = table != null ? table : new double[Math.min(WRITE_RUN, to - from)];
+      for(int start = from;start < to;start += run.length) {
+        int end = table != null ? to : Math.min(to, start + run.length);
+        int shift = table != null ? 0 : start;
+        for(int i = start;i < end;++i) {
+          for(int t = 0;t < operands.length;++t) {
+            base[t] = chunkOuter.offset(t);
+          }
+
+          double sum = 0.0;
+          for(int j = 0;j < bucket.blockSize;++j) {
+            double cell = 1.0;
+            for(int t = 0;t < operands.length;++t) {
+              cell *= operands[t].valueAt(base[t] + chunkInner.offset(t));
+            }
+            sum += cell;
+            chunkInner.next();
+          }
+          run[i - shift] = sum;
+          chunkOuter.next();
         }
-        if(oIndices.size() > 0) {
-          otherIdx = Sets.intersection(otherIdx, oIndices);
+
+        if(table == null) {
+          result.writeRun(start, run, 0, end - start);
+        }
+      }
+    });
+
+    result.reductions = bucket.reductions;
+
+    return result;
+  }
+
+  /**
+   * The shape of the product of several factors with some variables summed
+   * out, as computed by sumProduct. The scope is that of the product of the
+   * factors, in order, without the summed variables. The outer walker visits
+   * every cell of the result tracking the offset of the first cell of each
+   * operand's block, and the inner walker visits the offsets of the block
+   * relative to those first cells, wrapping back to 0 after each block.
+   */
+  static final class Bucket {
+    final int[] scope;
+    final int[] cardinality;
+    final int size;
+    final int blockSize;
+    final IndexWalker outer;
+    final IndexWalker inner;
+    final List<Event> reductions;
+
+    Bucket(DiscreteFactor[] operands, List<String> variables) {
+      // Merge the scopes as product would, splitting off the summed variables
+      BitSet seen = new BitSet();
+      BitSet summed = new BitSet();
+      for(String variable : variables) {
+        int id = VariableRegistry.find(variable);
+        if(id >= 0) {
+          summed.set(id);
         }
       }
 
-      newValues[i] = this.values[(int)thisIdx.toArray()[0]] * other.values[(int)otherIdx.toArray()[0]];
+      IntArrayList keptScope = new IntArrayList();
+      IntArrayList keptCardinality = new IntArrayList();
+      IntArrayList summedScope = new IntArrayList();
+      IntArrayList summedCardinality = new IntArrayList();
+      Set<Event> reductions = Sets.newLinkedHashSet();
+      for(DiscreteFactor factor : operands) {
+        for(int i = 0;i < factor.scope.length;++i) {
+          int v = factor.scope[i];
+          if(!seen.get(v)) {
+            seen.set(v);
+            if(summed.get(v)) {
+              summedScope.add(v);
+              summedCardinality.add(factor.cardinality[i]);
+            } else {
+              keptScope.add(v);
+              keptCardinality.add(factor.cardinality[i]);
+            }
+          }
+        }
+        reductions.addAll(factor.reductions);
+      }
+
+      this.scope = keptScope.toIntArray();
+      this.cardinality = keptCardinality.toIntArray();
+      int[] blockScope = summedScope.toIntArray();
+      int[] blockCardinality = summedCardinality.toIntArray();
+
+      int[][] outerStrides = new int[operands.length][];
+      int[][] innerStrides = new int[operands.length][];
+      for(int t = 0;t < operands.length;++t) {
+        outerStrides[t] = operands[t].stridesFor(this.scope);
+        innerStrides[t] = operands[t].stridesFor(blockScope);
+      }
+
+      this.size = product(this.cardinality);
+      this.blockSize = product(blockCardinality);
+      this.outer = new IndexWalker(this.cardinality, outerStrides);
+      this.inner = new IndexWalker(blockCardinality, innerStrides);
+      this.reductions = Lists.newArrayList(reductions);
     }
+  }
+
+  /**
+   * @return the number of operand cells a product or sum-out must read
+   * before its table is split into chunks computed in parallel
+   */
+  public static int getParallelThreshold() {
+    return ParallelRange.getThreshold();
+  }
 
-    result.setValues(newValues);
+  /**
+   * Set the amount of work above which product, marginalize and sumProduct
+   * split their table into chunks that are computed on the common
+   * ForkJoinPool. Results do not depend on the threshold.
+   *
+   * @param cells the number of operand cells read, must be positive
+   */
+  public static void setParallelThreshold(int cells) {
+    ParallelRange.setThreshold(cells);
+  }
 
-    Set<Event> reductions =
-        Sets.union(Sets.newHashSet(result.reductions),
-            Sets.newHashSet(other.reductions));
-    result.reductions = Lists.newArrayList(reductions);
+  int size() {
+    return this.size;
+  }
 
-    return result;
+  /**
+   * Read a single cell. Subclasses that do not keep their values in the
+   * values array override this and the other storage hooks below.
+   */
+  double valueAt(int index) {
+    return this.values[index];
+  }
+
+  /**
+   * Copy length consecutive cells starting at from into dst at position at.
+   */
+  void copyRun(int from, double[] dst, int at, int length) {
+    System.arraycopy(this.values, from, dst, at, length);
+  }
+
+  /**
+   * @return the single precision table of this factor, or null if it does
+   * not keep one. A float table is never written in place, so factors may
+   * share it freely.
+   */
+  float[] floatTable() {
+    return null;
+  }
+
+  /**
+   * Return the factor that receives the result of an operation: this factor
+   * when operating in place, otherwise a factor of the same kind whose table
+   * will be replaced through setTable.
+   */
+  DiscreteFactor target(boolean inPlace) {
+    if(inPlace) {
+      return this;
+    } else if(this.getClass() == DiscreteFactor.class) {
+      // The table is about to be replaced, so skip copying it
+      DiscreteFactor result = new DiscreteFactor();
+      result.reductions.addAll(this.reductions);
+      return result;
+    }
+
+    return (DiscreteFactor) this.copy();
+  }
+
+  /**
+   * Give this factor a shape and a table of undefined contents, to be filled
+   * through writeRun. Subclasses that do not keep their values in the values
+   * array override this and writeRun, and leave values null.
+   */
+  void allocateTable(int[] scope, int[] cardinality) {
+    this.setShape(scope, cardinality);
+    this.values = FactorArena.allocate(this.size);
+    this.shared = false;
+  }
+
+  /**
+   * Store length cells of src, starting at from, into the table at position
+   * at. Calls for distinct cells may come from several threads at once.
+   */
+  void writeRun(int at, double[] src, int from, int length) {
+    System.arraycopy(src, from, this.values, at, length);
+  }
+
+  /**
+   * Replace the shape and values of this factor, taking ownership of all
+   * three arrays.
+   */
+  void setTable(int[] scope, int[] cardinality, double[] values) {
+    this.setShape(scope, cardinality);
+    this.values = values;
+    this.shared = false;
+  }
+
+  /**
+   * Make this factor use the table, shape and reductions of another factor.
+   * Both factors are marked as sharing their arrays, so whichever is written
+   * first takes a copy.
+   */
+  void shareTable(DiscreteFactor other) {
+    this.scope = other.scope;
+    this.pins = other.pins;
+    this.cardinality = other.cardinality;
+    this.strides = other.strides;
+    this.size = other.size;
+    this.values = other.values;
+    this.hash = other.hash;
+    this.reductions = Lists.newArrayList(other.reductions);
+    this.shared = true;
+    // Only write to other the first time, so that the queries of many threads
+    // can share a distribution without writing to it
+    if(!other.shared) {
+      other.shared = true;
+    }
+  }
+
+  /**
+   * Return the values for writing in place, first copying them if they are
+   * shared with another factor.
+   */
+  double[] mutableValues() {
+    if(this.shared) {
+      this.values = Arrays.copyOf(this.values, this.values.length);
+      this.shared = false;
+    }
+    this.hash = 0;
+
+    return this.values;
+  }
+
+  /**
+   * Called by subclasses that change their own storage in place.
+   */
+  void valuesChanged() {
+    this.hash = 0;
+  }
+
+  /**
+   * @return true if the table of this factor may be referenced by another
+   */
+  boolean isShared() {
+    return this.shared;
+  }
+
+  int[] scope() {
+    return this.scope;
+  }
+
+  int[] cardinality() {
+    return this.cardinality;
+  }
+
+  int[] strides() {
+    return this.strides;
+  }
+
+  List<Event> getReductions() {
+    return this.reductions;
+  }
+
+  /**
+   * The shape of this factor with some variables summed out. The outer walker
+   * visits every cell of the new table tracking the offset of the first old
+   * cell sharing its assignment, and the inner walker visits the offsets of
+   * the block of old cells relative to that first cell, wrapping back to 0
+   * after each block.
+   */
+  final class SumOut {
+    final int[] scope;
+    final int[] cardinality;
+    final int size;
+    final int blockSize;
+    final int[] summedScope;
+    final int[] summedCardinality;
+    final IndexWalker outer;
+    final IndexWalker inner;
+
+    SumOut(List<String> variables) {
+      int[] oldScope = DiscreteFactor.this.scope;
+      int[] oldCardinality = DiscreteFactor.this.cardinality;
+      int[] oldStrides = DiscreteFactor.this.strides;
+
+      boolean[] summed = new boolean[oldScope.length];
+      int summedCount = 0;
+      for(String variable : variables) {
+        int vIdx = DiscreteFactor.this.indexOf(variable);
+        if(vIdx >= 0 && !summed[vIdx]) {
+          summed[vIdx] = true;
+          ++summedCount;
+        }
+      }
+
+      this.scope = new int[oldScope.length - summedCount];
+      this.cardinality = new int[this.scope.length];
+      int[] newStrides = new int[this.scope.length];
+      this.summedScope = new int[summedCount];
+      this.summedCardinality = new int[summedCount];
+      int[] summedStrides = new int[summedCount];
+      for(int i = 0, n = 0, m = 0;i < oldScope.length;++i) {
+        if(summed[i]) {
+          this.summedScope[m] = oldScope[i];
+          this.summedCardinality[m] = oldCardinality[i];
+          summedStrides[m++] = oldStrides[i];
+        } else {
+          this.scope[n] = oldScope[i];
+          this.cardinality[n] = oldCardinality[i];
+          newStrides[n++] = oldStrides[i];
+        }
+      }
+
+      this.size = product(this.cardinality);
+      this.blockSize = product(this.summedCardinality);
+      this.outer = new IndexWalker(this.cardinality, newStrides);
+      this.inner = new IndexWalker(this.summedCardinality, summedStrides);
+    }
+  }
+
+  /**
+   * The shape of this factor reduced by evidence. The observed variables fix
+   * the start of the slice, base, the trailing free variables form
+   * contiguous runs of runLength cells and the walker visits the offset of
+   * the start of each run relative to base, in the order of the new table.
+   */
+  final class Slice {
+    final int[] scope;
+    final int[] cardinality;
+    final int size;
+    final int base;
+    final int runLength;
+    final IndexWalker walker;
+
+    Slice(List<Event> events) {
+      int[] oldScope = DiscreteFactor.this.scope;
+      int[] oldCardinality = DiscreteFactor.this.cardinality;
+      int[] oldStrides = DiscreteFactor.this.strides;
+
+      int[] assignment = new int[oldScope.length];
+      Arrays.fill(assignment, -1);
+      for(Event event : events) {
+        int vIdx = DiscreteFactor.this.indexOf(event.getVariable());
+        Preconditions.checkArgument(vIdx >= 0,
+            String.format("%s is not in the scope of %s", event,
+                DiscreteFactor.this.factorString()));
+        Preconditions.checkArgument(event.getOutcome() != null,
+            String.format("%s has no outcome to reduce to", event));
+
+        int outcome = Integer.parseInt(event.getOutcome());
+        Preconditions.checkArgument(outcome >= 0 && outcome < oldCardinality[vIdx],
+            String.format("%s is outside the cardinality of %s", event, event.getVariable()));
+        assignment[vIdx] = outcome;
+      }
+
+      int base = 0;
+      int free = 0;
+      for(int i = 0;i < assignment.length;++i) {
+        if(assignment[i] >= 0) {
+          base += assignment[i] * oldStrides[i];
+        } else {
+          ++free;
+        }
+      }
+
+      int runStart = assignment.length;
+      while(runStart > 0 && assignment[runStart - 1] < 0) {
+        --runStart;
+      }
+      int walked = free - (assignment.length - runStart);
+
+      this.scope = new int[free];
+      this.cardinality = new int[free];
+      int[] walkedCardinality = new int[walked];
+      int[] walkedStrides = new int[walked];
+      for(int i = 0, n = 0;i < assignment.length;++i) {
+        if(assignment[i] < 0) {
+          this.scope[n] = oldScope[i];
+          this.cardinality[n] = oldCardinality[i];
+          if(i < runStart) {
+            walkedCardinality[n] = oldCardinality[i];
+            walkedStrides[n] = oldStrides[i];
+          }
+          ++n;
+        }
+      }
+
+      this.size = product(this.cardinality);
+      this.base = base;
+      this.runLength = runStart < assignment.length ?
+          oldStrides[runStart] * oldCardinality[runStart] : 1;
+      this.walker = new IndexWalker(walkedCardinality, walkedStrides);
+    }
+  }
+
+  private static int product(int[] cardinality) {
+    int size = 1;
+    for(int c : cardinality) {
+      size *= c;
+    }
+
+    return size;
   }
 }
@@ -0,0 +1,197 @@
+package factors.discrete;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.MapMaker;
+import factors.Factor;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-thread pool of value tables for intermediate factors. Tables are kept
+ * by exact length, since a factor's table always has exactly one cell per
+ * assignment. The kernels of DiscreteFactor take their tables from the
+ * arena of the calling thread. Releasing a factor that is no longer needed
+ * hands its table to the next kernel that needs one of the same length, so a
+ * query that repeats the shapes of an earlier one allocates almost no new
+ * tables.
+ *
+ * Only tables the arena has handed out, and that have not been returned
+ * since, are ever pooled. They are tracked by identity, so a table that was
+ * given to a factor from elsewhere, such as the table of a distribution, or
+ * one that is released twice through two factors, is left to the garbage
+ * collector rather than handed to another kernel while it is still in use.
+ *
+ * At most MAX_POOLED_BYTES are kept per thread, and at most the total pool
+ * limit across all threads, so that many query threads do not each hold
+ * their own 64MB. Tables released beyond either limit are left to the
+ * garbage collector. The bytes of the arena of a thread that has ended are
+ * returned to the total once the arena has been collected.
+ *
+ * @version 1.0.0
+ *
+ * @author Sean McMillan
+ */
+public final class FactorArena {
+  static final long MAX_POOLED_BYTES = 64L << 20;
+
+  private static final ThreadLocal<FactorArena> arena =
+      ThreadLocal.withInitial(FactorArena::new);
+
+  private static volatile long totalPoolLimit = 256L << 20;
+  private static final AtomicLong totalPooledBytes = new AtomicLong();
+
+  // Every live arena is tracked, and the tracker of a collected one is
+  // queued so that its bytes can be returned to the total
+  private static final Set<Tracker> trackers = ConcurrentHashMap.newKeySet();
+  private static final ReferenceQueue<FactorArena> collected = new ReferenceQueue<>();
+
+  // Tables handed out and not returned yet, compared by identity and held
+  // weakly so that tables which are never released are still collected
+  private static final Set<double[]> issued = Collections.newSetFromMap(
+      new MapMaker().weakKeys().<double[], Boolean>makeMap());
+
+  private final Map<Integer, ArrayDeque<double[]>> pool = new HashMap<>();
+  private final Tracker tracker;
+
+  /**
+   * The bytes pooled by an arena, kept apart from it so they are still known
+   * after the arena has been collected.
+   */
+  private static final class Tracker extends WeakReference<FactorArena> {
+    private long pooledBytes = 0;
+
+    Tracker(FactorArena arena) {
+      super(arena, collected);
+    }
+  }
+
+  private FactorArena() {
+    this.tracker = new Tracker(this);
+    trackers.add(this.tracker);
+  }
+
+  /**
+   * @param size the number of cells of the table
+   * @return a table of exactly size cells from the arena of this thread,
+   * whose contents are undefined
+   */
+  static double[] allocate(int size) {
+    FactorArena local = arena.get();
+    ArrayDeque<double[]> free = local.pool.get(size);
+    double[] table;
+    if(free != null && !free.isEmpty()) {
+      long bytes = (long) size * Double.BYTES;
+      local.tracker.pooledBytes -= bytes;
+      totalPooledBytes.addAndGet(-bytes);
+      table = free.pop();
+    } else {
+      table = new double[size];
+    }
+
+    issued.add(table);
+    return table;
+  }
+
+  /**
+   * Return the storage of a factor to the arena of this thread, or to the
+   * buffer pool if it is off-heap. The factor can not be used afterwards.
+   * A shared table, or one the arena did not hand out, is not pooled.
+   *
+   * @param factor the factor to release
+   */
+  public static void release(Factor factor) {
+    if(factor instanceof DirectDiscreteFactor) {
+      ((DirectDiscreteFactor) factor).close();
+      return;
+    } else if(!(factor instanceof DiscreteFactor)) {
+      return;
+    }
+
+    DiscreteFactor discrete = (DiscreteFactor) factor;
+    if(discrete.values != null && !discrete.isShared()) {
+      recycle(discrete.values);
+    }
+    discrete.values = null;
+  }
+
+  /**
+   * Return a table that is no longer referenced to the arena of this thread.
+   * A table the arena did not hand out, or has already been returned, is
+   * ignored.
+   */
+  static void recycle(double[] table) {
+    if(!issued.remove(table)) {
+      return;
+    }
+
+    FactorArena local = arena.get();
+    long bytes = (long) table.length * Double.BYTES;
+    if(local.tracker.pooledBytes + bytes > MAX_POOLED_BYTES) {
+      return;
+    }
+
+    reclaim();
+    if(totalPooledBytes.addAndGet(bytes) > totalPoolLimit) {
+      totalPooledBytes.addAndGet(-bytes);
+      return;
+    }
+
+    local.pool.computeIfAbsent(table.length, c -> new ArrayDeque<>()).push(table);
+    local.tracker.pooledBytes += bytes;
+  }
+
+  /**
+   * Return the bytes of the arenas of ended threads to the total.
+   */
+  private static void reclaim() {
+    Reference<? extends FactorArena> ref;
+    while((ref = collected.poll()) != null) {
+      Tracker tracker = (Tracker) ref;
+      trackers.remove(tracker);
+      totalPooledBytes.addAndGet(-tracker.pooledBytes);
+    }
+  }
+
+  /**
+   * @return the number of bytes held by the arena of this thread
+   */
+  public static long pooledBytes() {
+    return arena.get().tracker.pooledBytes;
+  }
+
+  /**
+   * @return the number of bytes held by the arenas of all threads
+   */
+  public static long totalPooledBytes() {
+    reclaim();
+    return totalPooledBytes.get();
+  }
+
+  /**
+   * @return the most bytes the arenas of all threads hold together
+   */
+  public static long getTotalPoolLimit() {
+    return totalPoolLimit;
+  }
+
+  /**
+   * Set the most bytes the arenas of all threads may hold together. Tables
+   * already pooled are kept, and later releases are dropped until the total
+   * is below the new limit.
+   *
+   * @param bytes the limit, must not be negative
+   */
+  public static void setTotalPoolLimit(long bytes) {
+    Preconditions.checkArgument(bytes >= 0, "limit must not be negative.");
+    totalPoolLimit = bytes;
+  }
+}
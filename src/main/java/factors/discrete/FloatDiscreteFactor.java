@@ -0,0 +1,303 @@
+package factors.discrete;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import factors.Factor;
+import primitives.Event;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Implementation of a discrete factor that stores its values in single
+ * precision, halving the memory and cache traffic of large tables. Values are
+ * widened to double whenever they are read, so sums and products are
+ * accumulated in double precision and only rounded when they are stored.
+ * The product of two float cells is exact in double, so two float tables are
+ * multiplied in single precision with the same result, and normalize scales
+ * by the single precision reciprocal of the sum.
+ *
+ * The scope, cardinality and layout of the values are those of a
+ * DiscreteFactor. The product of a float factor with any other dense factor
+ * is a float factor, its product with a log factor is a log factor. Reduce,
+ * marginalize and product read and write float tables directly, and a float
+ * factor made from a single precision distribution shares its table, so the
+ * tables of a float network are never widened to double.
+ *
+ * @see DiscreteFactor
+ *
+ * @version 1.0.0
+ *
+ * @author Sean McMillan
+ */
+public class FloatDiscreteFactor extends DiscreteFactor {
+  private float[] floatValues;  // Never written in place, see floatTable
+
+  public FloatDiscreteFactor() {
+    // empty constructor, empty set with probability 1
+    this(Lists.newArrayList(),
+        Lists.newArrayList(), new float[]{1.0f});
+  }
+
+  /**
+   * @param variables the scope of the factor
+   * @param cardinality the cardinality of each variable
+   * @param values the values of the factor
+   */
+  public FloatDiscreteFactor(List<String> variables, List<Integer> cardinality,
+      float[] values) {
+    super();
+    this.setVariables(variables);
+    this.setCardinality(cardinality);
+    Preconditions.checkArgument(values.length == this.size(),
+        String.format("Incorrect size of values variables. Expecting array " +
+            "of size %d. Instead received array of size %d.",
+            this.size(), values.length));
+    this.values = null;
+    this.floatValues = Arrays.copyOf(values, values.length);
+  }
+
+  /**
+   * Create a single precision copy of a factor, rounding each value to the
+   * nearest float. A factor that already keeps a float table, such as a
+   * single precision distribution, shares it rather than being copied.
+   *
+   * @param factor the factor to convert
+   * @return a FloatDiscreteFactor with the same scope and reductions
+   */
+  public static FloatDiscreteFactor fromFactor(DiscreteFactor factor) {
+    if(factor instanceof FloatDiscreteFactor) {
+      return (FloatDiscreteFactor) factor;
+    }
+
+    float[] table = factor.floatTable();
+    if(table != null) {
+      FloatDiscreteFactor result = emptyCopy(factor);
+      result.setFloatTable(factor.scope().clone(), factor.cardinality().clone(), table);
+      return result;
+    }
+
+    double[] doubleValues = new double[factor.size()];
+    factor.copyRun(0, doubleValues, 0, doubleValues.length);
+
+    FloatDiscreteFactor result = emptyCopy(factor);
+    result.setTable(factor.scope().clone(), factor.cardinality().clone(), doubleValues);
+
+    return result;
+  }
+
+  /**
+   * @return a double precision copy of this factor
+   */
+  public DiscreteFactor toDiscreteFactor() {
+    double[] doubleValues = new double[this.size()];
+    this.copyRun(0, doubleValues, 0, doubleValues.length);
+
+    DiscreteFactor result = new DiscreteFactor();
+    result.getReductions().addAll(this.getReductions());
+    result.setTable(this.scope().clone(), this.cardinality().clone(), doubleValues);
+
+    return result;
+  }
+
+  @Override double valueAt(int index) {
+    return this.floatValues[index];
+  }
+
+  @Override void copyRun(int from, double[] dst, int at, int length) {
+    for(int i = 0;i < length;++i) {
+      dst[at + i] = this.floatValues[from + i];
+    }
+  }
+
+  @Override float[] floatTable() {
+    return this.floatValues;
+  }
+
+  @Override DiscreteFactor target(boolean inPlace) {
+    return inPlace ? this : emptyCopy(this);
+  }
+
+  @Override void allocateTable(int[] scope, int[] cardinality) {
+    this.setShape(scope, cardinality);
+    this.values = null;
+    this.floatValues = new float[this.size()];
+  }
+
+  @Override void writeRun(int at, double[] src, int from, int length) {
+    for(int i = 0;i < length;++i) {
+      this.floatValues[at + i] = (float) src[from + i];
+    }
+  }
+
+  @Override void setTable(int[] scope, int[] cardinality, double[] values) {
+    float[] table = new float[values.length];
+    for(int i = 0;i < values.length;++i) {
+      table[i] = (float) values[i];
+    }
+    FactorArena.recycle(values);
+    this.setFloatTable(scope, cardinality, table);
+  }
+
+  /**
+   * Replace the shape and values of this factor, taking ownership of all
+   * three arrays.
+   */
+  private void setFloatTable(int[] scope, int[] cardinality, float[] table) {
+    this.setShape(scope, cardinality);
+    this.values = null;
+    this.floatValues = table;
+    this.valuesChanged();
+  }
+
+  @Override public String toString() {
+    return this.toDiscreteFactor().toString();
+  }
+
+  /**
+   * The copy shares the float table of this factor, which is replaced rather
+   * than written whenever either factor changes.
+   */
+  @Override public Factor copy() {
+    FloatDiscreteFactor result = emptyCopy(this);
+    result.setFloatTable(this.scope(), this.cardinality(), this.floatValues);
+
+    return result;
+  }
+
+  @Override public Factor normalize(boolean inPlace) {
+    double sum = 0.0;
+    for(float v : this.floatValues) {
+      sum += v;
+    }
+
+    // The table may be shared, so the result is always written to a new one
+    float scale = (float) (1.0 / sum);
+    float[] newValues = new float[this.floatValues.length];
+    for(int i = 0;i < newValues.length;++i) {
+      newValues[i] = this.floatValues[i] * scale;
+    }
+
+    FloatDiscreteFactor factor = (FloatDiscreteFactor) this.target(inPlace);
+    factor.setFloatTable(this.scope(), this.cardinality(), newValues);
+
+    return factor;
+  }
+
+  @Override public Factor reduce(List<Event> events, boolean inPlace) {
+    Slice slice = new Slice(events);
+
+    float[] newValues = new float[slice.size];
+    for(int i = 0;i < newValues.length;i += slice.runLength) {
+      System.arraycopy(this.floatValues, slice.base + slice.walker.offset(0),
+          newValues, i, slice.runLength);
+      slice.walker.next();
+    }
+
+    FloatDiscreteFactor result = (FloatDiscreteFactor) this.target(inPlace);
+    result.setFloatTable(slice.scope, slice.cardinality, newValues);
+    result.getReductions().addAll(events);
+
+    return result;
+  }
+
+  @Override public Factor marginalize(List<String> variables, boolean inPlace) {
+    SumOut sumOut = new SumOut(variables);
+
+    // As DiscreteFactor.marginalize, summing in double and rounding each
+    // cell of the new table once
+    float[] table = this.floatValues;
+    float[] newValues = new float[sumOut.size];
+    ParallelRange.run(sumOut.size, (long) sumOut.size * sumOut.blockSize, (from, to) -> {
+      IndexWalker outer = sumOut.outer.at(from);
+      IndexWalker inner = sumOut.inner.at(0);
+      for(int i = from;i < to;++i) {
+        int base = outer.offset(0);
+        double sum = 0.0;
+        for(int j = 0;j < sumOut.blockSize;++j) {
+          sum += table[base + inner.offset(0)];
+          inner.next();
+        }
+        newValues[i] = (float) sum;
+        outer.next();
+      }
+    });
+
+    FloatDiscreteFactor result = (FloatDiscreteFactor) this.target(inPlace);
+    result.setFloatTable(sumOut.scope, sumOut.cardinality, newValues);
+
+    return result;
+  }
+
+  @Override public DiscreteFactor product(DiscreteFactor other) {
+    if(other instanceof LogDiscreteFactor) {
+      return LogDiscreteFactor.product(this, other);
+    }
+
+    return product(this, other);
+  }
+
+  /**
+   * Multiply two dense factors, at least one of which is expected to be a
+   * FloatDiscreteFactor. Each cell is multiplied in double precision and
+   * rounded once when it is stored.
+   *
+   * @param left the factor whose variables come first in the result
+   * @param right the factor whose remaining variables are appended
+   * @return a new FloatDiscreteFactor that is the factor product of left and
+   * right
+   */
+  static FloatDiscreteFactor product(DiscreteFactor left, DiscreteFactor right) {
+    FloatDiscreteFactor result = new FloatDiscreteFactor();
+    IndexWalker walker = left.productShape(right, result);
+
+    float[] newValues = new float[result.size()];
+    float[] leftTable = left.floatTable();
+    float[] rightTable = right.floatTable();
+    ParallelRange.run(newValues.length, newValues.length, (from, to) -> {
+      IndexWalker chunk = walker.at(from);
+      if(leftTable != null && rightTable != null) {
+        for(int i = from;i < to;++i) {
+          newValues[i] = leftTable[chunk.offset(0)] * rightTable[chunk.offset(1)];
+          chunk.next();
+        }
+        return;
+      }
+
+      for(int i = from;i < to;++i) {
+        newValues[i] = (float) (left.valueAt(chunk.offset(0)) *
+            right.valueAt(chunk.offset(1)));
+        chunk.next();
+      }
+    });
+
+    result.floatValues = newValues;
+
+    return result;
+  }
+
+  /**
+   * Multiply factors together and sum variables out of the product as
+   * DiscreteFactor.sumProduct does, rounding the cells of the result into a
+   * float table in blocks so that no double table of the result is built.
+   *
+   * @param factors the factors to multiply
+   * @param variables the variables to sum out of the product
+   * @return a FloatDiscreteFactor that is the sum over variables of the factor
+   * product of factors, or a LogDiscreteFactor if any of factors is one
+   */
+  public static DiscreteFactor sumProduct(List<? extends DiscreteFactor> factors,
+      List<String> variables) {
+    return DiscreteFactor.sumProduct(factors, variables, size -> new FloatDiscreteFactor());
+  }
+
+  /**
+   * @return a float factor with the reductions of factor and no table yet
+   */
+  private static FloatDiscreteFactor emptyCopy(DiscreteFactor factor) {
+    FloatDiscreteFactor result = new FloatDiscreteFactor();
+    result.getReductions().addAll(factor.getReductions());
+
+    return result;
+  }
+}
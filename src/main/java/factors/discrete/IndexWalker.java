@@ -0,0 +1,108 @@
+package factors.discrete;
+
+/**
+ * Odometer over every assignment of a list of variables that keeps the linear
+ * offsets of one or more value tables in step with the assignment. Each table
+ * is described by its stride for every walked variable, where a stride of 0
+ * means the table does not contain the variable.
+ *
+ * The last variable moves fastest, matching the layout of the values in a
+ * DiscreteFactor, so a table whose strides are exactly those of the walked
+ * scope sees its offsets advance by one on every step.
+ *
+ * @version 1.0.0
+ *
+ * @author Sean McMillan
+ */
+final class IndexWalker {
+  private final int[] cardinality;
+  private final int[][] strides;
+  private final int[][] rewinds;
+  private final int[] counter;
+  private final int[] offsets;
+
+  /**
+   * @param cardinality the cardinality of every walked variable
+   * @param strides for each table, the stride of every walked variable
+   */
+  IndexWalker(int[] cardinality, int[]... strides) {
+    this.cardinality = cardinality;
+    this.strides = strides;
+    this.rewinds = new int[strides.length][cardinality.length];
+    this.counter = new int[cardinality.length];
+    this.offsets = new int[strides.length];
+
+    for(int t = 0;t < strides.length;++t) {
+      for(int d = 0;d < cardinality.length;++d) {
+        this.rewinds[t][d] = strides[t][d] * (cardinality[d] - 1);
+      }
+    }
+  }
+
+  /**
+   * @param table the index of the table as passed to the constructor
+   * @return the offset into the table for the current assignment
+   */
+  int offset(int table) {
+    return this.offsets[table];
+  }
+
+  /**
+   * Advance to the next assignment, wrapping around to the first one after
+   * the last.
+   */
+  void next() {
+    for(int d = this.counter.length - 1;d >= 0;--d) {
+      if(++this.counter[d] < this.cardinality[d]) {
+        for(int t = 0;t < this.offsets.length;++t) {
+          this.offsets[t] += this.strides[t][d];
+        }
+        return;
+      }
+
+      this.counter[d] = 0;
+      for(int t = 0;t < this.offsets.length;++t) {
+        this.offsets[t] -= this.rewinds[t][d];
+      }
+    }
+  }
+
+  /**
+   * Return a new walker over the same tables positioned at an assignment, so
+   * that a range of the walk can be started without stepping through the
+   * assignments before it.
+   *
+   * @param index the position of the assignment in the walk
+   * @return a walker whose current assignment is the index-th one
+   */
+  IndexWalker at(int index) {
+    IndexWalker walker = new IndexWalker(this.cardinality, this.strides);
+    for(int d = this.cardinality.length - 1;d >= 0;--d) {
+      walker.counter[d] = index % this.cardinality[d];
+      index /= this.cardinality[d];
+      for(int t = 0;t < this.offsets.length;++t) {
+        walker.offsets[t] += walker.counter[d] * this.strides[t][d];
+      }
+    }
+
+    return walker;
+  }
+
+  /**
+   * Compute the stride of every variable in a row-major table, the last
+   * variable having a stride of 1.
+   *
+   * @param cardinality the cardinality of each variable in the table
+   * @return the stride of each variable
+   */
+  static int[] strides(int[] cardinality) {
+    int[] strides = new int[cardinality.length];
+    int stride = 1;
+    for(int d = cardinality.length - 1;d >= 0;--d) {
+      strides[d] = stride;
+      stride *= cardinality[d];
+    }
+
+    return strides;
+  }
+}
@@ -33,9 +33,12 @@ public class JointProbabilityDistribution extends DiscreteFactor {
     }
   }
 
+  private JointProbabilityDistribution(JointProbabilityDistribution other) {
+    super(other);
+  }
+
   public Factor copy() {
-    return new JointProbabilityDistribution(this.getScope(), this.getCardinality(),
-        this.getValues());
+    return new JointProbabilityDistribution(this);
   }
 
   public double[] getValues() {
@@ -0,0 +1,304 @@
+package factors.discrete;
+
+import com.google.common.collect.Lists;
+import factors.Factor;
+import primitives.Event;
+
+import java.util.List;
+
+/**
+ * Implementation of a discrete factor whose values are stored as natural
+ * logarithms. Products become sums and summing out a variable becomes a
+ * log-sum-exp, so long chains of small probabilities do not underflow.
+ *
+ * The scope, cardinality and layout of the values are those of a
+ * DiscreteFactor; only the domain of the values differs. The product of a
+ * log factor with any other factor, on either side, is a log factor: the
+ * other operand is converted first.
+ *
+ * @see DiscreteFactor
+ *
+ * @version 1.0.0
+ *
+ * @author Sean McMillan
+ */
+public class LogDiscreteFactor extends DiscreteFactor {
+  public LogDiscreteFactor() {
+    // empty constructor, empty set with probability 1 = e^0
+    this(Lists.newArrayList(),
+        Lists.newArrayList(), new double[]{0.0});
+  }
+
+  /**
+   * @param variables the scope of the factor
+   * @param cardinality the cardinality of each variable
+   * @param logValues the natural logarithm of each value of the factor
+   */
+  public LogDiscreteFactor(List<String> variables, List<Integer> cardinality,
+      double[] logValues) {
+    super(variables, cardinality, logValues);
+  }
+
+  private LogDiscreteFactor(LogDiscreteFactor other) {
+    super(other);
+  }
+
+  /**
+   * Create a log factor from a factor over probabilities.
+   *
+   * @param factor the factor to convert
+   * @return a LogDiscreteFactor with the same scope and reductions
+   */
+  public static LogDiscreteFactor fromFactor(DiscreteFactor factor) {
+    if(factor instanceof LogDiscreteFactor) {
+      return (LogDiscreteFactor) factor;
+    }
+
+    // Read through the storage hooks, the values of sparse, float and
+    // off-heap factors are not in the values array
+    double[] logValues = new double[factor.size()];
+    factor.copyRun(0, logValues, 0, logValues.length);
+    for(int i = 0;i < logValues.length;++i) {
+      logValues[i] = Math.log(logValues[i]);
+    }
+
+    LogDiscreteFactor result = new LogDiscreteFactor();
+    result.setTable(factor.scope().clone(), factor.cardinality().clone(), logValues);
+    result.getReductions().addAll(factor.getReductions());
+
+    return result;
+  }
+
+  /**
+   * Convert back to a factor over probabilities. The values are shifted by
+   * the largest log value before exponentiating, so the result is only
+   * proportional to the represented factor and should be normalized.
+   *
+   * @return a DiscreteFactor proportional to this factor
+   */
+  public DiscreteFactor toDiscreteFactor() {
+    double max = max(this.values);
+    double shift = Double.isInfinite(max) ? 0.0 : max;
+
+    double[] newValues = new double[this.values.length];
+    for(int i = 0;i < newValues.length;++i) {
+      newValues[i] = Math.exp(this.values[i] - shift);
+    }
+
+    DiscreteFactor result = new DiscreteFactor(this.getScope(), this.getCardinality(),
+        newValues);
+    result.getReductions().addAll(this.getReductions());
+
+    return result;
+  }
+
+  @Override public String factorString() {
+    return "log " + super.factorString();
+  }
+
+  @Override public Factor copy() {
+    return new LogDiscreteFactor(this);
+  }
+
+  @Override public double getValue(Event event) {
+    List<String> others = this.getScope();
+    int outcome = outcomeIndex(event);
+    if(!others.remove(event.getVariable()) || outcome < 0) {
+      return 0.0;
+    }
+
+    LogDiscreteFactor marginal = (LogDiscreteFactor) this.marginalize(others, false);
+    if(outcome >= marginal.values.length) {
+      return 0.0;
+    }
+
+    return Math.exp(marginal.values[outcome]);
+  }
+
+  /**
+   * A factor whose cells are all zero, log value -inf, has no normalization
+   * and is left as it is.
+   */
+  @Override public Factor normalize(boolean inPlace) {
+    LogDiscreteFactor factor = inPlace ? this :
+        (LogDiscreteFactor) this.copy();
+
+    double logSum = logSumExp(factor.values);
+    if(logSum == Double.NEGATIVE_INFINITY) {
+      return factor;
+    }
+
+    double[] table = factor.mutableValues();
+    for(int i = 0;i < table.length;++i) {
+      table[i] -= logSum;
+    }
+
+    return factor;
+  }
+
+  @Override public Factor marginalize(List<String> variables, boolean inPlace) {
+    SumOut sumOut = new SumOut(variables);
+
+    // Two passes over each block: find the largest value, then sum the
+    // exponentials shifted by it so that none of them overflow or underflow
+    double[] table = this.values;
+    double[] newValues = new double[sumOut.size];
+    ParallelRange.run(sumOut.size, 2L * sumOut.size * sumOut.blockSize, (from, to) -> {
+      IndexWalker outer = sumOut.outer.at(from);
+      IndexWalker inner = sumOut.inner.at(0);
+      for(int i = from;i < to;++i) {
+        int base = outer.offset(0);
+        double max = Double.NEGATIVE_INFINITY;
+        for(int j = 0;j < sumOut.blockSize;++j) {
+          max = Math.max(max, table[base + inner.offset(0)]);
+          inner.next();
+        }
+
+        if(Double.isInfinite(max)) {
+          newValues[i] = max;
+        } else {
+          double sum = 0.0;
+          for(int j = 0;j < sumOut.blockSize;++j) {
+            sum += Math.exp(table[base + inner.offset(0)] - max);
+            inner.next();
+          }
+          newValues[i] = max + Math.log(sum);
+        }
+        outer.next();
+      }
+    });
+
+    LogDiscreteFactor result = inPlace ? this : (LogDiscreteFactor) this.copy();
+    result.setTable(sumOut.scope, sumOut.cardinality, newValues);
+
+    return result;
+  }
+
+  /**
+   * Multiply this factor with another by adding their log values.
+   *
+   * @param other the factor to multiply with, converted to a log factor if it
+   *              is not one already
+   * @return a new LogDiscreteFactor that is the factor product of this and other
+   */
+  @Override public LogDiscreteFactor product(DiscreteFactor other) {
+    return product(this, other);
+  }
+
+  /**
+   * Multiply two factors in log space, converting whichever of them is not a
+   * log factor. Every product with a log factor goes through here, whichever
+   * side it is on, so log values are never multiplied as probabilities.
+   *
+   * @param left the factor whose variables come first in the result
+   * @param right the factor whose remaining variables are appended
+   * @return a new LogDiscreteFactor that is the factor product of left and
+   * right
+   */
+  static LogDiscreteFactor product(DiscreteFactor left, DiscreteFactor right) {
+    LogDiscreteFactor logLeft = fromFactor(left);
+    LogDiscreteFactor logRight = fromFactor(right);
+    LogDiscreteFactor result = new LogDiscreteFactor();
+    IndexWalker walker = logLeft.productShape(logRight, result);
+
+    double[] leftTable = logLeft.values;
+    double[] rightTable = logRight.values;
+    double[] newValues = new double[result.size()];
+    ParallelRange.run(newValues.length, newValues.length, (from, to) -> {
+      IndexWalker chunk = walker.at(from);
+      for(int i = from;i < to;++i) {
+        newValues[i] = leftTable[chunk.offset(0)] + rightTable[chunk.offset(1)];
+        chunk.next();
+      }
+    });
+
+    result.values = newValues;
+
+    return result;
+  }
+
+  /**
+   * Multiply factors together in log space and sum variables out of the
+   * product in a single pass, as DiscreteFactor.sumProduct does for
+   * probabilities. Each cell of the result is a log-sum-exp over its block
+   * of the product, computed as the block is streamed: a running maximum and
+   * a sum of exponentials relative to it, rescaled whenever the maximum
+   * grows. The product of the bucket is therefore never built, only the
+   * result and the log tables of the operands that are not log factors.
+   *
+   * @param factors the factors to multiply, converted to log factors if they
+   *                are not ones already
+   * @param variables the variables to sum out of the product
+   * @return a new LogDiscreteFactor that is the sum over variables of the
+   * factor product of factors
+   */
+  public static LogDiscreteFactor sumProduct(List<? extends DiscreteFactor> factors,
+      List<String> variables) {
+    LogDiscreteFactor[] operands = new LogDiscreteFactor[factors.size()];
+    double[][] tables = new double[operands.length][];
+    for(int t = 0;t < operands.length;++t) {
+      operands[t] = fromFactor(factors.get(t));
+      tables[t] = operands[t].values;
+    }
+
+    Bucket bucket = new Bucket(operands, variables);
+    double[] newValues = new double[bucket.size];
+    ParallelRange.run(bucket.size, (long) bucket.size * bucket.blockSize, (from, to) -> {
+      IndexWalker outer = bucket.outer.at(from);
+      IndexWalker inner = bucket.inner.at(0);
+      int[] base = new int[operands.length];
+      for(int i = from;i < to;++i) {
+        for(int t = 0;t < operands.length;++t) {
+          base[t] = outer.offset(t);
+        }
+
+        double max = Double.NEGATIVE_INFINITY;
+        double sum = 0.0;
+        for(int j = 0;j < bucket.blockSize;++j) {
+          double cell = 0.0;
+          for(int t = 0;t < operands.length;++t) {
+            cell += tables[t][base[t] + inner.offset(t)];
+          }
+          if(cell > max) {
+            sum = sum * Math.exp(max - cell) + 1.0;
+            max = cell;
+          } else if(cell > Double.NEGATIVE_INFINITY) {
+            sum += Math.exp(cell - max);
+          }
+          inner.next();
+        }
+        newValues[i] = Double.isInfinite(max) ? max : max + Math.log(sum);
+        outer.next();
+      }
+    });
+
+    LogDiscreteFactor result = new LogDiscreteFactor();
+    result.setTable(bucket.scope, bucket.cardinality, newValues);
+    result.getReductions().addAll(bucket.reductions);
+
+    return result;
+  }
+
+  private static double max(double[] values) {
+    double max = Double.NEGATIVE_INFINITY;
+    for(double v : values) {
+      max = Math.max(max, v);
+    }
+
+    return max;
+  }
+
+  private static double logSumExp(double[] values) {
+    double max = max(values);
+    if(Double.isInfinite(max)) {
+      return max;
+    }
+
+    double sum = 0.0;
+    for(double v : values) {
+      sum += Math.exp(v - max);
+    }
+
+    return max + Math.log(sum);
+  }
+}
@@ -0,0 +1,112 @@
+package factors.discrete;
+
+import factors.Factor;
+
+import java.nio.DoubleBuffer;
+
+/**
+ * A discrete factor that reads its values from a read-only buffer, such as
+ * the slice of a memory mapped network file holding the table of a
+ * distribution. The buffer is shared with the distribution it was made from
+ * and is never written: the first write to the factor copies the table to
+ * the heap and drops the buffer, and any table set through the storage hooks
+ * replaces it.
+ *
+ * Holding the buffer keeps the mapping it is a view of reachable, so the
+ * mapping stays valid for as long as the factor reads from it.
+ *
+ * @see ConditionalProbabilityDistribution
+ *
+ * @version 1.0.0
+ *
+ * @author Sean McMillan
+ */
+final class MappedDiscreteFactor extends DiscreteFactor {
+  private DoubleBuffer table;  // Null once the table has moved to the heap
+
+  /**
+   * Create a factor with the shape and reductions of other reading its values
+   * from table.
+   */
+  MappedDiscreteFactor(DiscreteFactor other, DoubleBuffer table) {
+    super(other);
+    this.table = table;
+  }
+
+  @Override double valueAt(int index) {
+    return this.table != null ? this.table.get(index) : super.valueAt(index);
+  }
+
+  @Override void copyRun(int from, double[] dst, int at, int length) {
+    if(this.table == null) {
+      super.copyRun(from, dst, at, length);
+      return;
+    }
+
+    copyRun(this.table, from, dst, at, length);
+  }
+
+  @Override DiscreteFactor target(boolean inPlace) {
+    if(inPlace) {
+      return this;
+    }
+
+    DiscreteFactor result = new DiscreteFactor();
+    result.getReductions().addAll(this.getReductions());
+
+    return result;
+  }
+
+  @Override void allocateTable(int[] scope, int[] cardinality) {
+    this.table = null;
+    super.allocateTable(scope, cardinality);
+  }
+
+  @Override void setTable(int[] scope, int[] cardinality, double[] values) {
+    this.table = null;
+    super.setTable(scope, cardinality, values);
+  }
+
+  @Override double[] mutableValues() {
+    if(this.table != null) {
+      this.setTable(this.scope(), this.cardinality(), toHeap(this.table));
+    }
+
+    return super.mutableValues();
+  }
+
+  /**
+   * The kernel of DiscreteFactor reads the heap table, so the table is moved
+   * there first.
+   */
+  @Override public Factor normalize(boolean inPlace) {
+    if(this.table != null) {
+      this.mutableValues();
+    }
+    return super.normalize(inPlace);
+  }
+
+  @Override public Factor copy() {
+    return this.table != null ? new MappedDiscreteFactor(this, this.table) : super.copy();
+  }
+
+  /**
+   * Copy length consecutive cells of a buffer starting at from into dst at
+   * position at, without moving the position of the buffer.
+   */
+  static void copyRun(DoubleBuffer table, int from, double[] dst, int at, int length) {
+    DoubleBuffer view = table.duplicate();
+    view.position(from);
+    view.get(dst, at, length);
+  }
+
+  /**
+   * @return a heap copy of the whole of a buffer
+   */
+  static double[] toHeap(DoubleBuffer table) {
+    double[] values = new double[table.limit()];
+    copyRun(table, 0, values, 0, values.length);
+
+    return values;
+  }
+}
@@ -0,0 +1,101 @@
+package factors.discrete;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import primitives.Event;
+import primitives.VariableRegistry;
+
+import java.util.List;
+
+import static util.Misc.joinPair;
+
+/**
+ * The result of maximizing variables out of a factor: the factor of the
+ * largest values, and for every cell of it a back-pointer to the assignment
+ * of the maximized variables that produced the value.
+ *
+ * @see DiscreteFactor#maxMarginalize(List)
+ *
+ * @version 1.0.0
+ *
+ * @author Sean McMillan
+ */
+public class MaxMarginal {
+  private final DiscreteFactor factor;
+  private final String[] maximized;
+  private final int[] maximizedCardinality;
+  private final int[] backPointers;
+
+  /**
+   * @param factor the max-marginal factor
+   * @param maximized the ids of the maximized variables in scope order
+   * @param maximizedCardinality the cardinality of each maximized variable
+   * @param backPointers for every cell of factor, the row-major position of
+   *                     the best assignment of the maximized variables
+   */
+  MaxMarginal(DiscreteFactor factor, int[] maximized, int[] maximizedCardinality,
+      int[] backPointers) {
+    this.factor = factor;
+    this.maximized = VariableRegistry.names(maximized);
+    this.maximizedCardinality = maximizedCardinality;
+    this.backPointers = backPointers;
+  }
+
+  /**
+   * @return the factor of the largest values over the remaining variables
+   */
+  public DiscreteFactor getFactor() {
+    return this.factor;
+  }
+
+  /**
+   * @return the maximized variables in the order they appeared in the factor
+   */
+  public List<String> getMaximized() {
+    return Lists.newArrayList(this.maximized);
+  }
+
+  /**
+   * Find the best assignment of the maximized variables given an assignment
+   * of the remaining variables. Ties go to the first assignment in row-major
+   * order.
+   *
+   * @param assignment events assigning an outcome to every variable in the
+   *                   scope of getFactor, other events are ignored
+   * @return an event for each maximized variable, in getMaximized order
+   */
+  public List<Event> argmax(List<Event> assignment) {
+    int[] scope = this.factor.scope();
+    int[] cardinality = this.factor.cardinality();
+    int[] strides = this.factor.strides();
+
+    int index = 0;
+    for(int d = 0;d < scope.length;++d) {
+      String variable = VariableRegistry.name(scope[d]);
+      String outcome = null;
+      for(Event event : assignment) {
+        if(event.getVariable().equals(variable)) {
+          outcome = event.getOutcome();
+        }
+      }
+      Preconditions.checkArgument(outcome != null,
+          String.format("No outcome for %s in the assignment.", variable));
+
+      int value = Integer.parseInt(outcome);
+      Preconditions.checkArgument(value >= 0 && value < cardinality[d],
+          String.format("%s=%s is outside the cardinality of %s", variable, outcome, variable));
+      index += value * strides[d];
+    }
+
+    // Decode the row-major position, the last maximized variable fastest
+    int pointer = this.backPointers[index];
+    Event[] events = new Event[this.maximized.length];
+    for(int d = this.maximized.length - 1;d >= 0;--d) {
+      int outcome = pointer % this.maximizedCardinality[d];
+      pointer /= this.maximizedCardinality[d];
+      events[d] = new Event(joinPair(this.maximized[d], outcome, "="));
+    }
+
+    return Lists.newArrayList(events);
+  }
+}
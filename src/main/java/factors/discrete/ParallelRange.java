@@ -0,0 +1,87 @@
+package factors.discrete;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits the cells of a factor table into chunks that are computed on the
+ * common ForkJoinPool when the work of a kernel is at least the parallel
+ * threshold, and on the calling thread otherwise. Every cell is computed by
+ * exactly one chunk in the same order as a sequential run, so the results
+ * do not depend on how the range was split.
+ *
+ * @version 1.0.0
+ *
+ * @author Sean McMillan
+ */
+final class ParallelRange {
+  private static final int MIN_CHUNK = 1 << 14;
+
+  private static volatile int threshold = 1 << 22;
+
+  /**
+   * A kernel that computes the cells [from, to) of a table.
+   */
+  interface Kernel {
+    void compute(int from, int to);
+  }
+
+  private ParallelRange() {
+  }
+
+  static int getThreshold() {
+    return threshold;
+  }
+
+  static void setThreshold(int cells) {
+    Preconditions.checkArgument(cells > 0, "threshold must be positive.");
+    threshold = cells;
+  }
+
+  /**
+   * Compute every cell of a table of size cells.
+   *
+   * @param size the number of cells in the table
+   * @param work the number of operand cells read to compute the table
+   * @param kernel the computation of a range of cells
+   */
+  static void run(int size, long work, Kernel kernel) {
+    ForkJoinPool pool = ForkJoinPool.commonPool();
+    if(work < threshold || size < 2 * MIN_CHUNK || pool.getParallelism() < 2) {
+      kernel.compute(0, size);
+      return;
+    }
+
+    int chunk = Math.max(MIN_CHUNK, size / (pool.getParallelism() * 4));
+    pool.invoke(new Chunk(kernel, 0, size, chunk));
+  }
+
+  private static final class Chunk extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final Kernel kernel;
+    private final int from;
+    private final int to;
+    private final int chunk;
+
+    Chunk(Kernel kernel, int from, int to, int chunk) {
+      this.kernel = kernel;
+      this.from = from;
+      this.to = to;
+      this.chunk = chunk;
+    }
+
+    @Override protected void compute() {
+      if(this.to - this.from <= this.chunk) {
+        this.kernel.compute(this.from, this.to);
+        return;
+      }
+
+      int mid = (this.from + this.to) >>> 1;
+      invokeAll(new Chunk(this.kernel, this.from, mid, this.chunk),
+          new Chunk(this.kernel, mid, this.to, this.chunk));
+    }
+  }
+}
@@ -0,0 +1,466 @@
+package factors.discrete;
+
+import com.google.common.base.Preconditions;
+import factors.Factor;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import primitives.Event;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Implementation of a discrete factor that only stores its non-zero values,
+ * as an ascending array of indices into the dense table and the values at
+ * those indices. Products, marginalization and reduction only visit the
+ * stored values, so their cost scales with the number of non-zero cells.
+ *
+ * Operations that are not done in place return a plain DiscreteFactor once
+ * more than DENSE_FILL of the cells of their result are non-zero.
+ *
+ * @see DiscreteFactor
+ *
+ * @version 1.0.0
+ *
+ * @author Sean McMillan
+ */
+public class SparseDiscreteFactor extends DiscreteFactor {
+  public static final double DENSE_FILL = 0.5;
+
+  private int[] indices;
+  private double[] nonZeros;
+
+  private SparseDiscreteFactor() {
+    super();
+  }
+
+  /**
+   * @param variables the scope of the factor
+   * @param cardinality the cardinality of each variable
+   * @param indices the ascending indices of the non-zero cells in the layout
+   *                of a DiscreteFactor with the same scope
+   * @param values the values of the cells at indices
+   */
+  public SparseDiscreteFactor(List<String> variables, List<Integer> cardinality,
+      int[] indices, double[] values) {
+    super();
+    Preconditions.checkArgument(indices.length == values.length,
+        "indices and values must have the same size.");
+
+    this.setVariables(variables);
+    this.setCardinality(cardinality);
+    for(int i = 0;i < indices.length;++i) {
+      Preconditions.checkArgument(indices[i] >= 0 && indices[i] < this.size() &&
+          (i == 0 || indices[i - 1] < indices[i]),
+          "indices must be ascending and within the size of the factor.");
+    }
+
+    this.values = null;
+    this.indices = Arrays.copyOf(indices, indices.length);
+    this.nonZeros = Arrays.copyOf(values, values.length);
+  }
+
+  /**
+   * Create a sparse factor holding the non-zero values of a factor.
+   *
+   * @param factor the factor to convert
+   * @return a SparseDiscreteFactor with the same scope and reductions
+   */
+  public static SparseDiscreteFactor fromFactor(DiscreteFactor factor) {
+    if(factor instanceof SparseDiscreteFactor) {
+      return (SparseDiscreteFactor) factor;
+    }
+
+    IntArrayList newIndices = new IntArrayList();
+    DoubleArrayList newValues = new DoubleArrayList();
+    for(int i = 0;i < factor.size();++i) {
+      double value = factor.valueAt(i);
+      if(value != 0.0) {
+        newIndices.add(i);
+        newValues.add(value);
+      }
+    }
+
+    SparseDiscreteFactor result = new SparseDiscreteFactor();
+    result.setEntries(factor.scope(), factor.cardinality(),
+        newIndices.toIntArray(), newValues.toDoubleArray());
+    result.getReductions().addAll(factor.getReductions());
+
+    return result;
+  }
+
+  /**
+   * @return a DiscreteFactor holding every cell of this factor
+   */
+  public DiscreteFactor toDiscreteFactor() {
+    double[] dense = new double[this.size()];
+    for(int i = 0;i < this.indices.length;++i) {
+      dense[this.indices[i]] = this.nonZeros[i];
+    }
+
+    return dense(this.scope(), this.cardinality(), dense, this.getReductions());
+  }
+
+  /**
+   * @return the number of stored non-zero cells
+   */
+  public int nonZeroCount() {
+    return this.indices.length;
+  }
+
+  @Override public String toString() {
+    return this.toDiscreteFactor().toString();
+  }
+
+  @Override public Factor copy() {
+    SparseDiscreteFactor df = this.emptyCopy();
+    df.setEntries(this.scope(), this.cardinality(),
+        Arrays.copyOf(this.indices, this.indices.length),
+        Arrays.copyOf(this.nonZeros, this.nonZeros.length));
+
+    return df;
+  }
+
+  /**
+   * @return a sparse factor with no entries yet but the reductions of this
+   */
+  private SparseDiscreteFactor emptyCopy() {
+    SparseDiscreteFactor df = new SparseDiscreteFactor();
+    df.getReductions().addAll(this.getReductions());
+
+    return df;
+  }
+
+  @Override public double getValue(Event event) {
+    int vIdx = this.indexOf(event.getVariable());
+    int outcome = outcomeIndex(event);
+    if(vIdx < 0 || outcome < 0) {
+      return 0.0;
+    }
+
+    int stride = this.strides()[vIdx];
+    int card = this.cardinality()[vIdx];
+    double sum = 0.0;
+    for(int i = 0;i < this.indices.length;++i) {
+      if((this.indices[i] / stride) % card == outcome) {
+        sum += this.nonZeros[i];
+      }
+    }
+
+    return sum;
+  }
+
+  @Override public Factor normalize(boolean inPlace) {
+    SparseDiscreteFactor factor = inPlace ? this :
+        (SparseDiscreteFactor) this.copy();
+
+    double sum = 0.0;
+    for(double v : factor.nonZeros) {
+      sum += v;
+    }
+    for(int i = 0;i < factor.nonZeros.length;++i) {
+      factor.nonZeros[i] /= sum;
+    }
+    factor.valuesChanged();
+
+    return factor;
+  }
+
+  @Override public Factor reduce(List<Event> events, boolean inPlace) {
+    int[] scope = this.scope();
+    int[] cardinality = this.cardinality();
+    int[] strides = this.strides();
+
+    int[] assignment = new int[scope.length];
+    Arrays.fill(assignment, -1);
+    int free = scope.length;
+    for(Event event : events) {
+      int vIdx = this.indexOf(event.getVariable());
+      Preconditions.checkArgument(vIdx >= 0,
+          String.format("%s is not in the scope of %s", event, this.factorString()));
+      Preconditions.checkArgument(event.getOutcome() != null,
+          String.format("%s has no outcome to reduce to", event));
+
+      int outcome = Integer.parseInt(event.getOutcome());
+      Preconditions.checkArgument(outcome >= 0 && outcome < cardinality[vIdx],
+          String.format("%s is outside the cardinality of %s", event, event.getVariable()));
+      if(assignment[vIdx] < 0) {
+        --free;
+      }
+      assignment[vIdx] = outcome;
+    }
+
+    int[] newScope = new int[free];
+    int[] newCardinality = new int[free];
+    for(int i = 0, n = 0;i < scope.length;++i) {
+      if(assignment[i] < 0) {
+        newScope[n] = scope[i];
+        newCardinality[n++] = cardinality[i];
+      }
+    }
+    int[] newStrides = IndexWalker.strides(newCardinality);
+
+    // Keep the cells matching the evidence, the new indices stay ascending
+    IntArrayList newIndices = new IntArrayList();
+    DoubleArrayList newValues = new DoubleArrayList();
+    for(int i = 0;i < this.indices.length;++i) {
+      int newIndex = 0;
+      boolean matches = true;
+      for(int d = 0, n = 0;d < scope.length && matches;++d) {
+        int c = (this.indices[i] / strides[d]) % cardinality[d];
+        if(assignment[d] < 0) {
+          newIndex += c * newStrides[n++];
+        } else {
+          matches = c == assignment[d];
+        }
+      }
+
+      if(matches) {
+        newIndices.add(newIndex);
+        newValues.add(this.nonZeros[i]);
+      }
+    }
+
+    SparseDiscreteFactor result = inPlace ? this : this.emptyCopy();
+    result.getReductions().addAll(events);
+
+    return result.finish(newScope, newCardinality, newIndices.toIntArray(),
+        newValues.toDoubleArray(), !inPlace);
+  }
+
+  @Override public Factor marginalize(List<String> variables, boolean inPlace) {
+    SumOut sumOut = new SumOut(variables);
+    int[] cardinality = this.cardinality();
+    int[] strides = this.strides();
+
+    // Map every old dimension to its stride in the new table, 0 if summed out
+    int[] newStrides = IndexWalker.strides(sumOut.cardinality);
+    int[] keptStrides = new int[cardinality.length];
+    for(int d = 0, n = 0;d < cardinality.length && n < sumOut.scope.length;++d) {
+      if(this.scope()[d] == sumOut.scope[n]) {
+        keptStrides[d] = newStrides[n++];
+      }
+    }
+
+    int[] newIndices;
+    double[] newValues;
+    if(this.indices.length >= DENSE_FILL * sumOut.size) {
+      // The result cannot be sparse, accumulate straight into a dense table
+      double[] dense = new double[sumOut.size];
+      for(int i = 0;i < this.indices.length;++i) {
+        dense[newIndex(this.indices[i], cardinality, strides, keptStrides)] += this.nonZeros[i];
+      }
+
+      if(!inPlace) {
+        return dense(sumOut.scope, sumOut.cardinality, dense, this.getReductions());
+      }
+
+      IntArrayList nzIndices = new IntArrayList();
+      DoubleArrayList nzValues = new DoubleArrayList();
+      for(int i = 0;i < dense.length;++i) {
+        if(dense[i] != 0.0) {
+          nzIndices.add(i);
+          nzValues.add(dense[i]);
+        }
+      }
+      newIndices = nzIndices.toIntArray();
+      newValues = nzValues.toDoubleArray();
+    } else {
+      Int2DoubleOpenHashMap sums = new Int2DoubleOpenHashMap(this.indices.length);
+      for(int i = 0;i < this.indices.length;++i) {
+        sums.addTo(newIndex(this.indices[i], cardinality, strides, keptStrides),
+            this.nonZeros[i]);
+      }
+
+      newIndices = sums.keySet().toIntArray();
+      Arrays.sort(newIndices);
+      newValues = new double[newIndices.length];
+      for(int i = 0;i < newIndices.length;++i) {
+        newValues[i] = sums.get(newIndices[i]);
+      }
+    }
+
+    SparseDiscreteFactor result = inPlace ? this : this.emptyCopy();
+
+    return result.finish(sumOut.scope, sumOut.cardinality, newIndices, newValues, !inPlace);
+  }
+
+  @Override public DiscreteFactor product(DiscreteFactor other) {
+    if(other instanceof LogDiscreteFactor) {
+      return LogDiscreteFactor.product(this, other);
+    }
+
+    return product(this, other);
+  }
+
+  /**
+   * Multiply two factors where at least one is sparse. The scope of the result
+   * is that of left.product(right). The non-zero cells of the sparser operand
+   * drive the product and cells of the other operand are looked up, so zero
+   * cells of the driving operand are never visited.
+   *
+   * @param left the factor whose variables come first in the result
+   * @param right the factor whose remaining variables are appended
+   * @return the product as a sparse factor, or dense if it is too full
+   */
+  static DiscreteFactor product(DiscreteFactor left, DiscreteFactor right) {
+    SparseDiscreteFactor result = new SparseDiscreteFactor();
+    left.productShape(right, result);
+
+    SparseDiscreteFactor driver;
+    DiscreteFactor other;
+    if(!(left instanceof SparseDiscreteFactor)) {
+      driver = (SparseDiscreteFactor) right;
+      other = left;
+    } else if(!(right instanceof SparseDiscreteFactor) ||
+        ((SparseDiscreteFactor) left).indices.length <= ((SparseDiscreteFactor) right).indices.length) {
+      driver = (SparseDiscreteFactor) left;
+      other = right;
+    } else {
+      driver = (SparseDiscreteFactor) right;
+      other = left;
+    }
+
+    // Strides of the driver's variables in the result and in the other
+    // operand, then a walker over the result variables the driver lacks
+    int[] driverCardinality = driver.cardinality();
+    int[] driverStrides = driver.strides();
+    int[] resultStrides = result.stridesFor(driver.scope());
+    int[] otherStrides = other.stridesFor(driver.scope());
+
+    int[] missing = new int[result.scope().length - driver.scope().length];
+    int[] missingCardinality = new int[missing.length];
+    for(int d = 0, m = 0;d < result.scope().length;++d) {
+      if(driver.indexOf(result.scope()[d]) < 0) {
+        missing[m] = result.scope()[d];
+        missingCardinality[m++] = result.cardinality()[d];
+      }
+    }
+    int[] missingResultStrides = result.stridesFor(missing);
+    int missingSize = result.size() / driver.size();
+    IndexWalker walker = new IndexWalker(missingCardinality, missingResultStrides,
+        other.stridesFor(missing));
+
+    IntArrayList newIndices = new IntArrayList();
+    DoubleArrayList newValues = new DoubleArrayList();
+    for(int i = 0;i < driver.indices.length;++i) {
+      int resultBase = 0;
+      int otherBase = 0;
+      for(int d = 0;d < driverCardinality.length;++d) {
+        int c = (driver.indices[i] / driverStrides[d]) % driverCardinality[d];
+        resultBase += c * resultStrides[d];
+        otherBase += c * otherStrides[d];
+      }
+
+      for(int j = 0;j < missingSize;++j) {
+        double otherValue = other.valueAt(otherBase + walker.offset(1));
+        if(otherValue != 0.0) {
+          newIndices.add(resultBase + walker.offset(0));
+          newValues.add(driver.nonZeros[i] * otherValue);
+        }
+        walker.next();
+      }
+    }
+
+    int[] indices = newIndices.toIntArray();
+    double[] values = newValues.toDoubleArray();
+    if(driver != left) {
+      // Only a left driver emits cells in the order of the result's layout
+      sortEntries(indices, values);
+    }
+
+    return result.finish(result.scope(), result.cardinality(), indices, values, true);
+  }
+
+  private static int newIndex(int index, int[] cardinality, int[] strides, int[] newStrides) {
+    int newIndex = 0;
+    for(int d = 0;d < cardinality.length;++d) {
+      newIndex += ((index / strides[d]) % cardinality[d]) * newStrides[d];
+    }
+
+    return newIndex;
+  }
+
+  @Override double valueAt(int index) {
+    int position = Arrays.binarySearch(this.indices, index);
+    return position < 0 ? 0.0 : this.nonZeros[position];
+  }
+
+  @Override void copyRun(int from, double[] dst, int at, int length) {
+    Arrays.fill(dst, at, at + length, 0.0);
+    int position = Arrays.binarySearch(this.indices, from);
+    for(int i = position < 0 ? -position - 1 : position;
+        i < this.indices.length && this.indices[i] < from + length;++i) {
+      dst[at + this.indices[i] - from] = this.nonZeros[i];
+    }
+  }
+
+  /**
+   * Kernels inherited from DiscreteFactor, such as maxMarginalize, give a
+   * dense result. The sparse kernels never go through target.
+   */
+  @Override DiscreteFactor target(boolean inPlace) {
+    Preconditions.checkArgument(!inPlace,
+        "A sparse factor can not receive a dense result in place.");
+
+    DiscreteFactor result = new DiscreteFactor();
+    result.getReductions().addAll(this.getReductions());
+
+    return result;
+  }
+
+  private static void sortEntries(int[] indices, double[] values) {
+    it.unimi.dsi.fastutil.Arrays.quickSort(0, indices.length,
+        new AbstractIntComparator() {
+          @Override public int compare(int a, int b) {
+            return Integer.compare(indices[a], indices[b]);
+          }
+        },
+        (a, b) -> {
+          int index = indices[a];
+          indices[a] = indices[b];
+          indices[b] = index;
+          double value = values[a];
+          values[a] = values[b];
+          values[b] = value;
+        });
+  }
+
+  /**
+   * Store the given shape and entries in this factor, or return them as a
+   * dense factor if that is allowed and they fill more than DENSE_FILL of the
+   * table.
+   */
+  private DiscreteFactor finish(int[] scope, int[] cardinality, int[] newIndices,
+      double[] newValues, boolean mayDensify) {
+    this.setEntries(scope, cardinality, newIndices, newValues);
+
+    if(mayDensify && newIndices.length > DENSE_FILL * this.size()) {
+      return this.toDiscreteFactor();
+    }
+
+    return this;
+  }
+
+  private void setEntries(int[] scope, int[] cardinality, int[] newIndices,
+      double[] newValues) {
+    this.setShape(Arrays.copyOf(scope, scope.length),
+        Arrays.copyOf(cardinality, cardinality.length));
+    this.values = null;
+    this.indices = newIndices;
+    this.nonZeros = newValues;
+  }
+
+  private static DiscreteFactor dense(int[] scope, int[] cardinality, double[] values,
+      List<Event> reductions) {
+    DiscreteFactor result = new DiscreteFactor();
+    result.setShape(Arrays.copyOf(scope, scope.length),
+        Arrays.copyOf(cardinality, cardinality.length));
+    result.values = values;
+    result.getReductions().addAll(reductions);
+
+    return result;
+  }
+}
@@ -0,0 +1,288 @@
+package inference.exact;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.graph.GraphBuilder;
+import com.google.common.graph.ImmutableGraph;
+import com.google.common.graph.MutableGraph;
+import com.google.common.primitives.Longs;
+import factors.discrete.ConditionalProbabilityDistribution;
+import models.BayesianNetwork;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * The structure of a variable elimination for one query signature: the
+ * variables that are kept and the variables that are observed, but not their
+ * outcomes. It holds everything that does not depend on the evidence values,
+ * so a query that repeats a signature only runs the factor kernels.
+ *
+ * Factors are numbered by slot. Slot i < getCPDs().size() is the factor of
+ * CPD i reduced by the evidence in its scope, and step k of the elimination
+ * multiplies the factors in its input slots, sums out its variable and puts
+ * the message in slot getCPDs().size() + k. The plan records the scope of
+ * every message and the number of cells of the product its step sums over,
+ * so the cost of a step is known before it runs.
+ *
+ * Every message is an input of at most one later step, so the steps form the
+ * elimination tree of the order. Steps are grouped into levels by their
+ * height in the tree: the steps of a level only read the messages of lower
+ * levels and can run at the same time.
+ *
+ * @version 1.0.0
+ *
+ * @author Sean McMillan
+ */
+final class EliminationPlan {
+  private final int revision;
+  private final List<String> order;
+  private final List<ConditionalProbabilityDistribution> cpds;
+  private final List<List<String>> observedByCpd;
+  private final List<String> variables;
+  private final List<int[]> inputs;
+  private final List<List<String>> messageScopes;
+  private final long[] work;
+  private final int[] remaining;
+  private final List<int[]> levels;
+
+  private EliminationPlan(int revision, List<String> order,
+      List<ConditionalProbabilityDistribution> cpds, List<List<String>> observedByCpd,
+      List<String> variables, List<int[]> inputs, List<List<String>> messageScopes,
+      long[] work, int[] remaining, List<int[]> levels) {
+    this.revision = revision;
+    this.order = order;
+    this.cpds = cpds;
+    this.observedByCpd = observedByCpd;
+    this.variables = variables;
+    this.inputs = inputs;
+    this.messageScopes = messageScopes;
+    this.work = work;
+    this.remaining = remaining;
+    this.levels = levels;
+  }
+
+  /**
+   * Compile a plan that sums out the variables of model in MIN_FILL order.
+   * Only the distributions that can change the answer are planned for, see
+   * BayesianNetwork.getRelevantCPDs, so barren nodes and nodes d-separated
+   * from the query by the evidence are never built or eliminated.
+   *
+   * @param model the network to plan for
+   * @param kept the variables that are not summed out
+   * @param observed the observed variables
+   * @return the plan
+   */
+  static EliminationPlan compile(BayesianNetwork model, Set<String> kept,
+      Set<String> observed) {
+    // The revision is read first so a plan is never older than the revision
+    // it records
+    int revision = model.getRevision();
+    List<ConditionalProbabilityDistribution> cpds = model.getRelevantCPDs(kept, observed);
+
+    // The moral graph of the relevant distributions, each family a clique
+    MutableGraph<String> graph = GraphBuilder.undirected().allowsSelfLoops(false).build();
+    for(ConditionalProbabilityDistribution cpd : cpds) {
+      List<String> family = cpd.getScope();
+      family.forEach(graph::addNode);
+      for(String u : family) {
+        for(String v : family) {
+          if(!u.equals(v)) {
+            graph.putEdge(u, v);
+          }
+        }
+      }
+    }
+    List<String> order = EliminationOrdering.getOrdering(
+        ImmutableGraph.copyOf(graph), EliminationOrdering.NodeCost.MIN_FILL);
+
+    return compile(revision, cpds, order, kept, observed);
+  }
+
+  private static EliminationPlan compile(int revision,
+      List<ConditionalProbabilityDistribution> cpds, List<String> order,
+      Set<String> kept, Set<String> observed) {
+    // The scope of each slot once the evidence is instantiated
+    List<Set<String>> scopes = Lists.newArrayList();
+    List<List<String>> observedByCpd = Lists.newArrayList();
+    List<Integer> live = Lists.newArrayList();
+    Map<String, Integer> cardinality = new HashMap<>();
+    for(int i = 0;i < cpds.size();++i) {
+      List<String> family = cpds.get(i).getScope();
+      List<Integer> familyCardinality = cpds.get(i).getCardinality();
+      for(int v = 0;v < family.size();++v) {
+        cardinality.put(family.get(v), familyCardinality.get(v));
+      }
+      Set<String> scope = Sets.newLinkedHashSet(family);
+      List<String> cpdObserved = Lists.newArrayList();
+      for(String v : family) {
+        if(observed.contains(v)) {
+          cpdObserved.add(v);
+          scope.remove(v);
+        }
+      }
+      scopes.add(scope);
+      observedByCpd.add(cpdObserved);
+      live.add(i);
+    }
+
+    List<String> variables = Lists.newArrayList();
+    List<int[]> inputs = Lists.newArrayList();
+    List<List<String>> messageScopes = Lists.newArrayList();
+    List<Long> work = Lists.newArrayList();
+    for(String Z : order) {
+      if(kept.contains(Z) || observed.contains(Z)) {
+        continue;
+      }
+
+      List<Integer> bucket = Lists.newArrayList();
+      Set<String> messageScope = Sets.newLinkedHashSet();
+      for(Integer slot : live) {
+        if(scopes.get(slot).contains(Z)) {
+          bucket.add(slot);
+          messageScope.addAll(scopes.get(slot));
+        }
+      }
+
+      if(bucket.isEmpty()) {
+        continue;
+      }
+
+      long cells = 1;
+      for(String v : messageScope) {
+        cells *= cardinality.get(v);
+      }
+
+      live.removeAll(bucket);
+      messageScope.remove(Z);
+      live.add(scopes.size());
+      scopes.add(messageScope);
+      variables.add(Z);
+      inputs.add(bucket.stream().mapToInt(Integer::intValue).toArray());
+      messageScopes.add(ImmutableList.copyOf(messageScope));
+      work.add(cells);
+    }
+
+    // A step is one level above the highest step whose message it reads
+    int[] height = new int[inputs.size()];
+    List<List<Integer>> levels = Lists.newArrayList();
+    for(int k = 0;k < inputs.size();++k) {
+      for(int slot : inputs.get(k)) {
+        if(slot >= cpds.size()) {
+          height[k] = Math.max(height[k], height[slot - cpds.size()] + 1);
+        }
+      }
+      while(levels.size() <= height[k]) {
+        levels.add(Lists.newArrayList());
+      }
+      levels.get(height[k]).add(k);
+    }
+
+    return new EliminationPlan(revision, order, cpds, observedByCpd, variables, inputs,
+        messageScopes, Longs.toArray(work),
+        live.stream().mapToInt(Integer::intValue).toArray(),
+        levels.stream()
+            .map(level -> level.stream().mapToInt(Integer::intValue).toArray())
+            .collect(Collectors.toList()));
+  }
+
+  /**
+   * @return true if the network has not changed since the plan was compiled
+   */
+  boolean isCurrent(BayesianNetwork model) {
+    return this.revision == model.getRevision();
+  }
+
+  /**
+   * @return the elimination order of every variable the plan was compiled with
+   */
+  List<String> getOrder() {
+    return this.order;
+  }
+
+  List<ConditionalProbabilityDistribution> getCPDs() {
+    return this.cpds;
+  }
+
+  /**
+   * @return the observed variables in the scope of CPD i
+   */
+  List<String> getObserved(int i) {
+    return this.observedByCpd.get(i);
+  }
+
+  int getStepCount() {
+    return this.variables.size();
+  }
+
+  /**
+   * @return the variable summed out by step k
+   */
+  String getVariable(int k) {
+    return this.variables.get(k);
+  }
+
+  /**
+   * @return the slots multiplied by step k
+   */
+  int[] getInputs(int k) {
+    return this.inputs.get(k);
+  }
+
+  /**
+   * @return the scope of the message of step k, in the order of the product
+   * of its inputs
+   */
+  List<String> getMessageScope(int k) {
+    return this.messageScopes.get(k);
+  }
+
+  /**
+   * @return the number of cells of the product summed over by step k, which
+   * is the number of operand cells each input is read for
+   */
+  long getWork(int k) {
+    return this.work[k];
+  }
+
+  /**
+   * @return the cells of the products summed over by the steps of a level
+   */
+  long getWork(int[] level) {
+    long total = 0;
+    for(int k : level) {
+      total += this.work[k];
+    }
+
+    return total;
+  }
+
+  /**
+   * @return the slots left once every step has run
+   */
+  int[] getRemaining() {
+    return this.remaining;
+  }
+
+  /**
+   * @return the step whose message is in slot, or -1 for the slot of a CPD
+   */
+  int getStep(int slot) {
+    return slot < this.cpds.size() ? -1 : slot - this.cpds.size();
+  }
+
+  /**
+   * @return the steps of each level, lowest first
+   */
+  List<int[]> getLevels() {
+    return this.levels;
+  }
+
+  int getSlotCount() {
+    return this.cpds.size() + this.variables.size();
+  }
+}
@@ -0,0 +1,134 @@
+package inference.exact;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import factors.discrete.DiscreteFactor;
+import models.BayesianNetwork;
+import primitives.Event;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A stateful inference session on a clique tree where evidence is entered and
+ * retracted one observation at a time. Potentials and messages are kept
+ * between queries. A change to the evidence of a variable only drops the
+ * potentials of the cliques whose CPDs hold the variable and the messages
+ * sent away from them, and a query only recomputes the messages its clique
+ * needs, so a localized change costs a fraction of a full calibration.
+ *
+ * A session is not thread safe.
+ *
+ * @see JunctionTree
+ *
+ * @version 1.0.0
+ *
+ * @author Sean McMillan
+ */
+public class InferenceSession implements AutoCloseable {
+  private final BayesianNetwork model;
+  private final JunctionTree tree;
+  private final Map<String, Event> evidence = new LinkedHashMap<>();
+  private JunctionTree.Calibration calibration;
+
+  public InferenceSession(BayesianNetwork model) {
+    this(model, new JunctionTree(model));
+  }
+
+  /**
+   * @param model the network
+   * @param tree a junction tree of model
+   */
+  public InferenceSession(BayesianNetwork model, JunctionTree tree) {
+    this.model = model;
+    this.tree = tree;
+    this.calibration = tree.newCalibration(Lists.newArrayList());
+  }
+
+  /**
+   * Observe an outcome of a variable, replacing any earlier observation of
+   * the variable.
+   *
+   * @param event the observation
+   */
+  public void setEvidence(Event event) {
+    Preconditions.checkArgument(this.model.getNodeCPD(event.getVariable()) != null,
+        String.format("%s is not in the network.", event.getVariable()));
+    Preconditions.checkArgument(event.getOutcome() != null,
+        String.format("%s has no outcome to observe", event));
+    int outcome = Integer.parseInt(event.getOutcome());
+    Preconditions.checkArgument(outcome >= 0 &&
+        outcome < this.model.getNodeCPD(event.getVariable()).getVariableCardinality(),
+        String.format("%s is outside the cardinality of %s", event, event.getVariable()));
+
+    Event previous = this.evidence.put(event.getVariable(), event);
+    if(previous == null || !previous.equals(event)) {
+      this.changed(event.getVariable());
+    }
+  }
+
+  /**
+   * Forget the observation of a variable. Retracting a variable that is not
+   * observed does nothing.
+   *
+   * @param variable the observed variable
+   */
+  public void retractEvidence(String variable) {
+    if(this.evidence.remove(variable) != null) {
+      this.changed(variable);
+    }
+  }
+
+  /**
+   * @return the current observations in the order they were made
+   */
+  public List<Event> getEvidence() {
+    return Lists.newArrayList(this.evidence.values());
+  }
+
+  /**
+   * @param variable an unobserved variable
+   * @return the posterior distribution of variable given the evidence
+   */
+  public DiscreteFactor marginal(String variable) {
+    Preconditions.checkArgument(this.model.getNodeCPD(variable) != null,
+        String.format("%s is not in the network.", variable));
+    Preconditions.checkArgument(!this.evidence.containsKey(variable),
+        String.format("%s is observed.", variable));
+
+    return this.calibration().marginal(Lists.newArrayList(variable));
+  }
+
+  /**
+   * @return the posterior distribution of every unobserved variable given
+   * the evidence
+   */
+  public Map<String, DiscreteFactor> marginals() {
+    return this.calibration().marginals();
+  }
+
+  /**
+   * Release the messages kept by the session.
+   */
+  @Override public void close() {
+    this.calibration.release();
+  }
+
+  private void changed(String variable) {
+    this.calibration().update(variable, this.getEvidence());
+  }
+
+  /**
+   * @return the calibration of the current tree, started over if the network
+   * has changed since the last query
+   */
+  private JunctionTree.Calibration calibration() {
+    if(!this.calibration.isCurrent()) {
+      this.calibration.release();
+      this.calibration = this.tree.newCalibration(this.getEvidence());
+    }
+
+    return this.calibration;
+  }
+}
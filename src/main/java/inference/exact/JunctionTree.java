@@ -0,0 +1,607 @@
+package inference.exact;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.graph.Graphs;
+import com.google.common.graph.ImmutableGraph;
+import com.google.common.graph.MutableGraph;
+import factors.discrete.ConditionalProbabilityDistribution;
+import factors.discrete.DiscreteFactor;
+import factors.discrete.FactorArena;
+import inference.Inference;
+import models.BayesianNetwork;
+import primitives.Event;
+import primitives.EventStream;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Collectors;
+
+/**
+ * Exact inference on a clique tree. The moral graph of the network is
+ * triangulated along a MIN_FILL elimination order, the maximal cliques of the
+ * triangulation are joined by a maximum weight spanning tree on the size of
+ * their separators, and each CPD is assigned to the smallest clique that
+ * holds its family.
+ *
+ * A calibration passes messages from the leaves to the root and back, after
+ * which the belief of every clique is proportional to the joint posterior of
+ * its variables, so the posterior of every variable costs about two runs of
+ * variable elimination. Messages of independent subtrees are computed in
+ * parallel on the common ForkJoinPool.
+ *
+ * A query whose variables are all in one clique only computes the messages
+ * into that clique, one pass towards it rather than a full calibration.
+ * Queries whose variables are not all in one clique, and MAP queries, are
+ * answered by VariableElimination.
+ *
+ * Queries are thread safe. The tree is never changed once built and is
+ * replaced when the network changes, and the messages of a query are local
+ * to it.
+ *
+ * @version 1.0.0
+ *
+ * @author Sean McMillan
+ */
+public class JunctionTree implements Inference {
+  private final BayesianNetwork model;
+  private final VariableElimination fallback;
+  private volatile Tree tree;
+
+  public JunctionTree(BayesianNetwork model) {
+    this.model = model;
+    this.fallback = new VariableElimination(model);
+    this.tree = new Tree(model.getSnapshot());
+  }
+
+  /**
+   * @return the variables of each clique
+   */
+  public List<List<String>> getCliques() {
+    return Collections.unmodifiableList(this.tree().cliques);
+  }
+
+  /**
+   * @return the index of the parent of each clique, -1 for the root
+   */
+  public int[] getParents() {
+    return this.tree().parent.clone();
+  }
+
+  /**
+   * @return the tree of the current revision of the network, rebuilt if the
+   * network has changed
+   */
+  private Tree tree() {
+    Tree t = this.tree;
+    if(t.revision != this.model.getRevision()) {
+      t = new Tree(this.model.getSnapshot());
+      this.tree = t;
+    }
+
+    return t;
+  }
+
+  /**
+   * @return a calibration of the current tree that computes its messages as
+   * they are needed
+   */
+  Calibration newCalibration(List<Event> evidence) {
+    return new Calibration(this.tree(), evidence);
+  }
+
+  /**
+   * The cliques of the network and the tree joining them. A tree is never
+   * changed once built, so queries on many threads can share it.
+   */
+  private static final class Tree {
+    private final int revision;
+    private final List<List<String>> cliques;
+    private final List<List<ConditionalProbabilityDistribution>> assigned;
+    private final int[] parent;  // -1 for the root, clique 0
+    private final List<List<Integer>> children;
+    private final List<List<String>> separators;  // Between a clique and its parent
+    private final int[] enter;  // Preorder position of each clique
+    private final int[] exit;  // Preorder position after the subtree of each clique
+
+    Tree(BayesianNetwork.Snapshot snapshot) {
+      this.revision = snapshot.getRevision();
+      List<ConditionalProbabilityDistribution> cpds = snapshot.getCPDs();
+
+      // The moral graph leaves out nodes without edges
+      MutableGraph<String> graph = Graphs.copyOf(snapshot.getMoralStructure());
+      cpds.forEach(cpd -> graph.addNode(cpd.getVariable()));
+      List<String> order = EliminationOrdering.getOrdering(
+          ImmutableGraph.copyOf(graph), EliminationOrdering.NodeCost.MIN_FILL);
+
+      // Triangulate, keeping the clique formed by each elimination that is not
+      // contained in an earlier one
+      MutableGraph<String> filled = Graphs.copyOf(graph);
+      List<Set<String>> maximal = Lists.newArrayList();
+      for(String node : order) {
+        Set<String> neighbors = Sets.newLinkedHashSet(filled.adjacentNodes(node));
+        Set<String> clique = Sets.newLinkedHashSet();
+        clique.add(node);
+        clique.addAll(neighbors);
+        if(maximal.stream().noneMatch(c -> c.containsAll(clique))) {
+          maximal.add(clique);
+        }
+
+        for(String n1 : neighbors) {
+          for(String n2 : neighbors) {
+            if(!n1.equals(n2)) {
+              filled.putEdge(n1, n2);
+            }
+          }
+        }
+        filled.removeNode(node);
+      }
+
+      int n = maximal.size();
+      this.cliques = maximal.stream()
+          .map(c -> Collections.unmodifiableList(Lists.newArrayList(c)))
+          .collect(Collectors.toList());
+
+      // Prim's algorithm on separator size from clique 0, disconnected parts of
+      // the network are joined by empty separators
+      this.parent = new int[n];
+      this.children = Lists.newArrayList();
+      this.separators = Lists.newArrayList();
+      int[] weight = new int[n];
+      boolean[] inTree = new boolean[n];
+      for(int i = 0;i < n;++i) {
+        this.parent[i] = -1;
+        weight[i] = -1;
+        this.children.add(Lists.newArrayList());
+        this.separators.add(Lists.newArrayList());
+      }
+      weight[0] = 0;
+      for(int k = 0;k < n;++k) {
+        int next = -1;
+        for(int i = 0;i < n;++i) {
+          if(!inTree[i] && (next < 0 || weight[i] > weight[next])) {
+            next = i;
+          }
+        }
+
+        inTree[next] = true;
+        if(this.parent[next] >= 0) {
+          this.children.get(this.parent[next]).add(next);
+          this.separators.set(next, Lists.newArrayList(
+              Sets.intersection(maximal.get(next), maximal.get(this.parent[next]))));
+        }
+        for(int i = 0;i < n;++i) {
+          int w = Sets.intersection(maximal.get(next), maximal.get(i)).size();
+          if(!inTree[i] && w > weight[i]) {
+            weight[i] = w;
+            this.parent[i] = next;
+          }
+        }
+      }
+
+      this.enter = new int[n];
+      this.exit = new int[n];
+      if(n > 0) {
+        this.number(0, 0);
+      }
+
+      this.assigned = Lists.newArrayList();
+      for(int i = 0;i < n;++i) {
+        this.assigned.add(Lists.newArrayList());
+      }
+      for(ConditionalProbabilityDistribution cpd : cpds) {
+        int best = -1;
+        for(int i = 0;i < n;++i) {
+          if(maximal.get(i).containsAll(cpd.getScope()) &&
+              (best < 0 || maximal.get(i).size() < maximal.get(best).size())) {
+            best = i;
+          }
+        }
+        this.assigned.get(best).add(cpd);
+      }
+    }
+
+    /**
+     * Number the cliques of the subtree at clique in preorder from position.
+     *
+     * @return the position after the subtree
+     */
+    private int number(int clique, int position) {
+      this.enter[clique] = position++;
+      for(int c : this.children.get(clique)) {
+        position = this.number(c, position);
+      }
+      this.exit[clique] = position;
+
+      return position;
+    }
+
+    /**
+     * Find a clique that holds every variable.
+     *
+     * @return the index of the clique, or -1 if there is none
+     */
+    int findClique(Collection<String> variables) {
+      for(int i = 0;i < this.cliques.size();++i) {
+        if(this.cliques.get(i).containsAll(variables)) {
+          return i;
+        }
+      }
+
+      return -1;
+    }
+
+    /**
+     * @return true if clique d is in the subtree rooted at clique i
+     */
+    boolean inSubtree(int i, int d) {
+      return this.enter[i] <= this.enter[d] && this.enter[d] < this.exit[i];
+    }
+  }
+
+  /**
+   * Compute the posterior marginal of every unobserved variable with a
+   * single calibration of the tree.
+   *
+   * @param evidence the observed events
+   * @return the normalized marginal of each unobserved variable
+   */
+  public Map<String, DiscreteFactor> marginals(List<Event> evidence) {
+    Calibration calibration = this.calibrate(this.tree(), evidence);
+    Map<String, DiscreteFactor> marginals = calibration.marginals();
+    calibration.release();
+
+    return marginals;
+  }
+
+  /**
+   * Calibrate the tree given evidence, passing messages towards clique 0 and
+   * then away from it.
+   */
+  private Calibration calibrate(Tree tree, List<Event> evidence) {
+    Calibration calibration = new Calibration(tree, evidence);
+    if(!tree.cliques.isEmpty()) {
+      ForkJoinPool.commonPool().invoke(calibration.new Collect(0));
+      ForkJoinPool.commonPool().invoke(calibration.new Distribute(0));
+    }
+
+    return calibration;
+  }
+
+  /**
+   * The potentials and messages of the tree given some evidence. up[i] is the
+   * message from clique i to its parent and down[i] the message from its
+   * parent to it. Potentials and messages are computed when first needed and
+   * kept until a change of evidence makes them stale, so a calibration can
+   * be updated one observation at a time. A calibration is only valid for the
+   * revision of the tree it was created on.
+   */
+  final class Calibration {
+    private final Tree tree;
+    private List<Event> evidence;
+    private final DiscreteFactor[] potentials;
+    private final DiscreteFactor[] up;
+    private final DiscreteFactor[] down;
+
+    Calibration(Tree tree, List<Event> evidence) {
+      int n = tree.cliques.size();
+      this.tree = tree;
+      this.evidence = evidence;
+      this.potentials = new DiscreteFactor[n];
+      this.up = new DiscreteFactor[n];
+      this.down = new DiscreteFactor[n];
+    }
+
+    /**
+     * @return true if the tree has not been rebuilt since this calibration
+     * was created
+     */
+    boolean isCurrent() {
+      return this.tree.revision == JunctionTree.this.model.getRevision();
+    }
+
+    /**
+     * Replace the evidence after the observation of variable has changed,
+     * dropping the potentials that hold variable and every message sent away
+     * from them. Messages sent towards those cliques stay valid.
+     */
+    void update(String variable, List<Event> evidence) {
+      this.evidence = evidence;
+      for(int d = 0;d < this.potentials.length;++d) {
+        boolean holds = tree.assigned.get(d).stream()
+            .anyMatch(cpd -> cpd.getScope().contains(variable));
+        if(!holds) {
+          continue;
+        }
+
+        FactorArena.release(this.potentials[d]);
+        this.potentials[d] = null;
+        for(int i = 0;i < this.potentials.length;++i) {
+          if(tree.parent[i] < 0) {
+            continue;
+          }
+
+          if(tree.inSubtree(i, d)) {
+            FactorArena.release(this.up[i]);
+            this.up[i] = null;
+          } else {
+            FactorArena.release(this.down[i]);
+            this.down[i] = null;
+          }
+        }
+      }
+    }
+
+    /**
+     * The product of the CPDs assigned to clique i reduced by the evidence.
+     */
+    DiscreteFactor potential(int i) {
+      if(this.potentials[i] != null) {
+        return this.potentials[i];
+      }
+
+      List<DiscreteFactor> factors = Lists.newArrayList();
+      for(ConditionalProbabilityDistribution cpd : tree.assigned.get(i)) {
+        DiscreteFactor f = cpd.toDiscreteFactor();
+        List<Event> events = Lists.newArrayList();
+        for(Event e : this.evidence) {
+          if(f.inScope(e.getVariable()) &&
+              events.stream().noneMatch(o -> o.getVariable().equals(e.getVariable()))) {
+            events.add(e);
+          }
+        }
+        factors.add(events.isEmpty() ? f : (DiscreteFactor) f.reduce(events, false));
+      }
+
+      this.potentials[i] = DiscreteFactor.sumProduct(factors, Lists.newArrayList());
+      factors.forEach(FactorArena::release);
+      return this.potentials[i];
+    }
+
+    /**
+     * @return the message from clique i to its parent
+     */
+    DiscreteFactor up(int i) {
+      if(this.up[i] == null) {
+        this.up[i] = this.message(i, tree.parent[i]);
+      }
+
+      return this.up[i];
+    }
+
+    /**
+     * @return the message from the parent of clique i to clique i
+     */
+    DiscreteFactor down(int i) {
+      if(this.down[i] == null) {
+        this.down[i] = this.message(tree.parent[i], i);
+      }
+
+      return this.down[i];
+    }
+
+    /**
+     * @return the potential of clique i and the messages it receives from
+     * every neighbour except exclude
+     */
+    List<DiscreteFactor> incoming(int i, int exclude) {
+      List<DiscreteFactor> factors = Lists.newArrayList(this.potential(i));
+      if(tree.parent[i] >= 0 && tree.parent[i] != exclude) {
+        factors.add(this.down(i));
+      }
+      for(int c : tree.children.get(i)) {
+        if(c != exclude) {
+          factors.add(this.up(c));
+        }
+      }
+
+      return factors;
+    }
+
+    /**
+     * @return the belief of clique i, the product of its potential and every
+     * message it receives
+     */
+    DiscreteFactor belief(int i) {
+      return DiscreteFactor.sumProduct(this.incoming(i, -1), Lists.newArrayList());
+    }
+
+    /**
+     * @return the message from clique i to neighbour j over their separator
+     */
+    DiscreteFactor message(int i, int j) {
+      int child = tree.parent[i] == j ? i : j;
+      List<String> summed = Lists.newArrayList(tree.cliques.get(i));
+      summed.removeAll(tree.separators.get(child));
+
+      return DiscreteFactor.sumProduct(this.incoming(i, j), summed);
+    }
+
+    /**
+     * @return the normalized marginal of each unobserved variable
+     */
+    Map<String, DiscreteFactor> marginals() {
+      Set<String> observed = this.evidence.stream()
+          .map(Event::getVariable)
+          .collect(Collectors.toSet());
+
+      Map<String, DiscreteFactor> marginals = new TreeMap<>();
+      for(int i = 0;i < tree.cliques.size();++i) {
+        List<String> remaining = tree.cliques.get(i).stream()
+            .filter(v -> !observed.contains(v) && !marginals.containsKey(v))
+            .collect(Collectors.toList());
+        if(remaining.isEmpty()) {
+          continue;
+        }
+
+        DiscreteFactor belief = this.belief(i);
+        for(String v : remaining) {
+          marginals.put(v, JunctionTree.marginal(belief, Lists.newArrayList(v)));
+        }
+        FactorArena.release(belief);
+      }
+
+      return marginals;
+    }
+
+    /**
+     * @return the normalized marginal of variables, which must all be in one
+     * clique
+     */
+    DiscreteFactor marginal(List<String> variables) {
+      int clique = this.tree.findClique(variables);
+      Preconditions.checkArgument(clique >= 0,
+          String.format("%s are not in one clique.", variables));
+      return this.marginal(clique, variables);
+    }
+
+    /**
+     * @return the normalized marginal of variables, which must all be in
+     * clique i
+     */
+    DiscreteFactor marginal(int i, List<String> variables) {
+      DiscreteFactor belief = this.belief(i);
+      DiscreteFactor result = JunctionTree.marginal(belief, variables);
+      FactorArena.release(belief);
+
+      return result;
+    }
+
+    void release() {
+      for(int i = 0;i < this.potentials.length;++i) {
+        FactorArena.release(this.potentials[i]);
+        FactorArena.release(this.up[i]);
+        FactorArena.release(this.down[i]);
+        this.potentials[i] = null;
+        this.up[i] = null;
+        this.down[i] = null;
+      }
+    }
+
+    /**
+     * Compute the messages towards the root of the subtree at clique.
+     */
+    final class Collect extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+
+      private final int clique;
+
+      Collect(int clique) {
+        this.clique = clique;
+      }
+
+      @Override protected void compute() {
+        List<Collect> subtrees = tree.children.get(this.clique).stream()
+            .map(Collect::new)
+            .collect(Collectors.toList());
+        invokeAll(subtrees);
+
+        potential(this.clique);
+        if(tree.parent[this.clique] >= 0) {
+          up(this.clique);
+        }
+      }
+    }
+
+    /**
+     * Compute the messages away from the root in the subtree at clique.
+     */
+    final class Distribute extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+
+      private final int clique;
+
+      Distribute(int clique) {
+        this.clique = clique;
+      }
+
+      @Override protected void compute() {
+        List<Distribute> subtrees = Lists.newArrayList();
+        for(int c : tree.children.get(this.clique)) {
+          down(c);
+          subtrees.add(new Distribute(c));
+        }
+        invokeAll(subtrees);
+      }
+    }
+  }
+
+  /**
+   * @return the normalized marginal of a belief over variables
+   */
+  private static DiscreteFactor marginal(DiscreteFactor belief, List<String> variables) {
+    List<String> others = belief.getScope().stream()
+        .filter(v -> !variables.contains(v))
+        .collect(Collectors.toList());
+    DiscreteFactor marginal = others.isEmpty() ?
+        (DiscreteFactor) belief.copy() :
+        (DiscreteFactor) belief.marginalize(others, false);
+
+    return (DiscreteFactor) marginal.normalize(true);
+  }
+
+  @Override public void printQuery(String queryString) {
+    EventStream es = new EventStream(queryString);
+
+    System.out.println(String.format("P(%s): %f",
+        es.toString(), this.query(queryString)));
+  }
+
+  @Override public void printQuery(String queryString, String annotation) {
+    System.out.println(annotation);
+    this.printQuery(queryString);
+  }
+
+  @Override public double query(String queryString) {
+    EventStream es = new EventStream(queryString);
+    return query(es.getEvents(), es.getObservations());
+  }
+
+  @Override public double query(List<Event> variables) {
+    return query(variables, Lists.newArrayList());
+  }
+
+  @Override public double query(List<Event> variables, List<Event> evidence) {
+    DiscreteFactor f = queryFactor(variables, evidence);
+
+    return variables.stream()
+        .mapToDouble(v -> f.getValue(v))
+        .reduce(1.0, (a, b) -> a * b);
+  }
+
+  @Override public DiscreteFactor queryFactor(List<Event> variables) {
+    return this.queryFactor(variables, Lists.newArrayList());
+  }
+
+  @Override public DiscreteFactor queryFactor(List<Event> variables, List<Event> evidence) {
+    Tree tree = this.tree();
+    List<String> names = variables.stream()
+        .map(Event::getVariable)
+        .distinct()
+        .collect(Collectors.toList());
+    boolean observed = evidence.stream()
+        .anyMatch(e -> names.contains(e.getVariable()));
+
+    int clique = observed ? -1 : tree.findClique(names);
+    if(clique < 0) {
+      return this.fallback.queryFactor(variables, evidence);
+    }
+
+    // Only the messages into the clique are computed, not the full calibration
+    Calibration calibration = new Calibration(tree, evidence);
+    DiscreteFactor result = calibration.marginal(clique, names);
+    calibration.release();
+
+    return result;
+  }
+
+  @Override public String mapQuery(List<Event> variables) {
+    return this.fallback.mapQuery(variables);
+  }
+
+  @Override public String mapQuery(List<Event> variables, List<Event> evidence) {
+    return this.fallback.mapQuery(variables, evidence);
+  }
+}
@@ -1,15 +1,21 @@
 package inference.exact;
 
 import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.*;
-import com.google.common.graph.Graphs;
-import com.google.common.graph.ImmutableGraph;
-import com.google.common.graph.MutableGraph;
 import factors.Factor;
 import factors.discrete.ConditionalProbabilityDistribution;
+import factors.discrete.DirectDiscreteFactor;
 import factors.discrete.DiscreteFactor;
+import factors.discrete.FactorArena;
+import factors.discrete.FloatDiscreteFactor;
+import factors.discrete.LogDiscreteFactor;
+import factors.discrete.MaxMarginal;
+import factors.discrete.SparseDiscreteFactor;
 import inference.Inference;
 import models.BayesianNetwork;
 import org.apache.commons.lang3.tuple.Pair;
@@ -19,13 +25,51 @@ import util.Misc;
 
 import javax.annotation.Nullable;
 import java.util.*;
+import java.util.function.BiFunction;
+import java.util.function.IntFunction;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+/**
+ * Exact inference by variable elimination.
+ *
+ * Queries are thread safe and lock free, so many threads can query one
+ * network at once. Each query keeps its factors local and reads the CPD
+ * tables of the network without writing to them, and elimination plans are
+ * immutable and kept in a concurrent cache that evicts the least recently
+ * used plan once it holds MAX_PLANS.
+ *
+ * @version 1.0.0
+ *
+ * @author Sean McMillan
+ */
 public class VariableElimination implements Inference {
-  private BayesianNetwork model;
+  public enum FactorType {
+    DENSE,  // Probabilities in a DiscreteFactor
+    LOG,  // Log probabilities in a LogDiscreteFactor, for long evidence chains
+    SPARSE,  // Non-zero probabilities in a SparseDiscreteFactor, for many zeros
+    OFF_HEAP,  // Large intermediate products in a DirectDiscreteFactor
+    FLOAT  // Single precision tables in a FloatDiscreteFactor, for memory
+  }
+
+  public static final String BATCH_VARIABLE = "#batch";  // Row dimension of batch queries
+
+  static final int MAX_PLANS = 1024;  // Plans kept before the least recently used is evicted
+  private static final long MIN_LEVEL_WORK = 1 << 14;  // Product cells of a level run in parallel
+  private static final int BATCH_BLOCK = 4096;  // Rows run through a plan at once
+
+  private final BayesianNetwork model;
+  private final FactorType factorType;
+  private final Cache<Pair<Set<String>, Set<String>>, EliminationPlan> plans =
+      CacheBuilder.newBuilder().concurrencyLevel(1).maximumSize(MAX_PLANS).build();
 
   public VariableElimination(BayesianNetwork model) {
+    this(model, FactorType.DENSE);
+  }
+
+  public VariableElimination(BayesianNetwork model, FactorType factorType) {
     this.model = model;
+    this.factorType = factorType;
   }
 
   public void printQuery(String queryString) {
@@ -69,102 +113,432 @@ public class VariableElimination implements Inference {
     return f;
   }
 
+  /**
+   * Answer a query from the posterior cache of model, running the
+   * elimination on a miss.
+   */
   private DiscreteFactor queryModel(BayesianNetwork model, List<Event> variables,
       List<Event> evidence) {
-    MutableGraph<String> graph = Graphs.copyOf(model.getMoralStructure());
-    List<String> eliminationOrder = EliminationOrdering.getOrdering(
-        ImmutableGraph.copyOf(graph),
-        EliminationOrdering.NodeCost.MIN_FILL);
-
-    HashMultimap<String, String> factors = HashMultimap.create();
-    Map<String, Factor> factorMap = new HashMap<>();
-    // Construct a factor for each CPD
-    for(ConditionalProbabilityDistribution cpd : model.getCPDs()) {
-      Factor f = cpd.toDiscreteFactor();
-      for(String v : cpd.getScope()) {
-        factors.put(v, f.factorString());
-      }
-      factorMap.put(f.factorString(), f);
+    Set<String> kept = variables.stream()
+        .map(Event::getVariable)
+        .collect(Collectors.toSet());
+    List<Event> observations = evidence == null ? Lists.newArrayList() : evidence;
+
+    return model.getPosterior("VariableElimination." + this.factorType, kept, observations,
+        () -> this.eliminate(model, kept, observations));
+  }
+
+  private DiscreteFactor eliminate(BayesianNetwork model, Set<String> kept,
+      List<Event> observations) {
+    List<DiscreteFactor> factors = this.execute(
+        this.plan(model, kept, observedVariables(observations)), observations);
+
+    // Return product of remaining factors and normalize
+    Factor result = this.multiplyAll(factors);
+    factors.forEach(FactorArena::release);
+    if(result instanceof LogDiscreteFactor) {
+      result = ((LogDiscreteFactor) result).toDiscreteFactor();
+    } else if(result instanceof SparseDiscreteFactor) {
+      result = ((SparseDiscreteFactor) result).toDiscreteFactor();
+    } else if(result instanceof FloatDiscreteFactor) {
+      result = ((FloatDiscreteFactor) result).toDiscreteFactor();
+    } else if(result instanceof DirectDiscreteFactor) {
+      DiscreteFactor heap = ((DirectDiscreteFactor) result).toDiscreteFactor();
+      FactorArena.release(result);
+      result = heap;
+    }
+
+    return (DiscreteFactor) result.normalize(true);
+  }
+
+  /**
+   * Find the plan that sums out every variable of model that is neither kept
+   * nor observed, compiling it on the first query of its signature or after
+   * the network has changed.
+   */
+  EliminationPlan plan(BayesianNetwork model, Set<String> kept, Set<String> observed) {
+    Pair<Set<String>, Set<String>> signature =
+        Pair.of(ImmutableSet.copyOf(kept), ImmutableSet.copyOf(observed));
+
+    EliminationPlan plan = this.plans.getIfPresent(signature);
+    if(plan == null || !plan.isCurrent(model)) {
+      plan = EliminationPlan.compile(model, kept, observed);
+      this.plans.put(signature, plan);
     }
 
-    Set<String> notX = Sets.newHashSet(variables.stream()
-      .map(Event::getVariable)
-    .collect(Collectors.toList()));
-    if(evidence != null) {
-      notX = Sets.union(notX, Sets.newHashSet(evidence.stream()
-          .map(Event::getVariable)
-          .collect(Collectors.toList())
-      ));
+    return plan;
+  }
+
+  /**
+   * Run a plan: construct a factor for each CPD, reduce it by the evidence
+   * in its scope and compute the message of each step.
+   *
+   * @return the factors left once every step has run
+   */
+  private List<DiscreteFactor> execute(EliminationPlan plan, List<Event> evidence) {
+    return this.run(plan, 1, i -> {
+      // Instantiate Observed Evidence, the first event of a variable wins
+      DiscreteFactor f = this.toFactor(plan.getCPDs().get(i));
+      List<String> observed = plan.getObserved(i);
+      if(observed.isEmpty()) {
+        return f;
+      }
+
+      List<Event> events = Lists.newArrayList();
+      for(String v : observed) {
+        evidence.stream()
+            .filter(e -> e.getVariable().equals(v))
+            .findFirst()
+            .ifPresent(events::add);
+      }
+      DiscreteFactor reduced = (DiscreteFactor) f.reduce(events, false);
+      FactorArena.release(f);
+      return reduced;
+    }, this::sumOut);
+  }
+
+  /**
+   * Run the steps of a plan level by level. The steps of a level eliminate
+   * independent branches of the elimination tree and run in parallel on the
+   * common ForkJoinPool, so the latency of a query follows the depth of the
+   * tree rather than the number of variables. A level whose products have
+   * fewer than MIN_LEVEL_WORK cells for all rows runs on the calling thread,
+   * as forking would cost more than its steps. A CPD factor is built by the
+   * step that reads it.
+   *
+   * @param plan the plan to run
+   * @param rows the evidence rows computed by each step, which scale its work
+   * @param instantiate builds the factor of CPD i
+   * @param sumOut computes the message of a bucket
+   * @return the factors left once every step has run
+   */
+  private List<DiscreteFactor> run(EliminationPlan plan, int rows,
+      IntFunction<DiscreteFactor> instantiate,
+      BiFunction<List<DiscreteFactor>, String, DiscreteFactor> sumOut) {
+    DiscreteFactor[] slots = new DiscreteFactor[plan.getSlotCount()];
+    IntFunction<DiscreteFactor> take = slot -> {
+      DiscreteFactor f = plan.getStep(slot) < 0 ? instantiate.apply(slot) : slots[slot];
+      slots[slot] = null;
+      return f;
+    };
+
+    // Eliminate variables in Z
+    for(int[] level : plan.getLevels()) {
+      IntStream steps = IntStream.of(level);
+      if(level.length > 1 && plan.getWork(level) * rows >= MIN_LEVEL_WORK) {
+        steps = steps.parallel();
+      }
+      steps.forEach(k -> {
+        List<DiscreteFactor> bucket = Arrays.stream(plan.getInputs(k))
+            .mapToObj(take)
+            .collect(Collectors.toList());
+        DiscreteFactor message = sumOut.apply(bucket, plan.getVariable(k));
+        bucket.forEach(FactorArena::release);
+        slots[plan.getCPDs().size() + k] = message;
+      });
     }
 
-    eliminationOrder.removeAll(notX);  // Factor into order creation
+    return Arrays.stream(plan.getRemaining())
+        .mapToObj(take)
+        .collect(Collectors.toList());
+  }
+
+  private static Set<String> observedVariables(List<Event> evidence) {
+    return evidence.stream()
+        .map(Event::getVariable)
+        .collect(Collectors.toSet());
+  }
 
-    // Instantiate Observed Evidence
-    for(Event e: evidence) {
-      Set<String> observed = factors.get(e.getVariable());
+  /**
+   * Compute the posterior of the query variables for many cases that observe
+   * the same variables. Every row runs through one elimination plan: the
+   * factors that hold observed variables get a first variable, BATCH_VARIABLE,
+   * with one outcome per row, so each kernel call computes a message for a
+   * whole block of rows. Batches always use dense tables.
+   *
+   * @param variables the query variables
+   * @param evidenceVariables the observed variables
+   * @param evidence for each case, the outcome of each evidence variable
+   * @return for each case, the joint posterior of the query variables in
+   * row-major order, the last query variable changing fastest
+   */
+  public double[][] queryBatch(List<String> variables, List<String> evidenceVariables,
+      int[][] evidence) {
+    Preconditions.checkArgument(!variables.isEmpty(), "There must be a query variable.");
+    Set<String> kept = Sets.newLinkedHashSet(variables);
+    Set<String> observed = Sets.newLinkedHashSet(evidenceVariables);
+    Preconditions.checkArgument(observed.size() == evidenceVariables.size(),
+        "Evidence variables must be distinct.");
+    int[] cardinality = new int[kept.size()];
+    int q = 0;
+    for(String v : Sets.union(kept, observed)) {
+      Preconditions.checkArgument(this.model.getNodeCPD(v) != null,
+          String.format("%s is not in the network.", v));
+      if(kept.contains(v)) {
+        Preconditions.checkArgument(!observed.contains(v),
+            String.format("%s is both queried and observed.", v));
+        cardinality[q++] = this.model.getNodeCPD(v).getVariableCardinality();
+      }
+    }
+    int width = 1;
+    for(int c : cardinality) {
+      width *= c;
+    }
 
-      for(String o : observed) {
-        Factor f = factorMap.get(o);
-        Factor reducedFactor = f.reduce(Lists.newArrayList(e), false);
+    EliminationPlan plan = this.plan(this.model, kept, observed);
+    double[][] posteriors = new double[evidence.length][];
+    for(int from = 0;from < evidence.length;from += BATCH_BLOCK) {
+      int[][] block = Arrays.copyOfRange(evidence, from,
+          Math.min(evidence.length, from + BATCH_BLOCK));
+      DiscreteFactor result = DiscreteFactor.sumProduct(
+          this.executeBatch(plan, evidenceVariables, block), Lists.newArrayList());
 
-        factors = HashMultimap.create(Multimaps.filterEntries(factors,
-          entry -> !(entry.getKey().equals(e.getVariable()) || entry.getValue().equals(o))));
+      // Look up every assignment of the query variables for every row
+      List<String> scope = result.getScope();
+      int[] position = new int[cardinality.length];
+      q = 0;
+      for(String v : kept) {
+        position[q++] = scope.indexOf(v);
+      }
+      int batch = scope.indexOf(BATCH_VARIABLE);
 
-        for(String v : reducedFactor.getScope()) {
-          factors.put(v, reducedFactor.factorString());
+      int[] assignments = new int[block.length * width * scope.size()];
+      for(int r = 0, at = 0;r < block.length;++r) {
+        for(int cell = 0;cell < width;++cell, at += scope.size()) {
+          if(batch >= 0) {
+            assignments[at + batch] = r;
+          }
+          for(int d = cardinality.length - 1, rest = cell;d >= 0;--d) {
+            assignments[at + position[d]] = rest % cardinality[d];
+            rest /= cardinality[d];
+          }
         }
+      }
+      double[] values = new double[block.length * width];
+      result.getValues(assignments, scope.size(), values);
+      FactorArena.release(result);
 
-        factorMap.remove(o);
-        factorMap.put(reducedFactor.factorString(), reducedFactor);
+      for(int r = 0;r < block.length;++r) {
+        double[] posterior = Arrays.copyOfRange(values, r * width, (r + 1) * width);
+        double sum = Arrays.stream(posterior).sum();
+        for(int cell = 0;cell < width;++cell) {
+          posterior[cell] /= sum;
+        }
+        posteriors[from + r] = posterior;
       }
     }
 
-    // Eliminate variables in Z
-    for(String Z : eliminationOrder) {
-      //System.out.println(String.format("Sum-Out(%s)\n", Z));
-      // Sum Out Z from all containing factors
-      Set<String> containingFactors = factors.get(Z);
-
-      //System.out.println(String.format("Containing Factors:\n"));
-      /*
-      containingFactors.stream()
-          .forEach(f -> System.out.println(factorMap.get(f).toString()));
-      */
-      //System.out.println("\n");
-      Factor newFactor = containingFactors.stream()
-          .map(factorMap::get)
-          .reduce(new DiscreteFactor(),
-              (a, b) -> ((DiscreteFactor)a).product((DiscreteFactor)b));
-
-      // Remove the old entries
-      factors = HashMultimap.create(Multimaps.filterEntries(factors, entry ->
-          !(entry.getKey().equals(Z) || containingFactors.contains(entry.getValue()))
-      ));
-      containingFactors.stream()
-          .forEach(factorMap::remove);
-
-      // Add the new factor
-      for(String v : newFactor.getScope()) {
-        factors.put(v, newFactor.factorString());
+    return posteriors;
+  }
+
+  /**
+   * Run a plan on a block of evidence rows.
+   *
+   * @return the factors left once every step has run
+   */
+  private List<DiscreteFactor> executeBatch(EliminationPlan plan,
+      List<String> evidenceVariables, int[][] block) {
+    for(int[] row : block) {
+      Preconditions.checkArgument(row.length == evidenceVariables.size(),
+          String.format("Evidence row has %d outcomes, expecting %d.",
+              row.length, evidenceVariables.size()));
+    }
+
+    return this.run(plan, block.length, i -> {
+      DiscreteFactor f = plan.getCPDs().get(i).toDiscreteFactor();
+      List<String> observed = plan.getObserved(i);
+      if(observed.isEmpty()) {
+        return f;
       }
-      factorMap.put(newFactor.factorString(), newFactor);
 
-      //System.out.println(String.format("Adding New Factor:\n %s", newFactor.toString()));
+      int[][] rows = new int[block.length][observed.size()];
+      for(int v = 0;v < observed.size();++v) {
+        int column = evidenceVariables.indexOf(observed.get(v));
+        for(int r = 0;r < block.length;++r) {
+          rows[r][v] = block[r][column];
+        }
+      }
+      DiscreteFactor batch = f.reduceBatch(observed, rows, BATCH_VARIABLE);
+      FactorArena.release(f);
+      return batch;
+    }, (bucket, Z) -> DiscreteFactor.sumProduct(bucket, Lists.newArrayList(Z)));
+  }
+
+  /**
+   * Remove and return the factors that contain a variable.
+   */
+  private static List<DiscreteFactor> takeBucket(List<DiscreteFactor> factors,
+      String variable) {
+    List<DiscreteFactor> bucket = Lists.newArrayList();
+    Iterator<DiscreteFactor> it = factors.iterator();
+    while(it.hasNext()) {
+      DiscreteFactor f = it.next();
+      if(f.inScope(variable)) {
+        bucket.add(f);
+        it.remove();
+      }
     }
 
-    // Return product of remaining factors and normalize
-    return (DiscreteFactor)Sets.newHashSet(factorMap.values()).stream()
-        .reduce(new DiscreteFactor(),
-            (a, b) -> ((DiscreteFactor)a).product((DiscreteFactor)b))
-        .normalize(false);
+    return bucket;
+  }
+
+  private DiscreteFactor toFactor(ConditionalProbabilityDistribution cpd) {
+    switch (this.factorType) {
+      case LOG:
+        return LogDiscreteFactor.fromFactor(cpd.toDiscreteFactor());
+      case SPARSE:
+        return SparseDiscreteFactor.fromFactor(cpd.toDiscreteFactor());
+      case FLOAT:
+        return FloatDiscreteFactor.fromFactor(cpd);
+      case DENSE:
+      default:
+        return cpd.toDiscreteFactor();
+    }
+  }
+
+  /**
+   * Compute the message of an elimination bucket: the product of its factors
+   * with Z summed out. Dense and log representations use a fused kernel so
+   * that the product of the bucket is never built, the log one summing with
+   * a streaming log-sum-exp. Sparse factors would lose their sparsity in the
+   * fused loop, so those multiply first and then sum out. Off-heap engines
+   * write large messages straight into a direct buffer and float engines
+   * into a float table.
+   */
+  private DiscreteFactor sumOut(List<DiscreteFactor> bucket, String Z) {
+    List<String> summed = Lists.newArrayList(Z);
+    if(this.factorType == FactorType.SPARSE) {
+      return (DiscreteFactor) this.multiplyAll(bucket).marginalize(summed, true);
+    }
+
+    if(this.factorType == FactorType.LOG) {
+      return LogDiscreteFactor.sumProduct(bucket, summed);
+    }
+
+    if(this.factorType == FactorType.OFF_HEAP) {
+      return DirectDiscreteFactor.sumProduct(bucket, summed);
+    }
+
+    if(this.factorType == FactorType.FLOAT) {
+      return FloatDiscreteFactor.sumProduct(bucket, summed);
+    }
+
+    return DiscreteFactor.sumProduct(bucket, summed);
+  }
+
+  /**
+   * Multiply factors together, closing off-heap intermediate products as soon
+   * as they have been consumed.
+   */
+  private DiscreteFactor multiplyAll(Collection<? extends Factor> factors) {
+    DiscreteFactor product = (DiscreteFactor) this.emptyFactor();
+    for(Factor f : factors) {
+      DiscreteFactor next = this.factorType == FactorType.OFF_HEAP ?
+          DirectDiscreteFactor.product(product, (DiscreteFactor) f) :
+          product.product((DiscreteFactor) f);
+      FactorArena.release(product);
+      product = next;
+    }
+
+    return product;
+  }
+
+  /**
+   * @return the factor over no variables with value 1 in the representation
+   * used by this engine
+   */
+  private Factor emptyFactor() {
+    switch (this.factorType) {
+      case LOG:
+        return new LogDiscreteFactor();
+      case FLOAT:
+        return new FloatDiscreteFactor();
+      case DENSE:
+      default:
+        return new DiscreteFactor();
+    }
   }
 
   @Override public String mapQuery(List<Event> variables) {
-    return null;
+    return this.mapQuery(variables, Lists.newArrayList());
   }
 
+  /**
+   * @return the most probable assignment of variables given evidence as a
+   * comma separated list of events, e.g. "B=1,E=0"
+   * @see #mapAssignment(List, List)
+   */
   @Override public String mapQuery(List<Event> variables,
       List<Event> evidence) {
-    return null;
+    return Joiner.on(",").join(this.mapAssignment(variables, evidence));
+  }
+
+  /**
+   * Find the most probable joint assignment of variables given evidence by
+   * max-product variable elimination. The other unobserved variables are
+   * summed out first, then the query variables are maximized out one at a
+   * time, and the back-pointers of each step are followed in reverse order
+   * to recover the assignment. With no query variables every unobserved
+   * variable is maximized, giving the most probable explanation.
+   *
+   * @param variables the variables to assign, their outcomes are ignored
+   * @param evidence the observed events
+   * @return an event for each query variable in the order given, or for
+   * every unobserved variable in name order if no variables are given
+   */
+  public List<Event> mapAssignment(List<Event> variables, List<Event> evidence) {
+    Set<String> observed = evidence.stream()
+        .map(Event::getVariable)
+        .collect(Collectors.toSet());
+    List<String> names = variables.stream()
+        .map(Event::getVariable)
+        .collect(Collectors.toList());
+    if(names.isEmpty()) {
+      names = this.model.getCPDs().stream()
+          .map(ConditionalProbabilityDistribution::getVariable)
+          .filter(v -> !observed.contains(v))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+    for(String name : names) {
+      Preconditions.checkArgument(this.model.getNodeCPD(name) != null,
+          String.format("%s is not in the network.", name));
+      Preconditions.checkArgument(!observed.contains(name),
+          String.format("%s is both queried and observed.", name));
+    }
+
+    Set<String> maximized = Sets.newHashSet(names);
+    EliminationPlan plan = this.plan(this.model, maximized, observed);
+    List<DiscreteFactor> factors = this.execute(plan, evidence);
+
+    // Max out the query variables, keeping each step's back-pointers
+    Deque<MaxMarginal> trace = new ArrayDeque<>();
+    for(String X : plan.getOrder()) {
+      if(!maximized.contains(X)) {
+        continue;
+      }
+
+      List<DiscreteFactor> bucket = takeBucket(factors, X);
+      DiscreteFactor product = this.multiplyAll(bucket);
+      bucket.forEach(FactorArena::release);
+
+      MaxMarginal maxMarginal = product.maxMarginalize(Lists.newArrayList(X));
+      FactorArena.release(product);
+      trace.push(maxMarginal);
+      factors.add(maxMarginal.getFactor());
+    }
+    factors.forEach(FactorArena::release);
+
+    // Each step only depends on variables maximized after it
+    List<Event> assignment = Lists.newArrayList();
+    while(!trace.isEmpty()) {
+      assignment.addAll(trace.pop().argmax(assignment));
+    }
+
+    Map<String, Event> byVariable = assignment.stream()
+        .collect(Collectors.toMap(Event::getVariable, e -> e));
+    return names.stream()
+        .map(byVariable::get)
+        .collect(Collectors.toList());
   }
 }
@@ -1,73 +1,315 @@
 package models;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.*;
 import com.google.common.graph.GraphBuilder;
+import com.google.common.graph.Graphs;
 import com.google.common.graph.ImmutableGraph;
 import com.google.common.graph.MutableGraph;
 import factors.discrete.ConditionalProbabilityDistribution;
+import factors.discrete.ConditionalProbabilityDistribution.Precision;
+import factors.discrete.DiscreteFactor;
 import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.lang3.tuple.Triple;
+import primitives.Event;
 import util.GraphOps;
 import util.Misc;
 
 import java.util.*;
+import java.util.function.Supplier;
 
 /**
  * Implementation of a Bayesian Network on which queries can be performed.
  *
+ * Reads are lock free and may run on many threads at once, including while
+ * another thread changes the network: they see an immutable snapshot of the
+ * nodes, distributions and structure that is rebuilt on the first read after
+ * a change. Changes are synchronized. Distributions are shared by every
+ * query and must not be changed in place once they are in the network.
+ *
+ * Posteriors are cached by query signature, see getPosterior. A change only
+ * drops the posteriors whose query or evidence has the changed node as an
+ * ancestor, since no other posterior can depend on it.
+ *
+ * A network set to Precision.FLOAT stores every distribution in single
+ * precision, converting those given in double precision as they are added.
+ * Such a network is best built from distributions that are already in
+ * single precision, as each addition of a double precision distribution
+ * converts its whole table again.
+ *
  * @version 1.0.0
  *
  * @autho Sean McMillan
  */
 public class BayesianNetwork {
+  private static final int DEFAULT_CACHE_ENTRIES = 1024;
+  private static final long DEFAULT_CACHE_BYTES = 32L << 20;
+
   private Map<String, ConditionalProbabilityDistribution> varMap;
   private SetMultimap<String, String> predecessors;
   private SetMultimap<String, String> successors;
   private MutableGraph<String> g;
-  private boolean dirty;  // TODO introduce caching of answer/queries
+  private volatile Precision precision = Precision.DOUBLE;
+  private volatile Cache<Triple<String, Set<String>, Map<String, String>>, Posterior> posteriors;
+  private volatile int revision;  // Incremented on every change to the network
+  private volatile Snapshot snapshot;  // null after a change until the next read
+
+  /**
+   * The state of the network seen by readers. Everything in a snapshot comes
+   * from the same revision of the network, so a reader that needs several of
+   * its parts should take them from one snapshot.
+   */
+  public static final class Snapshot {
+    private final int revision;
+    private final ImmutableMap<String, ConditionalProbabilityDistribution> cpds;
+    private final ImmutableGraph<String> structure;
+    private final ImmutableGraph<String> moralStructure;
+
+    Snapshot(int revision, Map<String, ConditionalProbabilityDistribution> cpds,
+        MutableGraph<String> g) {
+      this.revision = revision;
+      this.cpds = ImmutableMap.copyOf(cpds);
+      this.structure = ImmutableGraph.copyOf(g);
+      this.moralStructure = GraphOps.getMoralGraph(g);
+    }
+
+    public int getRevision() {
+      return this.revision;
+    }
+
+    public List<ConditionalProbabilityDistribution> getCPDs() {
+      return this.cpds.values().asList();
+    }
+
+    public ImmutableGraph<String> getStructure() {
+      return this.structure;
+    }
+
+    public ImmutableGraph<String> getMoralStructure() {
+      return this.moralStructure;
+    }
+  }
+
+  /**
+   * A cached posterior and the nodes whose distributions it depends on.
+   */
+  private static final class Posterior {
+    private final DiscreteFactor factor;
+    private final Set<String> dependencies;
+
+    Posterior(DiscreteFactor factor, Set<String> dependencies) {
+      this.factor = factor;
+      this.dependencies = dependencies;
+    }
+
+    long bytes() {
+      return (long) Double.BYTES * this.factor.getCardinality().stream()
+          .mapToLong(Integer::longValue)
+          .reduce(1, (a, b) -> a * b);
+    }
+  }
 
   public BayesianNetwork() {
     this.varMap = new HashMap<>();
     this.predecessors = HashMultimap.create();
     this.successors = HashMultimap.create();
     this.g = GraphBuilder.directed().allowsSelfLoops(false).build();
+    this.setPosteriorCacheLimits(DEFAULT_CACHE_ENTRIES, DEFAULT_CACHE_BYTES);
+  }
+
+  private Snapshot snapshot() {
+    Snapshot s = this.snapshot;
+    if(s == null) {
+      synchronized(this) {
+        s = this.snapshot;
+        if(s == null) {
+          s = new Snapshot(this.revision, this.varMap, this.g);
+          this.snapshot = s;
+        }
+      }
+    }
+
+    return s;
+  }
+
+  /**
+   * Drop the snapshot before publishing the new revision, so that a reader
+   * who sees the new revision also sees the change.
+   */
+  private void changed() {
+    this.snapshot = null;
+    ++this.revision;
+  }
+
+  /**
+   * Drop the cached posteriors that depend on the distribution of a changed
+   * node. Called after changed(), see getPosterior.
+   */
+  private void invalidate(Set<String> nodes) {
+    this.posteriors.asMap().values()
+        .removeIf(p -> !Collections.disjoint(p.dependencies, nodes));
+  }
+
+  /**
+   * @return the current state of the network, which does not change when
+   * the network does
+   */
+  public Snapshot getSnapshot() {
+    return this.snapshot();
   }
 
   public ConditionalProbabilityDistribution getNodeCPD(String node) {
-    return this.varMap.get(node);
+    return this.snapshot().cpds.get(node);
   }
 
   public List<ConditionalProbabilityDistribution> getCPDs() {
-    return Lists.newArrayList(this.varMap.values());
+    return Lists.newArrayList(this.snapshot().cpds.values());
   }
 
   public ImmutableGraph<String> getMoralStructure() {
-    return GraphOps.getMoralGraph(this.g);
-
+    return this.snapshot().moralStructure;
   }
 
   public ImmutableGraph<String> getStructure() {
-    return ImmutableGraph.copyOf(this.g);
+    return this.snapshot().structure;
+  }
+
+  /**
+   * @return a number that changes whenever a node or an edge is added, so
+   * that anything derived from the network can tell it is out of date
+   */
+  public int getRevision() {
+    return this.revision;
+  }
+
+  public Precision getPrecision() {
+    return this.precision;
+  }
+
+  /**
+   * Set the precision in which the network stores its distributions,
+   * converting those already in the network. FLOAT rounds every table to
+   * single precision, halving the memory and bandwidth of inference with
+   * FactorType.FLOAT. DOUBLE, the default, keeps the distributions added
+   * afterwards as they are given.
+   *
+   * @param precision the precision of the tables of the network
+   */
+  public synchronized void setPrecision(Precision precision) {
+    Preconditions.checkNotNull(precision);
+
+    this.precision = precision;
+    this.varMap.replaceAll((node, cpd) -> cpd.toPrecision(precision));
+    this.changed();
+    this.invalidate(this.varMap.keySet());
   }
 
-  public void addEdge(String u, String v) {
+  /**
+   * Add a node to the network without any edges, replacing the distribution
+   * of the node if it is already in the network.
+   *
+   * @param cpd the distribution of the node
+   */
+  public synchronized void addNode(ConditionalProbabilityDistribution cpd) {
+    Preconditions.checkNotNull(cpd);
+
+    this.varMap.put(cpd.getVariable(), this.inPrecision(cpd));
+    this.g.addNode(cpd.getVariable());
+    this.changed();
+    this.invalidate(ImmutableSet.of(cpd.getVariable()));
+  }
+
+  public synchronized void addEdge(String u, String v) {
     this.addEdge(this.varMap.get(u), this.varMap.get(v));
   }
 
-  public void addEdge(ConditionalProbabilityDistribution u,
+  public synchronized void addEdge(ConditionalProbabilityDistribution u,
       ConditionalProbabilityDistribution v) {
     Preconditions.checkNotNull(u);
     Preconditions.checkNotNull(v);
     Preconditions.checkArgument(!this.createsCycle(u.getVariable(), v.getVariable()),
         String.format("Adding edge %s -> %s would create a cycle.", u.getVariable(), v.getVariable()));
 
-    this.varMap.put(u.getVariable(), u);
-    this.varMap.put(v.getVariable(), v);
+    // v gains a parent, u only changes if its distribution is replaced
+    Set<String> touched = Sets.newHashSet(v.getVariable());
+    if(this.store(u)) {
+      touched.add(u.getVariable());
+    }
+    this.varMap.put(v.getVariable(), this.inPrecision(v));
     this.g.putEdge(u.getVariable(), v.getVariable());
+    this.changed();
+    this.invalidate(touched);
+  }
+
+  /**
+   * Add nodes together with an edge from every parent in the scope of their
+   * distributions. The structure is built and checked for cycles once,
+   * rather than once per edge as with addEdge, and nothing is added if the
+   * edges would create a cycle.
+   *
+   * @param cpds the distributions of the nodes, whose parents are either
+   * among them or already in the network
+   */
+  public synchronized void addAll(List<ConditionalProbabilityDistribution> cpds) {
+    Preconditions.checkNotNull(cpds);
+
+    MutableGraph<String> graph = Graphs.copyOf(this.g);
+    for(ConditionalProbabilityDistribution cpd : cpds) {
+      Preconditions.checkNotNull(cpd);
+      graph.addNode(cpd.getVariable());
+    }
+    for(ConditionalProbabilityDistribution cpd : cpds) {
+      for(String parent : cpd.getEvidence()) {
+        Preconditions.checkArgument(graph.nodes().contains(parent),
+            String.format("Parent %s of %s is not in the network.", parent, cpd.getVariable()));
+        graph.putEdge(parent, cpd.getVariable());
+      }
+    }
+    Preconditions.checkArgument(!Misc.hasCycles(graph), "Adding the nodes would create a cycle.");
+
+    Set<String> touched = Sets.newHashSet();
+    for(ConditionalProbabilityDistribution cpd : cpds) {
+      this.varMap.put(cpd.getVariable(), this.inPrecision(cpd));
+      touched.add(cpd.getVariable());
+    }
+    this.g = graph;
+    this.changed();
+    this.invalidate(touched);
+  }
+
+  /**
+   * Store the distribution of a node in the precision of the network. A
+   * converted distribution that is equal to the stored one does not replace
+   * it, so adding the same double precision distribution to a float network
+   * again is not a change.
+   *
+   * @return true if the distribution of the node changed
+   */
+  private boolean store(ConditionalProbabilityDistribution cpd) {
+    ConditionalProbabilityDistribution stored = this.inPrecision(cpd);
+    ConditionalProbabilityDistribution old = this.varMap.get(cpd.getVariable());
+    if(old == stored || (old != null && stored != cpd && old.equals(stored))) {
+      return false;
+    }
+
+    this.varMap.put(cpd.getVariable(), stored);
+    return true;
+  }
+
+  /**
+   * @return cpd rounded to single precision if the network is FLOAT,
+   * otherwise cpd itself
+   */
+  private ConditionalProbabilityDistribution inPrecision(ConditionalProbabilityDistribution cpd) {
+    return this.precision == Precision.FLOAT ? cpd.toPrecision(Precision.FLOAT) : cpd;
   }
 
   public List<String> getEliminationOrder(List<String> variables, List<String> evidence) {
-    List<String> order = Misc.eliminationOrder(this.g);
+    List<String> order = Misc.eliminationOrder(this.snapshot().structure);
     order.removeAll(variables);
     if(evidence != null) {
       order.removeAll(evidence);
@@ -87,11 +329,187 @@ public class BayesianNetwork {
     return cycle;
   }
 
+  /**
+   * Find the distributions needed to answer a query. A node outside the
+   * ancestors of the query and evidence is barren: it sums to 1 and is
+   * dropped. A node that is d-separated from the query by the evidence only
+   * scales the answer by a constant and is dropped too. D-separation is
+   * decided for every node at once on the moral graph of the ancestral
+   * network, where the evidence separates exactly the nodes it d-separates.
+   *
+   * @param query the query variables
+   * @param evidence the observed variables
+   * @return the distributions whose family holds an unobserved node that is
+   * connected to the query, in getCPDs order
+   */
+  public List<ConditionalProbabilityDistribution> getRelevantCPDs(Set<String> query,
+      Set<String> evidence) {
+    Map<String, ConditionalProbabilityDistribution> cpds = this.snapshot().cpds;
+
+    // Ancestral network of the query and evidence
+    Set<String> ancestral = ancestors(cpds, Sets.union(query, evidence));
+
+    // Each family is a clique of the moral graph
+    SetMultimap<String, String> moral = HashMultimap.create();
+    for(String node : ancestral) {
+      List<String> family = cpds.get(node).getScope();
+      for(String u : family) {
+        moral.putAll(u, family);
+      }
+    }
+
+    // Unobserved nodes connected to the query without passing the evidence
+    Set<String> connected = Sets.newHashSet();
+    Stack<String> visitList = new Stack<>();
+    for(String q : query) {
+      if(ancestral.contains(q) && !evidence.contains(q)) {
+        visitList.push(q);
+      }
+    }
+    while(visitList.size() > 0) {
+      String y = visitList.pop();
+      if(connected.add(y)) {
+        for(String z : moral.get(y)) {
+          if(!evidence.contains(z) && !connected.contains(z)) {
+            visitList.push(z);
+          }
+        }
+      }
+    }
+
+    List<ConditionalProbabilityDistribution> relevant = Lists.newArrayList();
+    for(ConditionalProbabilityDistribution cpd : cpds.values()) {
+      if(ancestral.contains(cpd.getVariable()) &&
+          cpd.getScope().stream().anyMatch(connected::contains)) {
+        relevant.add(cpd);
+      }
+    }
+
+    return relevant;
+  }
+
+  /**
+   * @return the nodes of cpds that are in nodes or are an ancestor of one
+   */
+  private static Set<String> ancestors(Map<String, ConditionalProbabilityDistribution> cpds,
+      Set<String> nodes) {
+    Set<String> ancestral = Sets.newHashSet();
+    Stack<String> visitList = new Stack<>();
+    visitList.addAll(nodes);
+    while(visitList.size() > 0) {
+      String y = visitList.pop();
+      ConditionalProbabilityDistribution cpd = cpds.get(y);
+      if(cpd != null && ancestral.add(y)) {
+        visitList.addAll(cpd.getEvidence());
+      }
+    }
+
+    return ancestral;
+  }
+
+  /**
+   * Find the posterior of a query in the cache, computing and caching it on
+   * a miss. The signature of a query is the engine, the set of query
+   * variables and the outcome of each observed variable, the first event of
+   * a variable winning, so the order of the variables and events does not
+   * matter. A posterior depends only on the distributions of the query and
+   * evidence nodes and their ancestors, and is dropped when one of them
+   * changes.
+   *
+   * A posterior computed while the network changes is not kept, since it
+   * may have read the network from before the change.
+   *
+   * @param engine the inference engine and settings that compute the
+   * posterior, posteriors of different engines are cached apart
+   * @param query the query variables
+   * @param evidence the observed events
+   * @param compute computes the posterior on a miss
+   * @return the posterior, a copy of the cached factor on a hit
+   */
+  public DiscreteFactor getPosterior(String engine, Set<String> query, List<Event> evidence,
+      Supplier<DiscreteFactor> compute) {
+    Map<String, String> observed = Maps.newTreeMap();
+    for(Event e : evidence) {
+      observed.putIfAbsent(e.getVariable(), Strings.nullToEmpty(e.getOutcome()));
+    }
+    Triple<String, Set<String>, Map<String, String>> signature = Triple.of(engine,
+        ImmutableSortedSet.copyOf(query), ImmutableSortedMap.copyOf(observed));
+
+    Cache<Triple<String, Set<String>, Map<String, String>>, Posterior> cache = this.posteriors;
+    Posterior cached = cache.getIfPresent(signature);
+    if(cached != null) {
+      return (DiscreteFactor) cached.factor.copy();
+    }
+
+    // The revision is read first, as in EliminationPlan.compile
+    int revision = this.revision;
+    Set<String> dependencies = Sets.union(query, observed.keySet()).immutableCopy();
+    dependencies = Sets.union(dependencies,
+        ancestors(this.snapshot().cpds, dependencies)).immutableCopy();
+    DiscreteFactor factor = compute.get();
+
+    // A change after the revision was read may have run its invalidation
+    // before this put, so the posterior is dropped again
+    Posterior posterior = new Posterior((DiscreteFactor) factor.copy(), dependencies);
+    cache.put(signature, posterior);
+    if(this.revision != revision) {
+      cache.asMap().remove(signature, posterior);
+    }
+
+    return factor;
+  }
+
+  /**
+   * Bound the posterior cache, dropping every cached posterior. The least
+   * recently used posteriors are evicted first once either bound is reached.
+   * Each posterior is charged at least maxBytes / maxEntries bytes, which
+   * bounds the number of entries with the same weight limit. The cache has a
+   * single segment so the bounds are not split between segments; hits do not
+   * lock it.
+   *
+   * @param maxEntries the most posteriors kept, 0 disables the cache
+   * @param maxBytes the most bytes of posterior tables kept
+   */
+  public void setPosteriorCacheLimits(int maxEntries, long maxBytes) {
+    Preconditions.checkArgument(maxEntries >= 0, "maxEntries must not be negative.");
+    Preconditions.checkArgument(maxBytes >= 0, "maxBytes must not be negative.");
+
+    if(maxEntries == 0) {
+      this.posteriors = CacheBuilder.newBuilder().maximumSize(0).recordStats().build();
+    } else {
+      long minWeight = Math.max(1, maxBytes / maxEntries);
+      this.posteriors = CacheBuilder.newBuilder()
+          .concurrencyLevel(1)
+          .maximumWeight(maxBytes)
+          .weigher((Triple<String, Set<String>, Map<String, String>> signature,
+              Posterior posterior) -> (int) Math.min(Integer.MAX_VALUE,
+                  Math.max(minWeight, posterior.bytes())))
+          .recordStats()
+          .build();
+    }
+  }
+
+  /**
+   * @return the hits, misses and evictions of the posterior cache since its
+   * limits were last set. Posteriors dropped by a change are not evictions.
+   */
+  public CacheStats getPosteriorCacheStats() {
+    return this.posteriors.stats();
+  }
+
+  /**
+   * @return the number of posteriors in the cache
+   */
+  public long getPosteriorCacheSize() {
+    return this.posteriors.size();
+  }
+
   public boolean isDSep(String X, String Y, Set<String> E) {
     return !this.activeTrails(X, E).contains(Y);
   }
 
   private Set<String> activeTrails(String source, Set<String> observations) {
+    ImmutableGraph<String> g = this.snapshot().structure;
     Stack<String> visitList = new Stack<>();
     visitList.addAll(observations);
     Set<String> ancestors = Sets.newHashSet();
@@ -100,7 +518,7 @@ public class BayesianNetwork {
     while(visitList.size() > 0) {
       String y = visitList.pop();
       if(!ancestors.contains(y)) {
-        visitList.addAll(this.g.predecessors(y));
+        visitList.addAll(g.predecessors(y));
       }
       ancestors.add(y);
     }
@@ -121,20 +539,20 @@ public class BayesianNetwork {
         visited.add(ndPair);
 
         if(direction && !observations.contains(node)) {
-          for(String parent : this.g.predecessors(node)) {
+          for(String parent : g.predecessors(node)) {
             ndPairs.push(Pair.of(parent, true));
           }
-          for(String child : this.g.successors(node)) {
+          for(String child : g.successors(node)) {
             ndPairs.push(Pair.of(child, false));
           }
         } else if(!direction) {
           if(!observations.contains(node)) {
-            for(String child : this.g.successors(node)) {
+            for(String child : g.successors(node)) {
               ndPairs.push(Pair.of(child, false));
             }
           }
           if(ancestors.contains(node)) {
-            for(String parent : this.g.predecessors(node)) {
+            for(String parent : g.predecessors(node)) {
               ndPairs.push(Pair.of(parent, true));
             }
           }
@@ -0,0 +1,229 @@
+package models;
+
+import com.google.common.collect.Lists;
+import factors.discrete.ConditionalProbabilityDistribution;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary format for a BayesianNetwork. All numbers are little-endian.
+ *
+ *  - header: the magic bytes "JPGM", the format version and the node count
+ *  - for each node: the length and UTF-8 bytes of its name, its cardinality,
+ *  its parent count and the index of each parent in the node list, in the
+ *  order the parents appear in the scope of its distribution
+ *  - padding up to a multiple of 8 bytes
+ *  - the table of each node in node order, as the raw doubles of the flat
+ *  layout of ConditionalProbabilityDistribution.getTable
+ *
+ * Files are read and written through a memory mapping, so the tables are
+ * never parsed value by value. Tables are written with bulk copies, and are
+ * not copied at all when read: each distribution of a network that is read
+ * reads its table from a slice of the mapping until it is first written.
+ *
+ * @version 1.0.0
+ *
+ * @author Sean McMillan
+ */
+public final class NetworkFormat {
+  public static final int MAGIC = 0x4D47504A;  // "JPGM" read little-endian
+  public static final int VERSION = 1;
+
+  private NetworkFormat() {
+  }
+
+  /**
+   * Write a network to a file, replacing the file if it exists.
+   *
+   * @param network the network to write
+   * @param path the file to write to
+   * @throws IOException if the file can not be written
+   */
+  public static void write(BayesianNetwork network, Path path) throws IOException {
+    List<ConditionalProbabilityDistribution> cpds = network.getCPDs();
+    Map<String, Integer> index = new HashMap<>();
+    for(int i = 0;i < cpds.size();++i) {
+      index.put(cpds.get(i).getVariable(), i);
+    }
+
+    List<byte[]> names = Lists.newArrayList();
+    long headerSize = 3 * Integer.BYTES;
+    long tableSize = 0;
+    for(ConditionalProbabilityDistribution cpd : cpds) {
+      byte[] name = cpd.getVariable().getBytes(StandardCharsets.UTF_8);
+      names.add(name);
+      headerSize += Integer.BYTES * (3 + cpd.getEvidence().size()) + name.length;
+      tableSize += (long) tableLength(cpd) * Double.BYTES;
+    }
+    long tableStart = align(headerSize);
+
+    try(RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+        FileChannel channel = file.getChannel()) {
+      file.setLength(tableStart + tableSize);
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+          checkMappable(tableStart + tableSize));
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+      buffer.putInt(MAGIC);
+      buffer.putInt(VERSION);
+      buffer.putInt(cpds.size());
+      for(int i = 0;i < cpds.size();++i) {
+        ConditionalProbabilityDistribution cpd = cpds.get(i);
+        List<String> parents = cpd.getEvidence();
+        buffer.putInt(names.get(i).length);
+        buffer.put(names.get(i));
+        buffer.putInt(cpd.getVariableCardinality());
+        buffer.putInt(parents.size());
+        for(String parent : parents) {
+          Integer p = index.get(parent);
+          if(p == null) {
+            throw new IOException(String.format(
+                "Parent %s of %s is not in the network.", parent, cpd.getVariable()));
+          }
+          buffer.putInt(p);
+        }
+      }
+
+      buffer.position((int) tableStart);
+      DoubleBuffer tables = buffer.asDoubleBuffer();
+      for(ConditionalProbabilityDistribution cpd : cpds) {
+        tables.put(cpd.getTable());
+      }
+      buffer.force();
+    }
+  }
+
+  /**
+   * Read a network from a file written by write.
+   *
+   * The distributions of the network keep the mapping of the file, which
+   * stays valid after the file is closed, reachable until they have all been
+   * written or collected. The file should not be changed while it is in use.
+   *
+   * @param path the file to read
+   * @return the network
+   * @throws IOException if the file can not be read or is not a network in
+   * this format
+   */
+  public static BayesianNetwork read(Path path) throws IOException {
+    try(RandomAccessFile file = new RandomAccessFile(path.toFile(), "r");
+        FileChannel channel = file.getChannel()) {
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+          checkMappable(channel.size()));
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+      return read(buffer);
+    }
+  }
+
+  private static BayesianNetwork read(ByteBuffer buffer) throws IOException {
+    try {
+      if(buffer.getInt() != MAGIC) {
+        throw new IOException("Not a network file.");
+      }
+      int version = buffer.getInt();
+      if(version != VERSION) {
+        throw new IOException(String.format(
+            "Unsupported network file version %d, expecting %d.", version, VERSION));
+      }
+
+      int nodeCount = buffer.getInt();
+      check(nodeCount >= 0, "Negative node count.");
+      String[] names = new String[nodeCount];
+      int[] cardinality = new int[nodeCount];
+      int[][] parents = new int[nodeCount][];
+      for(int i = 0;i < nodeCount;++i) {
+        int nameLength = buffer.getInt();
+        check(nameLength >= 0 && nameLength <= buffer.remaining(), "Bad node name.");
+        byte[] name = new byte[nameLength];
+        buffer.get(name);
+        names[i] = new String(name, StandardCharsets.UTF_8);
+
+        cardinality[i] = buffer.getInt();
+        check(cardinality[i] > 0, String.format("Bad cardinality for %s.", names[i]));
+
+        int parentCount = buffer.getInt();
+        check(parentCount >= 0 && parentCount <= nodeCount,
+            String.format("Bad parent count for %s.", names[i]));
+        parents[i] = new int[parentCount];
+        for(int p = 0;p < parentCount;++p) {
+          parents[i][p] = buffer.getInt();
+          check(parents[i][p] >= 0 && parents[i][p] < nodeCount,
+              String.format("Bad parent index for %s.", names[i]));
+        }
+      }
+
+      buffer.position((int) align(buffer.position()));
+      DoubleBuffer tables = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+
+      ConditionalProbabilityDistribution[] cpds =
+          new ConditionalProbabilityDistribution[nodeCount];
+      for(int i = 0;i < nodeCount;++i) {
+        List<String> evidence = Lists.newArrayList();
+        List<Integer> eCardinality = Lists.newArrayList();
+        long length = cardinality[i];
+        for(int p : parents[i]) {
+          evidence.add(names[p]);
+          eCardinality.add(cardinality[p]);
+          length *= cardinality[p];
+        }
+        check(length <= tables.remaining(),
+            String.format("Table of %s runs past the end of the file.", names[i]));
+
+        DoubleBuffer table = tables.duplicate();
+        table.limit(tables.position() + (int) length);
+        tables.position(table.limit());
+        cpds[i] = ConditionalProbabilityDistribution.fromBuffer(names[i], cardinality[i],
+            evidence, eCardinality, table);
+      }
+
+      // The whole structure is added at once, so a cycle is found by one check
+      BayesianNetwork network = new BayesianNetwork();
+      network.addAll(Arrays.asList(cpds));
+
+      return network;
+    } catch(BufferUnderflowException e) {
+      throw new IOException("Network file is truncated.", e);
+    } catch(IllegalArgumentException e) {
+      throw new IOException("Network file does not hold a valid network.", e);
+    }
+  }
+
+  private static int tableLength(ConditionalProbabilityDistribution cpd) {
+    int length = cpd.getVariableCardinality();
+    for(int c : cpd.getEvidenceCardinality()) {
+      length *= c;
+    }
+
+    return length;
+  }
+
+  private static long align(long position) {
+    return (position + Double.BYTES - 1) / Double.BYTES * Double.BYTES;
+  }
+
+  private static long checkMappable(long size) throws IOException {
+    check(size <= Integer.MAX_VALUE,
+        String.format("Network file of %d bytes is too large to map.", size));
+    return size;
+  }
+
+  private static void check(boolean condition, String message) throws IOException {
+    if(!condition) {
+      throw new IOException(message);
+    }
+  }
+}
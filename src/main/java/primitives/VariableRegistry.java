@@ -0,0 +1,253 @@
+package primitives;
+
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns variable names to dense integer ids so that factors can describe
+ * their scope with int arrays instead of lists of strings. Ids are handed out
+ * in order of first use.
+ *
+ * An id is kept for as long as a Pin of its name is reachable. Factors hold
+ * the pins of their scope, so the id of a name stays the same while any
+ * factor uses it. Once every pin of a name has been collected its id is
+ * reclaimed and given to the next new name, so the registry holds the names
+ * of the live factors rather than every name the JVM has seen, and a service
+ * that loads networks with different names does not grow without bound. An
+ * id obtained through id or ids is only meaningful while it is pinned.
+ *
+ * Lookups and pins of registered names are lock free, interning and
+ * reclaiming are synchronized.
+ *
+ * @version 1.0.0
+ *
+ * @author Sean McMillan
+ */
+public final class VariableRegistry {
+  private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+  private static volatile String[] names = new String[16];
+  private static volatile Handle[] handles = new Handle[16];
+  private static final IntArrayList free = new IntArrayList();
+  private static final ReferenceQueue<Pin> collected = new ReferenceQueue<>();
+  private static int count = 0;
+
+  /**
+   * Keeps the id of a name registered while it is reachable.
+   */
+  public static final class Pin {
+    private final String name;
+    private final int id;
+
+    private Pin(String name, int id) {
+      this.name = name;
+      this.id = id;
+    }
+
+    public int id() {
+      return this.id;
+    }
+  }
+
+  /**
+   * The weak reference of the registry to the current pin of an id, queued
+   * once the pin has been collected.
+   */
+  private static final class Handle extends WeakReference<Pin> {
+    private final int id;
+
+    Handle(Pin pin) {
+      super(pin, collected);
+      this.id = pin.id;
+    }
+  }
+
+  private VariableRegistry() {
+  }
+
+  /**
+   * Return the id of a variable, registering it if it has not been seen.
+   *
+   * @param name the name of the variable
+   * @return the id of the variable
+   */
+  public static int id(String name) {
+    return pin(name).id;
+  }
+
+  /**
+   * Return the pin of a variable, registering it if it has not been seen.
+   *
+   * @param name the name of the variable
+   * @return a pin that keeps the id of the variable while it is reachable
+   */
+  public static Pin pin(String name) {
+    Integer id = ids.get(name);
+    if(id != null) {
+      Handle handle = handles[id];
+      Pin pin = handle == null ? null : handle.get();
+      if(pin != null && pin.name.equals(name)) {
+        return pin;
+      }
+    }
+
+    return intern(name);
+  }
+
+  /**
+   * @param names the names of variables
+   * @return the pin of each variable, registering those not seen before
+   */
+  public static Pin[] pin(List<String> names) {
+    Pin[] pins = new Pin[names.size()];
+    for(int i = 0;i < pins.length;++i) {
+      pins[i] = pin(names.get(i));
+    }
+
+    return pins;
+  }
+
+  /**
+   * Pin variables by id, such as the scope of a factor derived from factors
+   * that already pin it.
+   *
+   * @param ids the ids of registered variables
+   * @return the pin of each variable
+   */
+  public static Pin[] pin(int[] ids) {
+    Handle[] known = handles;
+    Pin[] pins = new Pin[ids.length];
+    for(int i = 0;i < pins.length;++i) {
+      Handle handle = ids[i] < known.length ? known[ids[i]] : null;
+      Pin pin = handle == null ? null : handle.get();
+      pins[i] = pin != null ? pin : repin(ids[i]);
+    }
+
+    return pins;
+  }
+
+  /**
+   * Return the id of a variable without registering it.
+   *
+   * @param name the name of the variable
+   * @return the id of the variable or -1 if it is not registered
+   */
+  public static int find(String name) {
+    Integer id = ids.get(name);
+    return id != null ? id : -1;
+  }
+
+  /**
+   * @param id the id of a registered variable
+   * @return the name of the variable
+   */
+  public static String name(int id) {
+    return names[id];
+  }
+
+  public static int[] ids(List<String> names) {
+    int[] result = new int[names.size()];
+    for(int i = 0;i < result.length;++i) {
+      result[i] = id(names.get(i));
+    }
+
+    return result;
+  }
+
+  public static int[] ids(Pin[] pins) {
+    int[] result = new int[pins.length];
+    for(int i = 0;i < result.length;++i) {
+      result[i] = pins[i].id;
+    }
+
+    return result;
+  }
+
+  public static String[] names(int[] ids) {
+    String[] known = names;
+    String[] result = new String[ids.length];
+    for(int i = 0;i < result.length;++i) {
+      result[i] = known[ids[i]];
+    }
+
+    return result;
+  }
+
+  /**
+   * @return the number of registered variables, including those whose pins
+   * have been collected but whose ids have not been reclaimed yet
+   */
+  public static synchronized int size() {
+    reclaim();
+    return ids.size();
+  }
+
+  private static synchronized Pin intern(String name) {
+    Preconditions.checkNotNull(name);
+    Integer existing = ids.get(name);
+    if(existing != null) {
+      return repin(existing);
+    }
+
+    reclaim();
+    int id;
+    if(!free.isEmpty()) {
+      id = free.removeInt(free.size() - 1);
+    } else {
+      id = count++;
+      if(id == names.length) {
+        names = Arrays.copyOf(names, names.length * 2);
+        handles = Arrays.copyOf(handles, handles.length * 2);
+      }
+    }
+
+    Pin pin = new Pin(name, id);
+    handles[id] = new Handle(pin);
+    names[id] = name;
+    // Publish the name before the id so name(id) never sees a null
+    ids.put(name, id);
+
+    return pin;
+  }
+
+  /**
+   * Return the current pin of a registered id, creating a new one if the
+   * last one has been collected but the id has not been reclaimed yet.
+   */
+  private static synchronized Pin repin(int id) {
+    Preconditions.checkArgument(id >= 0 && id < count && names[id] != null,
+        String.format("Variable id %d is not registered.", id));
+    Handle handle = handles[id];
+    Pin pin = handle == null ? null : handle.get();
+    if(pin == null) {
+      pin = new Pin(names[id], id);
+      handles[id] = new Handle(pin);
+    }
+
+    return pin;
+  }
+
+  /**
+   * Drop the names whose pins have all been collected and free their ids.
+   */
+  private static void reclaim() {
+    Reference<? extends Pin> ref;
+    while((ref = collected.poll()) != null) {
+      Handle handle = (Handle) ref;
+      // An id pinned again after its pin was collected has a new handle
+      if(handles[handle.id] == handle) {
+        ids.remove(names[handle.id]);
+        handles[handle.id] = null;
+        names[handle.id] = null;
+        free.add(handle.id);
+      }
+    }
+  }
+}
@@ -0,0 +1,25 @@
+package examples;
+
+import factors.discrete.ConditionalProbabilityDistribution;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the PrecisionBenchmark Example
+ */
+class PrecisionBenchmarkTest {
+  @Test void testWideCPD() {
+    ConditionalProbabilityDistribution cpd = PrecisionBenchmark.wideCPD(3);
+
+    Assertions.assertEquals(3, cpd.getEvidence().size());
+    Assertions.assertEquals(16, cpd.getTable().length);
+  }
+
+  /**
+   * Test whether main runs without error on a small table.
+   */
+  @Test void testMain() {
+    PrecisionBenchmark.main(new String[] { "4" });
+    Assertions.assertTrue(true);
+  }
+}
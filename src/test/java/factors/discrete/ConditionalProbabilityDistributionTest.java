@@ -7,8 +7,10 @@ import org.apache.commons.lang3.tuple.Pair;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import primitives.Event;
 import primitives.EventStream;
 
+import java.nio.DoubleBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -77,6 +79,93 @@ class ConditionalProbabilityDistributionTest {
     Assertions.assertArrayEquals(copiedCPD.values, cpd.values, threshold);
   }
 
+  @Test void testToDiscreteFactorShares() {
+    DiscreteFactor factor = cpd.toDiscreteFactor();
+    Assertions.assertSame(cpd.values, factor.values);
+
+    cpd.normalize(true);
+    Assertions.assertNotSame(cpd.values, factor.values);
+    Assertions.assertEquals(0.447, factor.getValue(new Event("G=0")), threshold);
+  }
+
+  @Test void testFromTable() {
+    ConditionalProbabilityDistribution fromTable = ConditionalProbabilityDistribution.fromTable(
+        "G", 3, evidence, eCardinality, cpd.getTable());
+
+    Assertions.assertTrue(cpd.equals(fromTable));
+    Assertions.assertArrayEquals(cpd.getValues()[2], fromTable.getValues()[2], threshold);
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> ConditionalProbabilityDistribution.fromTable("G", 3, evidence, eCardinality,
+            new double[11]));
+  }
+
+  @Test void testFromBuffer() {
+    double[] table = cpd.getTable();
+    DoubleBuffer buffer = DoubleBuffer.wrap(table);
+    ConditionalProbabilityDistribution mapped = ConditionalProbabilityDistribution.fromBuffer(
+        "G", 3, evidence, eCardinality, buffer);
+
+    Assertions.assertTrue(mapped.isMapped());
+    Assertions.assertNull(mapped.values);
+    Assertions.assertTrue(cpd.equals(mapped));
+    Assertions.assertTrue(cpd.toDiscreteFactor().equals(mapped.toDiscreteFactor()));
+    Assertions.assertTrue(cpd.toDiscreteFactor().product(cpd.toDiscreteFactor()).equals(
+        mapped.toDiscreteFactor().product(mapped.toDiscreteFactor())));
+    Assertions.assertTrue(cpd.marginalize(Lists.newArrayList("I"), false).equals(
+        mapped.marginalize(Lists.newArrayList("I"), false)));
+    Assertions.assertTrue(mapped.isMapped());
+
+    // Writing the distribution or its factor copies the table to the heap
+    // and leaves the buffer unchanged
+    DiscreteFactor factor = mapped.toDiscreteFactor();
+    factor.mutableValues()[0] = 2.0;
+    Assertions.assertEquals(2.0, factor.valueAt(0), threshold);
+    Assertions.assertEquals(cpd.valueAt(0), mapped.valueAt(0), threshold);
+
+    ConditionalProbabilityDistribution copy = (ConditionalProbabilityDistribution) mapped.copy();
+    copy.normalize(true);
+    Assertions.assertFalse(copy.isMapped());
+    Assertions.assertTrue(mapped.isMapped());
+    Assertions.assertArrayEquals(cpd.getTable(), table, threshold);
+
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> ConditionalProbabilityDistribution.fromBuffer("G", 3, evidence, eCardinality,
+            DoubleBuffer.allocate(11)));
+  }
+
+  @Test void testToPrecision() {
+    ConditionalProbabilityDistribution single =
+        cpd.toPrecision(ConditionalProbabilityDistribution.Precision.FLOAT);
+
+    Assertions.assertSame(cpd, cpd.toPrecision(ConditionalProbabilityDistribution.Precision.DOUBLE));
+    Assertions.assertSame(single, single.toPrecision(ConditionalProbabilityDistribution.Precision.FLOAT));
+    Assertions.assertEquals(ConditionalProbabilityDistribution.Precision.FLOAT, single.getPrecision());
+    Assertions.assertNull(single.values);
+    Assertions.assertArrayEquals(cpd.getTable(), single.getTable(), 10e-7);
+    Assertions.assertTrue(cpd.toPrecision(ConditionalProbabilityDistribution.Precision.FLOAT).equals(single));
+
+    // The float table is shared and never written in place
+    DiscreteFactor factor = single.toDiscreteFactor();
+    Assertions.assertTrue(factor instanceof FloatDiscreteFactor);
+    Assertions.assertSame(single.floatTable(), factor.floatTable());
+    single.normalize(true);
+    Assertions.assertNotSame(single.floatTable(), factor.floatTable());
+    Assertions.assertEquals(0.447, factor.getValue(new Event("G=0")), 10e-7);
+    for(int r = 0;r < expectedNormedTable.length;++r) {
+      Assertions.assertArrayEquals(expectedNormedTable[r], single.getValues()[r], 10e-7);
+    }
+
+    ConditionalProbabilityDistribution reduced = (ConditionalProbabilityDistribution)
+        single.reduce(new EventStream("I=1,D=0").getEvents(), false);
+    Assertions.assertNotNull(reduced.floatTable());
+    Assertions.assertArrayEquals(new double[]{0.9, 0.08, 0.02}, reduced.getTable(), 10e-7);
+
+    ConditionalProbabilityDistribution widened =
+        single.toPrecision(ConditionalProbabilityDistribution.Precision.DOUBLE);
+    Assertions.assertNull(widened.floatTable());
+    Assertions.assertArrayEquals(single.getTable(), widened.getTable(), 0.0);
+  }
+
   @Test void testEquals() {
     ConditionalProbabilityDistribution cpd2 = new ConditionalProbabilityDistribution("G", 3, evidence, eCardinality, expectedTable);
     ConditionalProbabilityDistribution cpd3 = new ConditionalProbabilityDistribution("g", 3, evidence, eCardinality, expectedTable);
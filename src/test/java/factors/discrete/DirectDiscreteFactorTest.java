@@ -0,0 +1,147 @@
+package factors.discrete;
+
+import com.google.common.collect.Lists;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import primitives.Event;
+import primitives.EventStream;
+
+import java.util.List;
+
+/**
+ * Test class for DirectDiscreteFactor
+ *
+ * @version 1.0.0
+ *
+ * @author Sean McMillan
+ */
+class DirectDiscreteFactorTest extends FactorStorageTest<DirectDiscreteFactor> {
+  @Override DirectDiscreteFactor convert(DiscreteFactor dense) {
+    return DirectDiscreteFactor.fromFactor(dense);
+  }
+
+  @AfterEach void tearDown() {
+    factor.close();
+  }
+
+  @Test void testDirectStorage() {
+    Assertions.assertNull(factor.values);
+    Assertions.assertTrue(factor.equals(discreteFactor));
+
+    factor.marginalize(Lists.newArrayList("D"), true);
+    Assertions.assertNull(factor.values);
+  }
+
+  @Test void testSmallProduct() {
+    DiscreteFactor other = new DiscreteFactor(Lists.newArrayList("G", "L"),
+        Lists.newArrayList(3, 2), new double[]{0.1, 0.9, 0.4, 0.6, 0.99, 0.01});
+
+    DiscreteFactor product = factor.product(other);
+    Assertions.assertFalse(product instanceof DirectDiscreteFactor);
+    assertSameFactor(discreteFactor.product(other), product);
+  }
+
+  @Test void testLargeProduct() {
+    // 2 * 2 * 3 * 2^13 cells is above OFF_HEAP_THRESHOLD
+    List<String> vars = Lists.newArrayList();
+    List<Integer> card = Lists.newArrayList();
+    for(int i = 0;i < 13;++i) {
+      vars.add("X" + i);
+      card.add(2);
+    }
+    double[] otherValues = new double[1 << 13];
+    for(int i = 0;i < otherValues.length;++i) {
+      otherValues[i] = (i % 7) / 7.0;
+    }
+    DiscreteFactor other = new DiscreteFactor(vars, card, otherValues);
+
+    DiscreteFactor product = DirectDiscreteFactor.product(discreteFactor, other);
+    Assertions.assertTrue(product instanceof DirectDiscreteFactor);
+    assertSameFactor(discreteFactor.product(other), product);
+    ((DirectDiscreteFactor) product).close();
+  }
+
+  @Test void testSumProduct() {
+    // 2 * 2 * 2^15 cells are left once G is summed out
+    List<String> vars = Lists.newArrayList();
+    List<Integer> card = Lists.newArrayList();
+    for(int i = 0;i < 15;++i) {
+      vars.add("X" + i);
+      card.add(2);
+    }
+    double[] otherValues = new double[1 << 15];
+    for(int i = 0;i < otherValues.length;++i) {
+      otherValues[i] = (i % 5) / 5.0;
+    }
+    DiscreteFactor other = new DiscreteFactor(vars, card, otherValues);
+    List<DiscreteFactor> bucket = Lists.newArrayList(factor, other);
+
+    DiscreteFactor message = DirectDiscreteFactor.sumProduct(bucket, Lists.newArrayList("G"));
+    Assertions.assertTrue(message instanceof DirectDiscreteFactor);
+    assertSameFactor(DiscreteFactor.sumProduct(bucket, Lists.newArrayList("G")), message);
+    ((DirectDiscreteFactor) message).close();
+
+    // Small messages stay on the heap
+    message = DirectDiscreteFactor.sumProduct(Lists.newArrayList(factor),
+        Lists.newArrayList("G"));
+    Assertions.assertFalse(message instanceof DirectDiscreteFactor);
+    assertSameFactor((DiscreteFactor) discreteFactor.marginalize(
+        Lists.newArrayList("G"), false), message);
+  }
+
+  @Test void testLargeReduceAndMarginalize() {
+    // 2^17 cells, each operation leaves 2^16 which stay off the heap
+    List<String> vars = Lists.newArrayList();
+    List<Integer> card = Lists.newArrayList();
+    for(int i = 0;i < 17;++i) {
+      vars.add("X" + i);
+      card.add(2);
+    }
+    double[] largeValues = new double[1 << 17];
+    for(int i = 0;i < largeValues.length;++i) {
+      largeValues[i] = (i % 11) / 11.0;
+    }
+    DiscreteFactor dense = new DiscreteFactor(vars, card, largeValues);
+    DirectDiscreteFactor large = DirectDiscreteFactor.fromFactor(dense);
+    List<Event> events = new EventStream("X0=1").getEvents();
+    List<String> summed = Lists.newArrayList("X8");
+
+    for(DiscreteFactor result : Lists.newArrayList(
+        (DiscreteFactor) large.reduce(events, false),
+        (DiscreteFactor) large.marginalize(summed, false))) {
+      Assertions.assertTrue(result instanceof DirectDiscreteFactor);
+      FactorArena.release(result);
+    }
+    assertSameFactor((DiscreteFactor) dense.reduce(events, false),
+        (DiscreteFactor) large.reduce(events, false));
+    assertSameFactor((DiscreteFactor) dense.marginalize(summed, false),
+        (DiscreteFactor) large.marginalize(summed, false));
+
+    // In place the factor keeps its storage
+    Assertions.assertSame(large, large.marginalize(summed, true));
+    Assertions.assertSame(large, large.reduce(events, true));
+    assertSameFactor((DiscreteFactor) ((DiscreteFactor) dense.marginalize(summed, false))
+        .reduce(events, false), large);
+    Assertions.assertEquals(1, large.getReductions().size());
+    large.close();
+  }
+
+  @Test void testClose() {
+    factor.close();
+    Assertions.assertTrue(factor.isClosed());
+    Assertions.assertThrows(IllegalStateException.class,
+        () -> factor.normalize(false));
+
+    // closing twice is harmless
+    factor.close();
+  }
+
+  @Test void testTooLarge() {
+    // 2^28 doubles are 2^31 bytes, one more than an int can index
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> DirectBufferPool.acquire(1 << 28));
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> DirectBufferPool.acquire(-1));
+  }
+}
@@ -7,6 +7,7 @@ import factors.Factor;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import primitives.Event;
 import primitives.EventStream;
 
 import java.util.Arrays;
@@ -70,6 +71,17 @@ class DiscreteFactorTest {
 
   }
 
+  @Test void testProductReductions() {
+    Factor left = discreteFactor.reduce(new EventStream("I=1").getEvents(), false);
+    Factor right = new DiscreteFactor(Lists.newArrayList("G", "L"),
+        Lists.newArrayList(3, 2), new double[]{0.1, 0.9, 0.4, 0.6, 0.99, 0.01})
+        .reduce(new EventStream("L=0").getEvents(), false);
+
+    // The product keeps the reductions of both operands
+    Assertions.assertEquals("\u03C6(D,G | I=1,L=0)",
+        ((DiscreteFactor) left).product((DiscreteFactor) right).factorString());
+  }
+
   @Test void testValidFactor() {
     List<String> tooFewVars = Lists.newArrayList("I", "D");
     List<Integer> tooManyCard = Lists.newArrayList(2, 2, 3, 4);
@@ -93,6 +105,19 @@ class DiscreteFactorTest {
     Assertions.assertTrue(Iterables.elementsEqual(variables, discreteFactor.getScope()));
   }
 
+  @Test void testGetValue() {
+    Assertions.assertEquals(0.3, discreteFactor.getValue(new Event("D=1")), threshold);
+    Assertions.assertEquals(0.2816, discreteFactor.getValue(new Event("G=2")), threshold);
+    Assertions.assertEquals(0.0, discreteFactor.getValue(new Event("X=0")), threshold);
+  }
+
+  @Test void testGetNamedValue() {
+    // Outcomes are indices, a named outcome matches no cell
+    Assertions.assertEquals(0.0, discreteFactor.getValue(new Event("D=yes")), threshold);
+    Assertions.assertEquals(0.0, discreteFactor.getValue(new Event("D")), threshold);
+    Assertions.assertEquals(0.0, discreteFactor.getValue(new Event("D=-1")), threshold);
+  }
+
   @Test void testNormalize() {
     Factor factor = discreteFactor.normalize(false);
 
@@ -133,6 +158,33 @@ class DiscreteFactorTest {
     Assertions.assertArrayEquals(iReduction, discreteFactor.values, threshold);
   }
 
+  @Test void testReduceBatch() {
+    int[][] rows = new int[][]{{1, 0}, {2, 0}, {1, 1}};
+    DiscreteFactor batch = discreteFactor.reduceBatch(
+        Lists.newArrayList("G", "I"), rows, "#rows");
+
+    Assertions.assertEquals(Lists.newArrayList("#rows", "D"), batch.getScope());
+    Assertions.assertEquals(Lists.newArrayList(3, 2), batch.getCardinality());
+    for(int r = 0;r < rows.length;++r) {
+      DiscreteFactor reduced = (DiscreteFactor) discreteFactor.reduce(Lists.newArrayList(
+          new Event("G=" + rows[r][0]), new Event("I=" + rows[r][1])), false);
+      Assertions.assertArrayEquals(reduced.values,
+          Arrays.copyOfRange(batch.values, 2 * r, 2 * r + 2), 0.0);
+    }
+
+    // Trailing free variables are copied as runs
+    batch = discreteFactor.reduceBatch(Lists.newArrayList("I"), new int[][]{{1}, {0}}, "#rows");
+    Assertions.assertArrayEquals(new double[]{0.252, 0.0224, 0.0056, 0.06, 0.036, 0.024,
+        0.126, 0.168, 0.126, 0.009, 0.045, 0.126}, batch.values, 0.0);
+
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> discreteFactor.reduceBatch(Lists.newArrayList("I"), new int[][]{{2}}, "#rows"));
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> discreteFactor.reduceBatch(Lists.newArrayList("X"), new int[][]{{0}}, "#rows"));
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> discreteFactor.reduceBatch(Lists.newArrayList("I"), new int[][]{{0}}, "D"));
+  }
+
   @Test void testReduceSingleVariable() {
     double[] expected = new double[]{1.0};
 
@@ -170,6 +222,24 @@ class DiscreteFactorTest {
     Assertions.assertArrayEquals(dgReduction, discreteFactor.values, threshold);
   }
 
+  @Test void testReduceInnerVariable() {
+    double[] dReduction = new double[]{0.009, 0.045, 0.126,
+        0.06, 0.036, 0.024};
+
+    Factor factor = discreteFactor.reduce(new EventStream("D=1").getEvents(), false);
+
+    Assertions.assertTrue(Iterables.elementsEqual(Lists.newArrayList("I", "G"), factor.getScope()));
+    Assertions.assertTrue(Iterables.elementsEqual(Lists.newArrayList(2, 3), ((DiscreteFactor)factor).getCardinality()));
+    Assertions.assertArrayEquals(dReduction, ((DiscreteFactor)factor).values, threshold);
+  }
+
+  @Test void testInvalidReduction() {
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> discreteFactor.reduce(new EventStream("X=0").getEvents(), false));
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> discreteFactor.reduce(new EventStream("G=3").getEvents(), false));
+  }
+
   @Test void testMarginalize() {
     double[] g_marginalized = new double[]{0.42, 0.18, 0.28, 0.12};
 
@@ -215,6 +285,24 @@ class DiscreteFactorTest {
     Assertions.assertArrayEquals(gd_marginalized, discreteFactor.values, threshold);
   }
 
+  @Test void testMarginalizeInnerVariable() {
+    double[] d_marginalized = new double[]{
+        0.135, 0.213, 0.252,
+        0.312, 0.0584, 0.0296
+    };
+
+    Factor factor = discreteFactor.marginalize(Lists.newArrayList("D"), false);
+
+    Assertions.assertTrue(Iterables.elementsEqual(Lists.newArrayList("I", "G"), factor.getScope()));
+    Assertions.assertTrue(Iterables.elementsEqual(Lists.newArrayList(2, 3), ((DiscreteFactor)factor).getCardinality()));
+    Assertions.assertArrayEquals(d_marginalized, ((DiscreteFactor)factor).values, threshold);
+
+    Factor iFactor = discreteFactor.marginalize(Lists.newArrayList("I", "G"), false);
+
+    Assertions.assertTrue(Iterables.elementsEqual(Lists.newArrayList("D"), iFactor.getScope()));
+    Assertions.assertArrayEquals(new double[]{0.7, 0.3}, ((DiscreteFactor)iFactor).values, threshold);
+  }
+
   @Test void testProductOverlap() {
     DiscreteFactor xy = new DiscreteFactor(
         Lists.newArrayList("X", "Y"),
@@ -270,4 +358,209 @@ class DiscreteFactorTest {
     Assertions.assertTrue(Iterables.elementsEqual(expected.getCardinality(), xy.getCardinality()));
     Assertions.assertArrayEquals(expected.values, xy.values, threshold);
   }
+
+  @Test void testProductReorderedOverlap() {
+    DiscreteFactor xy = new DiscreteFactor(
+        Lists.newArrayList("X", "Y"),
+        Lists.newArrayList(3, 2),
+        new double[]{0.5, 0.8, 0.1, 0, 0.3, 0.9}
+    );
+    DiscreteFactor yx = new DiscreteFactor(
+        Lists.newArrayList("Y", "X"),
+        Lists.newArrayList(2, 3),
+        new double[]{1, 2, 3, 4, 5, 6}
+    );
+    DiscreteFactor expected = new DiscreteFactor(
+        Lists.newArrayList("X", "Y"),
+        Lists.newArrayList(3, 2),
+        new double[]{
+            0.5, 3.2,
+            0.2, 0,
+            0.9, 5.4
+        }
+    );
+
+    DiscreteFactor product = xy.product(yx);
+
+    Assertions.assertTrue(Iterables.elementsEqual(expected.getScope(), product.getScope()));
+    Assertions.assertTrue(Iterables.elementsEqual(expected.getCardinality(), product.getCardinality()));
+    Assertions.assertArrayEquals(expected.values, product.values, threshold);
+  }
+
+  @Test void testSumProduct() {
+    DiscreteFactor gl = new DiscreteFactor(
+        Lists.newArrayList("G", "L"),
+        Lists.newArrayList(3, 2),
+        new double[]{0.1, 0.9, 0.4, 0.6, 0.99, 0.01}
+    );
+    DiscreteFactor ls = new DiscreteFactor(
+        Lists.newArrayList("L", "S"),
+        Lists.newArrayList(2, 2),
+        new double[]{0.95, 0.05, 0.2, 0.8}
+    );
+    List<DiscreteFactor> bucket = Lists.newArrayList(discreteFactor, gl, ls);
+
+    for(List<String> summed : Lists.<List<String>>newArrayList(
+        Lists.newArrayList("G"), Lists.newArrayList("L", "I"),
+        Lists.newArrayList(), Lists.newArrayList("I", "D", "G", "L", "S"))) {
+      DiscreteFactor expected = (DiscreteFactor) discreteFactor.product(gl).product(ls)
+          .marginalize(summed, false);
+      DiscreteFactor fused = DiscreteFactor.sumProduct(bucket, summed);
+
+      Assertions.assertTrue(Iterables.elementsEqual(expected.getScope(), fused.getScope()));
+      Assertions.assertTrue(Iterables.elementsEqual(expected.getCardinality(), fused.getCardinality()));
+      Assertions.assertArrayEquals(expected.values, fused.values, threshold);
+    }
+  }
+
+  @Test void testParallelKernels() {
+    // Two factors sharing X5..X15 whose product has 2^21 cells
+    List<String> leftVars = Lists.newArrayList();
+    List<String> rightVars = Lists.newArrayList();
+    List<Integer> card = Lists.newArrayList();
+    for(int i = 0;i < 16;++i) {
+      leftVars.add("X" + i);
+      rightVars.add("X" + (i + 5));
+      card.add(2);
+    }
+    double[] leftValues = new double[1 << 16];
+    double[] rightValues = new double[1 << 16];
+    for(int i = 0;i < leftValues.length;++i) {
+      leftValues[i] = (i % 13) / 13.0;
+      rightValues[i] = (i % 7) / 7.0;
+    }
+    DiscreteFactor left = new DiscreteFactor(leftVars, card, leftValues);
+    DiscreteFactor right = new DiscreteFactor(rightVars, card, rightValues);
+    List<String> summed = Lists.newArrayList("X2", "X6");
+
+    DiscreteFactor product = left.product(right);
+    DiscreteFactor marginal = (DiscreteFactor) left.marginalize(summed, false);
+    DiscreteFactor fused = DiscreteFactor.sumProduct(Lists.newArrayList(left, right), summed);
+    LogDiscreteFactor logLeft = LogDiscreteFactor.fromFactor(left);
+    DiscreteFactor logProduct = logLeft.product(right);
+    DiscreteFactor logMarginal = (DiscreteFactor) logLeft.marginalize(summed, false);
+    DirectDiscreteFactor directLeft = DirectDiscreteFactor.fromFactor(left);
+    DirectDiscreteFactor directProduct =
+        (DirectDiscreteFactor) DirectDiscreteFactor.product(directLeft, right);
+
+    int threshold = DiscreteFactor.getParallelThreshold();
+    DiscreteFactor.setParallelThreshold(1);
+    try {
+      Assertions.assertArrayEquals(logProduct.values, logLeft.product(right).values);
+      Assertions.assertArrayEquals(logMarginal.values,
+          ((DiscreteFactor) logLeft.marginalize(summed, false)).values);
+      DirectDiscreteFactor parallelProduct =
+          (DirectDiscreteFactor) DirectDiscreteFactor.product(directLeft, right);
+      Assertions.assertArrayEquals(directProduct.toDiscreteFactor().values,
+          parallelProduct.toDiscreteFactor().values);
+      parallelProduct.close();
+      Assertions.assertArrayEquals(product.values, left.product(right).values);
+      Assertions.assertArrayEquals(marginal.values,
+          ((DiscreteFactor) left.marginalize(summed, false)).values);
+      Assertions.assertArrayEquals(fused.values,
+          DiscreteFactor.sumProduct(Lists.newArrayList(left, right), summed).values);
+    } finally {
+      DiscreteFactor.setParallelThreshold(threshold);
+      directLeft.close();
+      directProduct.close();
+    }
+  }
+
+  @Test void testCopyOnWrite() {
+    DiscreteFactor copy = (DiscreteFactor) discreteFactor.copy();
+    Assertions.assertSame(discreteFactor.values, copy.values);
+    Assertions.assertEquals(discreteFactor.hashCode(), copy.hashCode());
+
+    copy.normalize(true);
+    Assertions.assertNotSame(discreteFactor.values, copy.values);
+    Assertions.assertArrayEquals(values, discreteFactor.values, 0.0);
+    Assertions.assertFalse(discreteFactor.equals((Object) copy));
+
+    // Writing the original after its copy was taken also leaves the copy alone
+    DiscreteFactor second = (DiscreteFactor) discreteFactor.copy();
+    discreteFactor.normalize(true);
+    Assertions.assertArrayEquals(values, second.values, 0.0);
+  }
+
+  @Test void testHashCode() {
+    DiscreteFactor same = new DiscreteFactor(variables, cardinality, values);
+    Assertions.assertTrue(discreteFactor.equals((Object) same));
+    Assertions.assertEquals(discreteFactor.hashCode(), same.hashCode());
+
+    int before = same.hashCode();
+    same.normalize(true);
+    Assertions.assertNotEquals(before, same.hashCode());
+    Assertions.assertEquals(((DiscreteFactor) discreteFactor.normalize(false)).hashCode(),
+        same.hashCode());
+  }
+
+  @Test void testEqualsAcrossStorage() {
+    // Equal cells are equal whatever the storage, in both directions
+    DiscreteFactor sparse = SparseDiscreteFactor.fromFactor(discreteFactor);
+    DirectDiscreteFactor direct = DirectDiscreteFactor.fromFactor(discreteFactor);
+    for(DiscreteFactor other : Lists.newArrayList(sparse, direct)) {
+      Assertions.assertTrue(discreteFactor.equals((Object) other));
+      Assertions.assertTrue(other.equals((Object) discreteFactor));
+      Assertions.assertEquals(discreteFactor.hashCode(), other.hashCode());
+    }
+    direct.close();
+
+    DiscreteFactor rounded = FloatDiscreteFactor.fromFactor(discreteFactor);
+    DiscreteFactor widened = ((FloatDiscreteFactor) rounded).toDiscreteFactor();
+    Assertions.assertFalse(discreteFactor.equals((Object) rounded));
+    Assertions.assertFalse(rounded.equals((Object) discreteFactor));
+    Assertions.assertTrue(rounded.equals((Object) widened));
+    Assertions.assertTrue(widened.equals((Object) rounded));
+
+    // Log values are in another domain
+    DiscreteFactor log = LogDiscreteFactor.fromFactor(discreteFactor);
+    DiscreteFactor raw = new DiscreteFactor(variables, cardinality, log.values);
+    Assertions.assertFalse(log.equals((Object) raw));
+    Assertions.assertFalse(raw.equals((Object) log));
+  }
+
+  @Test void testGetValues() {
+    int[][] assignments = new int[][]{
+        {0, 0, 0},
+        {1, 1, 2},
+        {1, 0, 1},
+        {-1, 1, -1},
+        {-1, 0, -1},
+        {-1, -1, 2},
+        {0, 1, 2},
+        {-1, -1, -1}
+    };
+    double[] out = new double[assignments.length];
+    discreteFactor.getValues(assignments, out);
+
+    Assertions.assertEquals(values[0], out[0], threshold);
+    Assertions.assertEquals(values[11], out[1], threshold);
+    Assertions.assertEquals(values[7], out[2], threshold);
+    Assertions.assertEquals(discreteFactor.getValue(new Event("D=1")), out[3], threshold);
+    Assertions.assertEquals(discreteFactor.getValue(new Event("D=0")), out[4], threshold);
+    Assertions.assertEquals(discreteFactor.getValue(new Event("G=2")), out[5], threshold);
+    Assertions.assertEquals(values[5], out[6], threshold);
+    Assertions.assertEquals(1.0, out[7], threshold);
+
+    // The same rows laid out flat with one padding element per row
+    int[] flat = new int[assignments.length * 4];
+    for(int r = 0;r < assignments.length;++r) {
+      System.arraycopy(assignments[r], 0, flat, r * 4, 3);
+    }
+    double[] flatOut = new double[assignments.length];
+    discreteFactor.getValues(flat, 4, flatOut);
+    Assertions.assertArrayEquals(out, flatOut, 0.0);
+  }
+
+  @Test void testInvalidGetValues() {
+    double[] out = new double[1];
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> discreteFactor.getValues(new int[][]{{0, 2, 0}}, out));
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> discreteFactor.getValues(new int[][]{{0, 0}}, out));
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> discreteFactor.getValues(new int[]{0, 0, 0}, 2, out));
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> discreteFactor.getValues(new int[]{0, 0, 0}, 3, new double[2]));
+  }
 }
@@ -0,0 +1,135 @@
+package factors.discrete;
+
+import com.google.common.collect.Lists;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Test class for FactorArena
+ *
+ * @version 1.0.0
+ *
+ * @author Sean McMillan
+ */
+class FactorArenaTest {
+  List<String> variables = Lists.newArrayList("I", "D", "G");
+  List<Integer> cardinality = Lists.newArrayList(2, 2, 3);
+  double[] values =  new double[]{
+      0.126, 0.168, 0.006,
+      0.009, 0.045, 0.126,
+      0.252, 0.0224, 0.0056,
+      0.06, 0.036, 0.024
+  };
+
+  DiscreteFactor discreteFactor = null;
+
+  @BeforeEach void setUp() {
+    discreteFactor = issued();
+  }
+
+  /**
+   * @return a factor of the fixture whose table was handed out by the arena,
+   * as the tables of all kernel results are
+   */
+  DiscreteFactor issued() {
+    return (DiscreteFactor) new DiscreteFactor(variables, cardinality, values)
+        .reduce(Lists.newArrayList(), false);
+  }
+
+  @Test void testReleaseReusesTable() {
+    double[] table = discreteFactor.values;
+    FactorArena.release(discreteFactor);
+
+    Assertions.assertNull(discreteFactor.values);
+    Assertions.assertSame(table, FactorArena.allocate(values.length));
+    Assertions.assertNotSame(table, FactorArena.allocate(values.length));
+  }
+
+  @Test void testKernelsUseArena() {
+    DiscreteFactor other = new DiscreteFactor(Lists.newArrayList("G", "L"),
+        Lists.newArrayList(3, 2), new double[]{0.1, 0.9, 0.4, 0.6, 0.99, 0.01});
+    DiscreteFactor expected = discreteFactor.product(other);
+
+    DiscreteFactor first = discreteFactor.product(other);
+    double[] table = first.values;
+    FactorArena.release(first);
+    DiscreteFactor second = discreteFactor.product(other);
+
+    Assertions.assertSame(table, second.values);
+    Assertions.assertArrayEquals(expected.values, second.values, 0.0);
+  }
+
+  @Test void testPooledBytes() {
+    long before = FactorArena.pooledBytes();
+    FactorArena.release(discreteFactor);
+    Assertions.assertEquals(before + values.length * Double.BYTES,
+        FactorArena.pooledBytes());
+
+    // Releasing twice does not pool the table twice
+    FactorArena.release(discreteFactor);
+    Assertions.assertEquals(before + values.length * Double.BYTES,
+        FactorArena.pooledBytes());
+  }
+
+  @Test void testOnlyIssuedTables() {
+    // The table of a factor built from an array was not handed out
+    long before = FactorArena.pooledBytes();
+    FactorArena.release(new DiscreteFactor(variables, cardinality, values));
+    Assertions.assertEquals(before, FactorArena.pooledBytes());
+
+    // Two factors holding the same table only return it once
+    DiscreteFactor alias = new DiscreteFactor();
+    alias.setTable(discreteFactor.scope(), discreteFactor.cardinality(),
+        discreteFactor.values);
+    FactorArena.release(discreteFactor);
+    FactorArena.release(alias);
+    Assertions.assertEquals(before + values.length * Double.BYTES,
+        FactorArena.pooledBytes());
+  }
+
+  @Test void testTotalPoolLimit() throws InterruptedException {
+    long limit = FactorArena.getTotalPoolLimit();
+    long bytes = values.length * Double.BYTES;
+    try {
+      // Tables pooled by another thread count against the total of this one.
+      // The other thread is kept alive so its arena is not collected
+      FactorArena.setTotalPoolLimit(FactorArena.totalPooledBytes() + bytes);
+      CountDownLatch released = new CountDownLatch(1);
+      CountDownLatch done = new CountDownLatch(1);
+      Thread other = new Thread(() -> {
+        FactorArena.release(issued());
+        released.countDown();
+        try {
+          done.await();
+        } catch(InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+      other.start();
+      released.await();
+      Assertions.assertEquals(FactorArena.getTotalPoolLimit(), FactorArena.totalPooledBytes());
+
+      long before = FactorArena.pooledBytes();
+      FactorArena.release(discreteFactor);
+      Assertions.assertEquals(before, FactorArena.pooledBytes());
+      Assertions.assertThrows(IllegalArgumentException.class,
+          () -> FactorArena.setTotalPoolLimit(-1));
+
+      done.countDown();
+      other.join();
+    } finally {
+      FactorArena.setTotalPoolLimit(limit);
+    }
+  }
+
+  @Test void testReleaseDirectFactor() {
+    DirectDiscreteFactor direct = DirectDiscreteFactor.fromFactor(discreteFactor);
+    FactorArena.release(direct);
+
+    Assertions.assertTrue(direct.isClosed());
+  }
+}
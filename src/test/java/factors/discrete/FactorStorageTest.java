@@ -0,0 +1,128 @@
+package factors.discrete;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import primitives.Event;
+import primitives.EventStream;
+
+import java.util.List;
+
+/**
+ * Tests shared by the factors that keep their values in another storage
+ * than a DiscreteFactor. Each subclass converts the dense fixture into its
+ * storage, and every operation on the converted factor must give the same
+ * scope and cells as on the dense fixture.
+ *
+ * @version 1.0.0
+ *
+ * @author Sean McMillan
+ */
+abstract class FactorStorageTest<F extends DiscreteFactor> {
+  List<String> variables = Lists.newArrayList("I", "D", "G");
+  List<Integer> cardinality = Lists.newArrayList(2, 2, 3);
+
+  DiscreteFactor discreteFactor = null;
+  F factor = null;
+
+  /**
+   * @param dense the factor to convert
+   * @return a factor of the tested storage with the cells of dense
+   */
+  abstract F convert(DiscreteFactor dense);
+
+  /**
+   * @return the cells of the fixture, in the layout of the I, D, G scope
+   */
+  double[] values() {
+    return new double[]{
+        0.126, 0.168, 0.006,
+        0.009, 0.045, 0.126,
+        0.252, 0.0224, 0.0056,
+        0.06, 0.036, 0.024
+    };
+  }
+
+  /**
+   * @return the largest difference allowed between a cell and the dense one
+   */
+  double threshold() {
+    return 10e-8;
+  }
+
+  @BeforeEach void setUp() {
+    discreteFactor = new DiscreteFactor(variables, cardinality, values());
+    factor = convert(discreteFactor);
+  }
+
+  /**
+   * Assert that a factor of any storage has the scope, cardinality and
+   * probabilities of a dense one.
+   */
+  void assertSameFactor(DiscreteFactor expected, DiscreteFactor actual) {
+    double[] cells = new double[actual.size()];
+    actual.copyRun(0, cells, 0, cells.length);
+    if(actual instanceof LogDiscreteFactor) {
+      for(int i = 0;i < cells.length;++i) {
+        cells[i] = Math.exp(cells[i]);
+      }
+    }
+
+    Assertions.assertTrue(Iterables.elementsEqual(expected.getScope(), actual.getScope()));
+    Assertions.assertTrue(Iterables.elementsEqual(expected.getCardinality(), actual.getCardinality()));
+    Assertions.assertArrayEquals(expected.values, cells, threshold());
+  }
+
+  @Test void testFromFactor() {
+    assertSameFactor(discreteFactor, factor);
+  }
+
+  @Test void testGetValue() {
+    Assertions.assertEquals(discreteFactor.getValue(new Event("G=2")),
+        factor.getValue(new Event("G=2")), threshold());
+    Assertions.assertEquals(discreteFactor.getValue(new Event("I=0")),
+        factor.getValue(new Event("I=0")), threshold());
+    Assertions.assertEquals(0.0, factor.getValue(new Event("G=high")), threshold());
+  }
+
+  @Test void testReduce() {
+    List<Event> events = new EventStream("D=1").getEvents();
+    DiscreteFactor expected = (DiscreteFactor) discreteFactor.reduce(events, false);
+
+    assertSameFactor(expected, (DiscreteFactor) factor.reduce(events, false));
+
+    Assertions.assertSame(factor, factor.reduce(events, true));
+    assertSameFactor(expected, factor);
+  }
+
+  @Test void testMarginalize() {
+    for(List<String> summed : Lists.newArrayList(Lists.newArrayList("G"),
+        Lists.newArrayList("D"), Lists.newArrayList("I", "G"))) {
+      assertSameFactor((DiscreteFactor) discreteFactor.marginalize(summed, false),
+          (DiscreteFactor) factor.marginalize(summed, false));
+    }
+
+    List<String> summed = Lists.newArrayList("D");
+    Assertions.assertSame(factor, factor.marginalize(summed, true));
+    assertSameFactor((DiscreteFactor) discreteFactor.marginalize(summed, false), factor);
+  }
+
+  @Test void testNormalize() {
+    DiscreteFactor expected = (DiscreteFactor) discreteFactor.normalize(false);
+
+    assertSameFactor(expected, (DiscreteFactor) factor.normalize(false));
+    assertSameFactor(discreteFactor, factor);
+    factor.normalize(true);
+    assertSameFactor(expected, factor);
+  }
+
+  @Test void testProduct() {
+    DiscreteFactor other = new DiscreteFactor(Lists.newArrayList("G", "L"),
+        Lists.newArrayList(3, 2), new double[]{0.1, 0.9, 0.4, 0.6, 0.99, 0.01});
+
+    assertSameFactor(discreteFactor.product(other), factor.product(other));
+    assertSameFactor(other.product(discreteFactor), other.product(factor));
+  }
+}
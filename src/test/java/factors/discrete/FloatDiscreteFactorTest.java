@@ -0,0 +1,85 @@
+package factors.discrete;
+
+import com.google.common.collect.Lists;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import primitives.EventStream;
+
+import java.util.List;
+
+/**
+ * Test class for FloatDiscreteFactor
+ *
+ * @version 1.0.0
+ *
+ * @author Sean McMillan
+ */
+class FloatDiscreteFactorTest extends FactorStorageTest<FloatDiscreteFactor> {
+  @Override FloatDiscreteFactor convert(DiscreteFactor dense) {
+    return FloatDiscreteFactor.fromFactor(dense);
+  }
+
+  @Override double threshold() {
+    return 10e-7;
+  }
+
+  @Test void testFloatStorage() {
+    Assertions.assertNull(factor.values);
+    Assertions.assertTrue(factor.equals((DiscreteFactor) factor.copy()));
+
+    // A copy shares the table, and changing it leaves this factor as it was
+    FloatDiscreteFactor copy = (FloatDiscreteFactor) factor.copy();
+    Assertions.assertSame(factor.floatTable(), copy.floatTable());
+    copy.normalize(true);
+    Assertions.assertNotSame(factor.floatTable(), copy.floatTable());
+    assertSameFactor(discreteFactor, factor);
+
+    // Results stay in single precision
+    Assertions.assertTrue(factor.reduce(new EventStream("D=1").getEvents(), false)
+        instanceof FloatDiscreteFactor);
+    Assertions.assertTrue(factor.marginalize(Lists.newArrayList("D"), false)
+        instanceof FloatDiscreteFactor);
+  }
+
+  @Test void testFloatProduct() {
+    DiscreteFactor other = new DiscreteFactor(Lists.newArrayList("G", "L"),
+        Lists.newArrayList(3, 2), new double[]{0.1, 0.9, 0.4, 0.6, 0.99, 0.01});
+
+    // A dense operand on either side gives a float product
+    Assertions.assertTrue(factor.product(other) instanceof FloatDiscreteFactor);
+    Assertions.assertTrue(other.product(factor) instanceof FloatDiscreteFactor);
+    assertSameFactor(discreteFactor.product(other),
+        factor.product(FloatDiscreteFactor.fromFactor(other)));
+  }
+
+  @Test void testSumProduct() {
+    DiscreteFactor other = new DiscreteFactor(Lists.newArrayList("G", "L"),
+        Lists.newArrayList(3, 2), new double[]{0.1, 0.9, 0.4, 0.6, 0.99, 0.01});
+    List<String> summed = Lists.newArrayList("G", "D");
+    DiscreteFactor expected = DiscreteFactor.sumProduct(
+        Lists.newArrayList(discreteFactor, other), summed);
+
+    DiscreteFactor result = FloatDiscreteFactor.sumProduct(
+        Lists.newArrayList(factor, other), summed);
+    Assertions.assertTrue(result instanceof FloatDiscreteFactor);
+    Assertions.assertNull(result.values);
+    assertSameFactor(expected, result);
+  }
+
+  @Test void testFromFloatDistribution() {
+    ConditionalProbabilityDistribution cpd = ConditionalProbabilityDistribution.fromTable(
+        "G", 3, Lists.newArrayList("I", "D"), Lists.newArrayList(2, 2), values())
+        .toPrecision(ConditionalProbabilityDistribution.Precision.FLOAT);
+
+    FloatDiscreteFactor shared = FloatDiscreteFactor.fromFactor(cpd);
+    Assertions.assertSame(cpd.floatTable(), shared.floatTable());
+    assertSameFactor(discreteFactor, shared);
+
+    // Writes replace the shared table rather than change it
+    shared.normalize(true);
+    shared.reduce(new EventStream("D=1").getEvents(), true);
+    Assertions.assertArrayEquals(values(), cpd.getTable(), threshold());
+    assertSameFactor((DiscreteFactor) ((DiscreteFactor) discreteFactor.normalize(false))
+        .reduce(new EventStream("D=1").getEvents(), false), shared);
+  }
+}
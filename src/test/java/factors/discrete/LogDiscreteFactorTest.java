@@ -0,0 +1,113 @@
+package factors.discrete;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+/**
+ * Test class for LogDiscreteFactor
+ *
+ * @version 1.0.0
+ *
+ * @author Sean McMillan
+ */
+class LogDiscreteFactorTest extends FactorStorageTest<LogDiscreteFactor> {
+  @Override LogDiscreteFactor convert(DiscreteFactor dense) {
+    return LogDiscreteFactor.fromFactor(dense);
+  }
+
+  @Test void testRoundTrip() {
+    DiscreteFactor result = (DiscreteFactor) factor.toDiscreteFactor().normalize(false);
+
+    Assertions.assertTrue(Iterables.elementsEqual(variables, result.getScope()));
+    Assertions.assertArrayEquals(((DiscreteFactor) discreteFactor.normalize(false)).values,
+        result.values, threshold());
+  }
+
+  @Test void testFromStorage() {
+    // Sparse, float and off-heap factors keep no values array
+    for(DiscreteFactor other : Lists.newArrayList(
+        SparseDiscreteFactor.fromFactor(discreteFactor),
+        FloatDiscreteFactor.fromFactor(discreteFactor),
+        DirectDiscreteFactor.fromFactor(discreteFactor))) {
+      Assertions.assertArrayEquals(factor.values,
+          LogDiscreteFactor.fromFactor(other).values, 10e-7);
+    }
+  }
+
+  @Test void testMixedProduct() {
+    DiscreteFactor other = new DiscreteFactor(Lists.newArrayList("G", "L"),
+        Lists.newArrayList(3, 2), new double[]{0.1, 0.9, 0.4, 0.6, 0.99, 0.01});
+    LogDiscreteFactor logOther = LogDiscreteFactor.fromFactor(other);
+    DiscreteFactor expected = discreteFactor.product(other);
+
+    // A log operand on either side gives a log product
+    for(DiscreteFactor product : Lists.newArrayList(factor.product(logOther),
+        discreteFactor.product(logOther),
+        LogDiscreteFactor.product(discreteFactor, other),
+        SparseDiscreteFactor.fromFactor(discreteFactor).product(logOther),
+        FloatDiscreteFactor.fromFactor(discreteFactor).product(logOther),
+        DirectDiscreteFactor.fromFactor(discreteFactor).product(logOther))) {
+      Assertions.assertTrue(product instanceof LogDiscreteFactor);
+      assertSameFactor(expected, product);
+    }
+  }
+
+  @Test void testSumProduct() {
+    DiscreteFactor other = new DiscreteFactor(Lists.newArrayList("G", "L"),
+        Lists.newArrayList(3, 2), new double[]{0.1, 0.9, 0.4, 0.6, 0.99, 0.01});
+    DiscreteFactor expected = DiscreteFactor.sumProduct(
+        Lists.newArrayList(discreteFactor, other), Lists.newArrayList("G"));
+    DiscreteFactor result = DiscreteFactor.sumProduct(
+        Lists.newArrayList(discreteFactor, LogDiscreteFactor.fromFactor(other)),
+        Lists.newArrayList("G"));
+
+    Assertions.assertTrue(result instanceof LogDiscreteFactor);
+    assertSameFactor(expected, result);
+  }
+
+  @Test void testFusedSumProduct() {
+    // Zero cells are -inf in log space, and a block of them sums to -inf
+    LogDiscreteFactor other = LogDiscreteFactor.fromFactor(new DiscreteFactor(
+        Lists.newArrayList("G", "L"), Lists.newArrayList(3, 2),
+        new double[]{0.1, 0.0, 0.0, 0.0, 0.99, 0.01}));
+
+    for(List<String> summed : Lists.<List<String>>newArrayList(
+        Lists.newArrayList("G"), Lists.newArrayList("I", "L"),
+        Lists.newArrayList(), Lists.newArrayList("I", "D", "G", "L"))) {
+      LogDiscreteFactor expected = (LogDiscreteFactor) factor.product(other)
+          .marginalize(summed, false);
+      LogDiscreteFactor fused = LogDiscreteFactor.sumProduct(
+          Lists.newArrayList(factor, other), summed);
+
+      Assertions.assertTrue(Iterables.elementsEqual(expected.getScope(), fused.getScope()));
+      Assertions.assertArrayEquals(expected.values, fused.values, threshold());
+    }
+  }
+
+  @Test void testNormalizeZero() {
+    LogDiscreteFactor zero = LogDiscreteFactor.fromFactor(new DiscreteFactor(
+        Lists.newArrayList("X"), Lists.newArrayList(2), new double[]{0.0, 0.0}));
+
+    zero.normalize(true);
+    Assertions.assertArrayEquals(new double[]{Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY},
+        zero.values, 0.0);
+  }
+
+  @Test void testNoUnderflow() {
+    // Ten factors of 1e-200 underflow as probabilities but not as logs
+    DiscreteFactor tiny = new DiscreteFactor(Lists.newArrayList("X"),
+        Lists.newArrayList(2), new double[]{1e-200, 2e-200});
+    LogDiscreteFactor product = new LogDiscreteFactor();
+    for(int i = 0;i < 10;++i) {
+      product = product.product(tiny);
+    }
+
+    DiscreteFactor normalized = (DiscreteFactor) product.toDiscreteFactor().normalize(false);
+    Assertions.assertArrayEquals(new double[]{1.0 / 1025, 1024.0 / 1025},
+        normalized.values, threshold());
+  }
+}
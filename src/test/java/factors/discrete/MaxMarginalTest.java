@@ -0,0 +1,94 @@
+package factors.discrete;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import primitives.Event;
+import primitives.EventStream;
+
+import java.util.List;
+
+/**
+ * Test class for MaxMarginal and DiscreteFactor.maxMarginalize
+ *
+ * @version 1.0.0
+ *
+ * @author Sean McMillan
+ */
+class MaxMarginalTest {
+  private final double threshold = 10e-8;
+  List<String> variables = Lists.newArrayList("I", "D", "G");
+  List<Integer> cardinality = Lists.newArrayList(2, 2, 3);
+  double[] values =  new double[]{
+      0.126, 0.168, 0.126,
+      0.009, 0.045, 0.126,
+      0.252, 0.0224, 0.0056,
+      0.06, 0.036, 0.024
+  };
+
+  DiscreteFactor discreteFactor = null;
+
+  @BeforeEach void setUp() {
+    discreteFactor = new DiscreteFactor(variables, cardinality, values);
+  }
+
+  @Test void testMaxMarginalize() {
+    MaxMarginal maxMarginal = discreteFactor.maxMarginalize(Lists.newArrayList("D"));
+    DiscreteFactor factor = maxMarginal.getFactor();
+
+    Assertions.assertTrue(Iterables.elementsEqual(Lists.newArrayList("I", "G"), factor.getScope()));
+    Assertions.assertArrayEquals(new double[]{0.126, 0.168, 0.126, 0.252, 0.036, 0.024},
+        factor.values, threshold);
+    Assertions.assertTrue(Iterables.elementsEqual(Lists.newArrayList("D"),
+        maxMarginal.getMaximized()));
+  }
+
+  @Test void testArgmax() {
+    MaxMarginal maxMarginal = discreteFactor.maxMarginalize(Lists.newArrayList("G", "I"));
+
+    List<Event> best = maxMarginal.argmax(new EventStream("D=0").getEvents());
+    Assertions.assertEquals("I=1,G=0", best.get(0) + "," + best.get(1));
+
+    best = maxMarginal.argmax(new EventStream("D=1,X=3").getEvents());
+    Assertions.assertEquals("I=0,G=2", best.get(0) + "," + best.get(1));
+  }
+
+  @Test void testArgmaxTies() {
+    // X=1 and X=2 are tied, the first in row-major order wins
+    DiscreteFactor tied = new DiscreteFactor(Lists.newArrayList("X"),
+        Lists.newArrayList(3), new double[]{0.2, 0.4, 0.4});
+    MaxMarginal maxMarginal = tied.maxMarginalize(Lists.newArrayList("X"));
+
+    Assertions.assertEquals("X=1",
+        maxMarginal.argmax(Lists.newArrayList()).get(0).toString());
+  }
+
+  @Test void testInvalidArgmax() {
+    MaxMarginal maxMarginal = discreteFactor.maxMarginalize(Lists.newArrayList("G"));
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> maxMarginal.argmax(new EventStream("I=0").getEvents()));
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> maxMarginal.argmax(new EventStream("I=0,D=2").getEvents()));
+  }
+
+  @Test void testLogMaxMarginalize() {
+    LogDiscreteFactor logFactor = LogDiscreteFactor.fromFactor(discreteFactor);
+    MaxMarginal maxMarginal = logFactor.maxMarginalize(Lists.newArrayList("D"));
+
+    Assertions.assertTrue(maxMarginal.getFactor() instanceof LogDiscreteFactor);
+    Assertions.assertArrayEquals(
+        discreteFactor.maxMarginalize(Lists.newArrayList("D")).getFactor().values,
+        expLog(maxMarginal.getFactor().values), threshold);
+  }
+
+  private static double[] expLog(double[] logValues) {
+    double[] result = new double[logValues.length];
+    for(int i = 0;i < result.length;++i) {
+      result[i] = Math.exp(logValues[i]);
+    }
+
+    return result;
+  }
+}
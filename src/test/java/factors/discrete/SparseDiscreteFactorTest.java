@@ -0,0 +1,73 @@
+package factors.discrete;
+
+import com.google.common.collect.Lists;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for SparseDiscreteFactor
+ *
+ * @version 1.0.0
+ *
+ * @author Sean McMillan
+ */
+class SparseDiscreteFactorTest extends FactorStorageTest<SparseDiscreteFactor> {
+  @Override SparseDiscreteFactor convert(DiscreteFactor dense) {
+    return SparseDiscreteFactor.fromFactor(dense);
+  }
+
+  @Override double[] values() {
+    return new double[]{
+        0.0, 0.168, 0.0,
+        0.0, 0.0, 0.126,
+        0.252, 0.0, 0.0,
+        0.0, 0.0, 0.024
+    };
+  }
+
+  @Test void testNonZeroCount() {
+    Assertions.assertEquals(4, factor.nonZeroCount());
+    Assertions.assertTrue(factor.equals(discreteFactor));
+  }
+
+  @Test void testFromStorage() {
+    // Float and off-heap factors keep no values array
+    for(DiscreteFactor other : Lists.newArrayList(
+        FloatDiscreteFactor.fromFactor(discreteFactor),
+        DirectDiscreteFactor.fromFactor(discreteFactor))) {
+      SparseDiscreteFactor converted = SparseDiscreteFactor.fromFactor(other);
+      Assertions.assertEquals(4, converted.nonZeroCount());
+      assertSameFactor(discreteFactor, converted);
+    }
+  }
+
+  @Test void testInvalidIndices() {
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> new SparseDiscreteFactor(variables, cardinality, new int[]{3, 1},
+            new double[]{0.5, 0.5}));
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> new SparseDiscreteFactor(variables, cardinality, new int[]{12},
+            new double[]{0.5}));
+  }
+
+  @Test void testSparseProduct() {
+    DiscreteFactor other = new DiscreteFactor(Lists.newArrayList("L", "G"),
+        Lists.newArrayList(2, 3), new double[]{0.1, 0.0, 0.4, 0.9, 0.0, 0.6});
+    SparseDiscreteFactor sparseOther = SparseDiscreteFactor.fromFactor(other);
+
+    assertSameFactor(discreteFactor.product(other), discreteFactor.product(sparseOther));
+    assertSameFactor(discreteFactor.product(other), factor.product(sparseOther));
+    assertSameFactor(other.product(discreteFactor), sparseOther.product(factor));
+  }
+
+  @Test void testDensify() {
+    DiscreteFactor full = new DiscreteFactor(Lists.newArrayList("L"),
+        Lists.newArrayList(2), new double[]{0.5, 0.5});
+    DiscreteFactor allOnes = new DiscreteFactor(Lists.newArrayList("I", "D", "G"),
+        Lists.newArrayList(2, 2, 3), new double[]{1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1});
+
+    Assertions.assertTrue(factor.product(full) instanceof SparseDiscreteFactor);
+    Assertions.assertFalse(SparseDiscreteFactor.fromFactor(allOnes).product(full)
+        instanceof SparseDiscreteFactor);
+  }
+}
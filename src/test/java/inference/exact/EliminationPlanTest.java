@@ -0,0 +1,153 @@
+package inference.exact;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import factors.discrete.ConditionalProbabilityDistribution;
+import models.BayesianNetwork;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+class EliminationPlanTest {
+  BayesianNetwork bn;
+
+  @BeforeEach void setUp() {
+    // Chain A -> B -> C
+    ConditionalProbabilityDistribution a = new ConditionalProbabilityDistribution(
+        "A", 2, new double[][]{{0.6}, {0.4}}
+    );
+    ConditionalProbabilityDistribution b = new ConditionalProbabilityDistribution(
+        "B", 2,
+        Lists.newArrayList("A"),
+        Lists.newArrayList(2),
+        new double[][]{{0.7, 0.2}, {0.3, 0.8}}
+    );
+    ConditionalProbabilityDistribution c = new ConditionalProbabilityDistribution(
+        "C", 2,
+        Lists.newArrayList("B"),
+        Lists.newArrayList(2),
+        new double[][]{{0.9, 0.5}, {0.1, 0.5}}
+    );
+
+    bn = new BayesianNetwork();
+    bn.addEdge(a, b);
+    bn.addEdge(b, c);
+  }
+
+  int slotOf(EliminationPlan plan, String variable) {
+    List<ConditionalProbabilityDistribution> cpds = plan.getCPDs();
+    for(int i = 0;i < cpds.size();++i) {
+      if(cpds.get(i).getVariable().equals(variable)) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  @Test void testCompile() {
+    EliminationPlan plan = EliminationPlan.compile(bn, Sets.newHashSet("C"), Sets.newHashSet());
+
+    Assertions.assertEquals(3, plan.getCPDs().size());
+    Assertions.assertEquals(2, plan.getStepCount());
+    Assertions.assertEquals(5, plan.getSlotCount());
+    Assertions.assertEquals(Sets.newHashSet("A", "B"),
+        Sets.newHashSet(plan.getVariable(0), plan.getVariable(1)));
+
+    // The second step reads the message of the first, its own message is left
+    Assertions.assertTrue(Arrays.stream(plan.getInputs(1)).anyMatch(slot -> slot == 3));
+    Assertions.assertArrayEquals(new int[]{4}, plan.getRemaining());
+
+    // A adds no fill edge so goes first, leaving a message over B that
+    // summing out B turns into one over C
+    Assertions.assertEquals("A", plan.getVariable(0));
+    Assertions.assertEquals(Lists.newArrayList("B"), plan.getMessageScope(0));
+    Assertions.assertEquals(Lists.newArrayList("C"), plan.getMessageScope(1));
+    Assertions.assertEquals(4, plan.getWork(0));
+    Assertions.assertEquals(4, plan.getWork(1));
+    Assertions.assertEquals(8, plan.getWork(new int[]{0, 1}));
+  }
+
+  @Test void testObserved() {
+    EliminationPlan plan = EliminationPlan.compile(bn, Sets.newHashSet("A"), Sets.newHashSet("C"));
+
+    Assertions.assertEquals(Lists.newArrayList("C"), plan.getObserved(slotOf(plan, "C")));
+    Assertions.assertTrue(plan.getObserved(slotOf(plan, "B")).isEmpty());
+    Assertions.assertTrue(plan.getObserved(slotOf(plan, "A")).isEmpty());
+
+    // The reduced factor of C joins the factor of B
+    Assertions.assertEquals(1, plan.getStepCount());
+    Assertions.assertEquals("B", plan.getVariable(0));
+    int[] inputs = plan.getInputs(0);
+    Arrays.sort(inputs);
+    int[] expected = {slotOf(plan, "B"), slotOf(plan, "C")};
+    Arrays.sort(expected);
+    Assertions.assertArrayEquals(expected, inputs);
+  }
+
+  @Test void testLevels() {
+    // Root R with independent branches R -> Xi -> Yi -> Zi
+    BayesianNetwork wide = new BayesianNetwork();
+    ConditionalProbabilityDistribution root = new ConditionalProbabilityDistribution(
+        "R", 2, new double[][]{{0.5}, {0.5}});
+    for(int i = 0;i < 4;++i) {
+      ConditionalProbabilityDistribution x = new ConditionalProbabilityDistribution(
+          "X" + i, 2, Lists.newArrayList("R"), Lists.newArrayList(2),
+          new double[][]{{0.7, 0.2}, {0.3, 0.8}});
+      ConditionalProbabilityDistribution y = new ConditionalProbabilityDistribution(
+          "Y" + i, 2, Lists.newArrayList("X" + i), Lists.newArrayList(2),
+          new double[][]{{0.9, 0.5}, {0.1, 0.5}});
+      ConditionalProbabilityDistribution z = new ConditionalProbabilityDistribution(
+          "Z" + i, 2, Lists.newArrayList("Y" + i), Lists.newArrayList(2),
+          new double[][]{{0.6, 0.1}, {0.4, 0.9}});
+      wide.addEdge(root, x);
+      wide.addEdge(x, y);
+      wide.addEdge(y, z);
+    }
+
+    EliminationPlan plan = EliminationPlan.compile(wide, Sets.newHashSet("R"),
+        Sets.newHashSet("Z0", "Z1", "Z2", "Z3"));
+
+    // The Y steps only read CPDs, each X step reads the message of its Y step
+    Assertions.assertEquals(8, plan.getStepCount());
+    Assertions.assertEquals(2, plan.getLevels().size());
+    for(int k : plan.getLevels().get(0)) {
+      Assertions.assertTrue(plan.getVariable(k).startsWith("Y"));
+    }
+    for(int k : plan.getLevels().get(1)) {
+      Assertions.assertTrue(plan.getVariable(k).startsWith("X"));
+    }
+    Assertions.assertEquals(4, plan.getLevels().get(0).length);
+    Assertions.assertEquals(-1, plan.getStep(0));
+    Assertions.assertEquals(2, plan.getStep(plan.getCPDs().size() + 2));
+  }
+
+  @Test void testPruned() {
+    // B and C are barren for a query on A alone
+    EliminationPlan plan = EliminationPlan.compile(bn, Sets.newHashSet("A"), Sets.newHashSet());
+    Assertions.assertEquals(1, plan.getCPDs().size());
+    Assertions.assertEquals(0, plan.getStepCount());
+
+    // Observing C makes every node relevant
+    plan = EliminationPlan.compile(bn, Sets.newHashSet("A"), Sets.newHashSet("C"));
+    Assertions.assertEquals(3, plan.getCPDs().size());
+    Assertions.assertEquals(1, plan.getStepCount());
+    Assertions.assertEquals("B", plan.getVariable(0));
+
+    // Observing B separates C from A
+    plan = EliminationPlan.compile(bn, Sets.newHashSet("A"), Sets.newHashSet("B"));
+    Assertions.assertEquals(2, plan.getCPDs().size());
+    Assertions.assertEquals(-1, slotOf(plan, "C"));
+  }
+
+  @Test void testIsCurrent() {
+    EliminationPlan plan = EliminationPlan.compile(bn, Sets.newHashSet("C"), Sets.newHashSet());
+    Assertions.assertTrue(plan.isCurrent(bn));
+
+    bn.addNode(new ConditionalProbabilityDistribution("D", 2, new double[][]{{0.5}, {0.5}}));
+    Assertions.assertFalse(plan.isCurrent(bn));
+  }
+}
@@ -0,0 +1,135 @@
+package inference.exact;
+
+import com.google.common.collect.Lists;
+import factors.discrete.ConditionalProbabilityDistribution;
+import factors.discrete.DiscreteFactor;
+import models.BayesianNetwork;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import primitives.Event;
+
+import java.util.List;
+import java.util.Map;
+
+class InferenceSessionTest {
+  double threshold = 10e-12;
+  BayesianNetwork bn;
+  VariableElimination ve;
+  InferenceSession session;
+
+  @BeforeEach void setUp() {
+    ConditionalProbabilityDistribution burglary = new ConditionalProbabilityDistribution(
+        "B", 2, new double[][]{{0.999}, {0.001}}
+    );
+    ConditionalProbabilityDistribution earthquake = new ConditionalProbabilityDistribution(
+        "E", 2, new double[][]{{0.998}, {0.002}}
+    );
+    ConditionalProbabilityDistribution alarm = new ConditionalProbabilityDistribution(
+        "A", 2,
+        Lists.newArrayList("B", "E"),
+        Lists.newArrayList(2, 2),
+        new double[][] { { 0.999, 0.71, 0.06, 0.05 },
+            { 0.001, 0.29, 0.94, 0.95 } }
+    );
+    ConditionalProbabilityDistribution johnCalls = new ConditionalProbabilityDistribution(
+        "J", 2,
+        Lists.newArrayList("A"),
+        Lists.newArrayList(2),
+        new double[][]{{0.95, 0.10}, {0.05, 0.90}}
+    );
+    ConditionalProbabilityDistribution maryCalls = new ConditionalProbabilityDistribution(
+        "M", 2,
+        Lists.newArrayList("A"),
+        Lists.newArrayList(2),
+        new double[][]{{0.99, 0.30}, {0.01, 0.70}}
+    );
+
+    bn = new BayesianNetwork();
+    bn.addEdge(burglary, alarm);
+    bn.addEdge(earthquake, alarm);
+    bn.addEdge(alarm, johnCalls);
+    bn.addEdge(alarm, maryCalls);
+
+    ve = new VariableElimination(bn);
+    session = new InferenceSession(bn);
+  }
+
+  void assertMatchesVE() {
+    List<Event> evidence = session.getEvidence();
+    Map<String, DiscreteFactor> marginals = session.marginals();
+    for(ConditionalProbabilityDistribution cpd : bn.getCPDs()) {
+      String v = cpd.getVariable();
+      if(evidence.stream().anyMatch(e -> e.getVariable().equals(v))) {
+        Assertions.assertFalse(marginals.containsKey(v));
+        continue;
+      }
+
+      for(int outcome = 0;outcome < cpd.getVariableCardinality();++outcome) {
+        Event event = new Event(v + "=" + outcome);
+        double expected = ve.query(Lists.newArrayList(event), evidence);
+        Assertions.assertEquals(expected, marginals.get(v).getValue(event), threshold);
+        Assertions.assertEquals(expected, session.marginal(v).getValue(event), threshold);
+      }
+    }
+  }
+
+  @Test void testSetEvidence() {
+    assertMatchesVE();
+
+    session.setEvidence(new Event("J=1"));
+    assertMatchesVE();
+
+    session.setEvidence(new Event("M=1"));
+    assertMatchesVE();
+
+    // Replacing an observation
+    session.setEvidence(new Event("J=0"));
+    assertMatchesVE();
+    Assertions.assertEquals(2, session.getEvidence().size());
+
+    // Observing the same outcome again changes nothing
+    session.setEvidence(new Event("J=0"));
+    assertMatchesVE();
+  }
+
+  @Test void testRetractEvidence() {
+    session.setEvidence(new Event("J=1"));
+    session.setEvidence(new Event("E=1"));
+    Assertions.assertEquals(ve.query("B=1|J=1,E=1"),
+        session.marginal("B").getValue(new Event("B=1")), threshold);
+
+    session.retractEvidence("E");
+    assertMatchesVE();
+    Assertions.assertEquals(ve.query("B=1|J=1"),
+        session.marginal("B").getValue(new Event("B=1")), threshold);
+
+    session.retractEvidence("E");
+    session.retractEvidence("J");
+    Assertions.assertTrue(session.getEvidence().isEmpty());
+    assertMatchesVE();
+  }
+
+  @Test void testNetworkChange() {
+    session.setEvidence(new Event("J=1"));
+    session.marginals();
+
+    bn.addNode(new ConditionalProbabilityDistribution(
+        "B", 2, new double[][]{{0.9}, {0.1}}));
+    assertMatchesVE();
+
+    session.setEvidence(new Event("M=1"));
+    assertMatchesVE();
+  }
+
+  @Test void testInvalidEvidence() {
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> session.setEvidence(new Event("X=1")));
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> session.setEvidence(new Event("J=2")));
+
+    session.setEvidence(new Event("J=1"));
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> session.marginal("J"));
+  }
+}
@@ -0,0 +1,171 @@
+package inference.exact;
+
+import com.google.common.collect.Lists;
+import factors.discrete.ConditionalProbabilityDistribution;
+import factors.discrete.DiscreteFactor;
+import models.BayesianNetwork;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import primitives.Event;
+import primitives.EventStream;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+class JunctionTreeTest {
+  double threshold = 10e-12;
+  BayesianNetwork bn;
+  JunctionTree jt;
+  VariableElimination ve;
+
+  @BeforeEach void setUp() {
+    ConditionalProbabilityDistribution burglary = new ConditionalProbabilityDistribution(
+        "B", 2, new double[][]{{0.999}, {0.001}}
+    );
+    ConditionalProbabilityDistribution earthquake = new ConditionalProbabilityDistribution(
+        "E", 2, new double[][]{{0.998}, {0.002}}
+    );
+    ConditionalProbabilityDistribution alarm = new ConditionalProbabilityDistribution(
+        "A", 2,
+        Lists.newArrayList("B", "E"),
+        Lists.newArrayList(2, 2),
+        new double[][] { { 0.999, 0.71, 0.06, 0.05 },
+            { 0.001, 0.29, 0.94, 0.95 } }
+    );
+    ConditionalProbabilityDistribution johnCalls = new ConditionalProbabilityDistribution(
+        "J", 2,
+        Lists.newArrayList("A"),
+        Lists.newArrayList(2),
+        new double[][]{{0.95, 0.10}, {0.05, 0.90}}
+    );
+    ConditionalProbabilityDistribution maryCalls = new ConditionalProbabilityDistribution(
+        "M", 2,
+        Lists.newArrayList("A"),
+        Lists.newArrayList(2),
+        new double[][]{{0.99, 0.30}, {0.01, 0.70}}
+    );
+
+    bn = new BayesianNetwork();
+    bn.addEdge(burglary, alarm);
+    bn.addEdge(earthquake, alarm);
+    bn.addEdge(alarm, johnCalls);
+    bn.addEdge(alarm, maryCalls);
+
+    jt = new JunctionTree(bn);
+    ve = new VariableElimination(bn);
+  }
+
+  void assertMarginalsMatch(String evidence) {
+    List<Event> observations = evidence.isEmpty() ?
+        Lists.newArrayList() : new EventStream(evidence).getEvents();
+    Map<String, DiscreteFactor> marginals = jt.marginals(observations);
+
+    for(ConditionalProbabilityDistribution cpd : bn.getCPDs()) {
+      String v = cpd.getVariable();
+      if(observations.stream().anyMatch(e -> e.getVariable().equals(v))) {
+        Assertions.assertFalse(marginals.containsKey(v));
+        continue;
+      }
+
+      for(int outcome = 0;outcome < cpd.getVariableCardinality();++outcome) {
+        Event event = new Event(v + "=" + outcome);
+        Assertions.assertEquals(
+            ve.query(Lists.newArrayList(event), observations),
+            marginals.get(v).getValue(event), threshold);
+      }
+    }
+  }
+
+  @Test void testCliques() {
+    // Every family is in some clique and the tree is connected
+    List<List<String>> cliques = jt.getCliques();
+    for(ConditionalProbabilityDistribution cpd : bn.getCPDs()) {
+      Assertions.assertTrue(cliques.stream().anyMatch(c -> c.containsAll(cpd.getScope())));
+    }
+
+    int[] parents = jt.getParents();
+    Assertions.assertEquals(cliques.size(), parents.length);
+    Assertions.assertEquals(-1, parents[0]);
+    for(int i = 1;i < parents.length;++i) {
+      Assertions.assertTrue(parents[i] >= 0);
+    }
+  }
+
+  @Test void testMarginals() {
+    assertMarginalsMatch("");
+    assertMarginalsMatch("J=1");
+    assertMarginalsMatch("J=1,M=1");
+    assertMarginalsMatch("B=1,E=0");
+    assertMarginalsMatch("A=1");
+  }
+
+  @Test void testQuery() {
+    Assertions.assertEquals(ve.query("B=1|J=1,M=1"), jt.query("B=1|J=1,M=1"), threshold);
+    Assertions.assertEquals(ve.query("A=1,B=1|J=1"), jt.query("A=1,B=1|J=1"), threshold);
+
+    // Variables in different cliques
+    Assertions.assertEquals(ve.query("B=1,J=1"), jt.query("B=1,J=1"), threshold);
+    Assertions.assertEquals(ve.mapQuery(Lists.newArrayList()),
+        jt.mapQuery(Lists.newArrayList()));
+  }
+
+  @Test void testLoop() {
+    // A -> B -> D and A -> C -> D, D has an unrelated node
+    bn = new BayesianNetwork();
+    ConditionalProbabilityDistribution a = new ConditionalProbabilityDistribution(
+        "A", 2, new double[][]{{0.3}, {0.7}});
+    ConditionalProbabilityDistribution b = new ConditionalProbabilityDistribution(
+        "B", 2, Lists.newArrayList("A"), Lists.newArrayList(2),
+        new double[][]{{0.2, 0.6}, {0.8, 0.4}});
+    ConditionalProbabilityDistribution c = new ConditionalProbabilityDistribution(
+        "C", 3, Lists.newArrayList("A"), Lists.newArrayList(2),
+        new double[][]{{0.1, 0.5}, {0.3, 0.25}, {0.6, 0.25}});
+    ConditionalProbabilityDistribution d = new ConditionalProbabilityDistribution(
+        "D", 2, Lists.newArrayList("B", "C"), Lists.newArrayList(2, 3),
+        new double[][]{{0.9, 0.7, 0.5, 0.4, 0.2, 0.1}, {0.1, 0.3, 0.5, 0.6, 0.8, 0.9}});
+    bn.addEdge(a, b);
+    bn.addEdge(a, c);
+    bn.addEdge(b, d);
+    bn.addEdge(c, d);
+    bn.addNode(new ConditionalProbabilityDistribution(
+        "F", 2, new double[][]{{0.4}, {0.6}}));
+
+    jt = new JunctionTree(bn);
+    ve = new VariableElimination(bn);
+    assertMarginalsMatch("");
+    assertMarginalsMatch("D=1");
+    assertMarginalsMatch("C=2,F=0");
+  }
+
+  @Test void testConcurrentMarginals() throws Exception {
+    List<Event> evidence = new EventStream("J=1,M=1").getEvents();
+    Map<String, DiscreteFactor> expected = jt.marginals(evidence);
+
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Map<String, DiscreteFactor>>> results = Lists.newArrayList();
+      for(int t = 0;t < 32;++t) {
+        results.add(pool.submit(() -> jt.marginals(evidence)));
+      }
+      for(Future<Map<String, DiscreteFactor>> result : results) {
+        Assertions.assertEquals(expected, result.get());
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test void testRebuild() {
+    int cliques = jt.getCliques().size();
+    bn.addNode(new ConditionalProbabilityDistribution(
+        "F", 2, new double[][]{{0.4}, {0.6}}));
+
+    Assertions.assertEquals(cliques + 1, jt.getCliques().size());
+    Assertions.assertEquals(0.6, jt.query("F=1"), threshold);
+    assertMarginalsMatch("J=1");
+  }
+}
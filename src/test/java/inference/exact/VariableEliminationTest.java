@@ -1,6 +1,7 @@
 package inference.exact;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.google.common.math.DoubleMath;
 import factors.Factor;
 import factors.discrete.ConditionalProbabilityDistribution;
@@ -10,9 +11,17 @@ import org.apache.commons.lang3.tuple.Pair;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import primitives.Event;
 import primitives.EventStream;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 
 import static util.TestUtils.JPTEqualsVE;
 
@@ -99,6 +108,315 @@ class VariableEliminationTest {
     Assertions.assertEquals(0.017, ve.query("B=1|J=1,E=0"), 10e-4);
   }
 
+  @Test void testFactorTypes() {
+    for(VariableElimination.FactorType type : VariableElimination.FactorType.values()) {
+      VariableElimination typedVe = new VariableElimination(bn, type);
+      double tolerance = type == VariableElimination.FactorType.FLOAT ? 10e-6 : 10e-8;
+
+      for(String query : Lists.newArrayList("B=1|J=1,M=1", "J=1|B=1", "B=1|A=1,E=1",
+          "A=1|J=1,E=0")) {
+        Assertions.assertEquals(ve.query(query), typedVe.query(query), tolerance);
+      }
+    }
+  }
+
+  @Test void testLargeMessages() {
+    // Y has 16 parents, so eliminating Y or any parent first leaves a
+    // message of at least 2^16 cells, which OFF_HEAP keeps in a direct buffer
+    BayesianNetwork wide = new BayesianNetwork();
+    List<String> parents = Lists.newArrayList();
+    for(int i = 0;i < 16;++i) {
+      String parent = "X" + i;
+      parents.add(parent);
+      wide.addNode(new ConditionalProbabilityDistribution(parent, 2,
+          new double[][]{{0.3 + i / 40.0}, {0.7 - i / 40.0}}));
+    }
+    double[] table = new double[2 << 16];
+    for(int row = 0;row < table.length / 2;++row) {
+      table[2 * row] = (row % 13 + 1) / 14.0;
+      table[2 * row + 1] = 1.0 - table[2 * row];
+    }
+    ConditionalProbabilityDistribution y = ConditionalProbabilityDistribution.fromTable(
+        "Y", 2, parents, Collections.nCopies(16, 2), table);
+    for(String parent : parents) {
+      wide.addEdge(wide.getNodeCPD(parent), y);
+    }
+    wide.addEdge(y, new ConditionalProbabilityDistribution("Z", 2,
+        Lists.newArrayList("Y"), Lists.newArrayList(2),
+        new double[][]{{0.8, 0.25}, {0.2, 0.75}}));
+
+    VariableElimination dense = new VariableElimination(wide);
+    for(VariableElimination.FactorType type : VariableElimination.FactorType.values()) {
+      VariableElimination typedVe = new VariableElimination(wide, type);
+      double tolerance = type == VariableElimination.FactorType.FLOAT ? 10e-6 : 10e-8;
+
+      for(String query : Lists.newArrayList("Z=1", "Y=1|X3=1", "X0=1|Z=0")) {
+        Assertions.assertEquals(dense.query(query), typedVe.query(query), tolerance);
+      }
+    }
+  }
+
+  @Test void testFloatPrecision() {
+    List<String> queries = Lists.newArrayList("B=1|J=1,M=1", "J=1|B=1", "B=1|A=1,E=1",
+        "A=1|J=1,E=0");
+    List<Double> expected = queries.stream().map(ve::query).collect(Collectors.toList());
+
+    // Every engine answers queries on single precision tables
+    bn.setPrecision(ConditionalProbabilityDistribution.Precision.FLOAT);
+    Assertions.assertEquals(ConditionalProbabilityDistribution.Precision.FLOAT,
+        bn.getNodeCPD("A").getPrecision());
+    for(VariableElimination.FactorType type : VariableElimination.FactorType.values()) {
+      VariableElimination floatVe = new VariableElimination(bn, type);
+      for(int q = 0;q < queries.size();++q) {
+        Assertions.assertEquals(expected.get(q), floatVe.query(queries.get(q)), 10e-6);
+      }
+    }
+  }
+
+  @Test void testRepeatedQuery() {
+    // Later queries run on tables recycled from the earlier ones
+    for(String query : Lists.newArrayList("B=1|J=1,M=1", "J=1|B=1", "B=1|A=1,E=1")) {
+      double first = ve.query(query);
+      for(int i = 0;i < 3;++i) {
+        Assertions.assertEquals(first, ve.query(query), 0.0);
+      }
+    }
+  }
+
+  @Test void testCachedPlan() {
+    // Queries of one shape with different outcomes share a plan
+    double expected = ve.query("B=1|J=1,M=0");
+    EliminationPlan plan = ve.plan(bn, Sets.newHashSet("B"), Sets.newHashSet("J", "M"));
+    Assertions.assertSame(plan,
+        ve.plan(bn, Sets.newHashSet("B"), Sets.newHashSet("M", "J")));
+    Assertions.assertNotSame(plan,
+        ve.plan(bn, Sets.newHashSet("B"), Sets.newHashSet("J")));
+    Assertions.assertEquals(expected, ve.query("B=1|J=1,M=0"), 0.0);
+
+    // Changing the network compiles a new plan
+    bn.addNode(new ConditionalProbabilityDistribution(
+        "B", 2, new double[][]{{0.9}, {0.1}}));
+    Assertions.assertNotSame(plan,
+        ve.plan(bn, Sets.newHashSet("B"), Sets.newHashSet("J", "M")));
+    Assertions.assertEquals(0.1, ve.query("B=1"), 10e-12);
+    Assertions.assertTrue(ve.query("B=1|J=1,M=0") > expected);
+  }
+
+  @Test void testPlanCacheEvictsLeastRecent() {
+    // A chain of seven binary variables has 3^7 signatures, each variable
+    // kept, observed or summed out
+    BayesianNetwork chain = new BayesianNetwork();
+    ConditionalProbabilityDistribution parent = new ConditionalProbabilityDistribution(
+        "X0", 2, new double[][]{{0.5}, {0.5}});
+    chain.addNode(parent);
+    for(int i = 1;i < 7;++i) {
+      ConditionalProbabilityDistribution child = new ConditionalProbabilityDistribution(
+          "X" + i, 2, Lists.newArrayList("X" + (i - 1)), Lists.newArrayList(2),
+          new double[][]{{0.6, 0.3}, {0.4, 0.7}});
+      chain.addEdge(parent, child);
+      parent = child;
+    }
+
+    VariableElimination chainVe = new VariableElimination(chain);
+    EliminationPlan hot = chainVe.plan(chain, Sets.newHashSet("X0"), Sets.newHashSet());
+    EliminationPlan cold = chainVe.plan(chain, Sets.newHashSet("X6"), Sets.newHashSet());
+    int compiled = 2;
+    for(int mask = 0;mask < 2187;++mask) {
+      Set<String> kept = Sets.newHashSet();
+      Set<String> observed = Sets.newHashSet();
+      for(int i = 0, m = mask;i < 7;++i, m /= 3) {
+        if(m % 3 == 1) {
+          kept.add("X" + i);
+        } else if(m % 3 == 2) {
+          observed.add("X" + i);
+        }
+      }
+      if(kept.isEmpty()) {
+        continue;
+      }
+
+      chainVe.plan(chain, kept, observed);
+      Assertions.assertSame(hot, chainVe.plan(chain, Sets.newHashSet("X0"), Sets.newHashSet()));
+      ++compiled;
+    }
+
+    // The plan in use survives every plan compiled after it, the unused one
+    // is evicted
+    Assertions.assertTrue(compiled > VariableElimination.MAX_PLANS);
+    Assertions.assertNotSame(cold,
+        chainVe.plan(chain, Sets.newHashSet("X6"), Sets.newHashSet()));
+  }
+
+  @Test void testCachedPosterior() {
+    double expected = ve.query("B=1|J=1");
+    Assertions.assertEquals(expected, ve.query("B=1|J=1"), 0.0);
+    Assertions.assertEquals(1, bn.getPosteriorCacheStats().hitCount());
+
+    // M is not an ancestor of B or J
+    bn.addNode(new ConditionalProbabilityDistribution(
+        "M", 2, Lists.newArrayList("A"), Lists.newArrayList(2),
+        new double[][]{{0.5, 0.5}, {0.5, 0.5}}));
+    Assertions.assertEquals(expected, ve.query("B=1|J=1"), 0.0);
+    Assertions.assertEquals(2, bn.getPosteriorCacheStats().hitCount());
+
+    // A calling John that ignores the alarm says nothing about a burglary
+    bn.addNode(new ConditionalProbabilityDistribution(
+        "J", 2, Lists.newArrayList("A"), Lists.newArrayList(2),
+        new double[][]{{0.5, 0.5}, {0.5, 0.5}}));
+    Assertions.assertEquals(0.001, ve.query("B=1|J=1"), 10e-12);
+    Assertions.assertEquals(2, bn.getPosteriorCacheStats().hitCount());
+  }
+
+  @Test void testQueryBatch() {
+    // Spans more than one block of rows
+    int[][] evidence = new int[5000][];
+    for(int r = 0;r < evidence.length;++r) {
+      evidence[r] = new int[]{r % 2, (r / 2) % 2, (r / 4) % 2};
+    }
+    double[][] posteriors = ve.queryBatch(Lists.newArrayList("B", "A"),
+        Lists.newArrayList("J", "M", "E"), evidence);
+
+    Assertions.assertEquals(evidence.length, posteriors.length);
+    for(int r = 0;r < evidence.length;r += 617) {
+      EventStream es = new EventStream(String.format("B,A|J=%d,M=%d,E=%d",
+          evidence[r][0], evidence[r][1], evidence[r][2]));
+      DiscreteFactor posterior = ve.queryFactor(es.getEvents(), es.getObservations());
+      List<String> scope = posterior.getScope();
+
+      int[][] cells = new int[4][2];
+      for(int cell = 0;cell < 4;++cell) {
+        cells[cell][scope.indexOf("B")] = cell / 2;
+        cells[cell][scope.indexOf("A")] = cell % 2;
+      }
+      double[] expected = new double[4];
+      posterior.getValues(cells, expected);
+      Assertions.assertArrayEquals(expected, posteriors[r], 10e-12);
+    }
+
+    // Without evidence every row is the prior
+    double[][] priors = ve.queryBatch(Lists.newArrayList("J"), Lists.newArrayList(),
+        new int[][]{{}, {}});
+    Assertions.assertEquals(ve.query("J=1"), priors[1][1], 10e-12);
+
+    Assertions.assertThrows(IllegalArgumentException.class, () -> ve.queryBatch(
+        Lists.newArrayList("B"), Lists.newArrayList("B"), new int[][]{{0}}));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> ve.queryBatch(
+        Lists.newArrayList("B"), Lists.newArrayList("J"), new int[][]{{2}}));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> ve.queryBatch(
+        Lists.newArrayList("B"), Lists.newArrayList("J"), new int[][]{{0, 1}}));
+  }
+
+  @Test void testConcurrentQueries() throws Exception {
+    List<String> queries = Lists.newArrayList("B=1|J=1,M=1", "J=1|B=1", "A=1|J=1,M=1",
+        "B=1,E=1|A=1", "E=1", "M=0|E=1,J=0");
+    int[][] rows = new int[][]{{0, 0}, {0, 1}, {1, 0}, {1, 1}};
+    List<VariableElimination> engines = Lists.newArrayList();
+    for(VariableElimination.FactorType type : VariableElimination.FactorType.values()) {
+      engines.add(new VariableElimination(bn, type));
+    }
+
+    // Answers of a single thread
+    double[][] expected = new double[engines.size()][queries.size()];
+    for(int e = 0;e < engines.size();++e) {
+      for(int q = 0;q < queries.size();++q) {
+        expected[e][q] = engines.get(e).query(queries.get(q));
+      }
+    }
+    double[][] expectedBatch = ve.queryBatch(Lists.newArrayList("B"),
+        Lists.newArrayList("J", "M"), rows);
+    String expectedMap = ve.mapQuery(Lists.newArrayList(), new EventStream("J=1").getEvents());
+
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> results = Lists.newArrayList();
+      for(int t = 0;t < 8;++t) {
+        int offset = t;
+        results.add(pool.submit(() -> {
+          for(int i = 0;i < 200;++i) {
+            int e = (i + offset) % engines.size();
+            int q = (i * 7 + offset) % queries.size();
+            Assertions.assertEquals(expected[e][q], engines.get(e).query(queries.get(q)), 0.0);
+            if(i % 20 == 0) {
+              double[][] batch = ve.queryBatch(Lists.newArrayList("B"),
+                  Lists.newArrayList("J", "M"), rows);
+              for(int r = 0;r < rows.length;++r) {
+                Assertions.assertArrayEquals(expectedBatch[r], batch[r], 0.0);
+              }
+              Assertions.assertEquals(expectedMap,
+                  ve.mapQuery(Lists.newArrayList(), new EventStream("J=1").getEvents()));
+            }
+          }
+        }));
+      }
+      for(Future<?> result : results) {
+        result.get();
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test void testQueriesDuringChanges() throws Exception {
+    double expected = ve.query("B=1|J=1,M=1");
+
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> results = Lists.newArrayList();
+      for(int t = 0;t < 4;++t) {
+        results.add(pool.submit(() -> {
+          for(int i = 0;i < 200;++i) {
+            // A new plan may eliminate in another order and change the last bits
+            Assertions.assertEquals(expected, ve.query("B=1|J=1,M=1"), 10e-12);
+          }
+        }));
+      }
+
+      // The new nodes are unrelated to the query
+      for(int i = 0;i < 20;++i) {
+        bn.addNode(new ConditionalProbabilityDistribution(
+            "F" + i, 2, new double[][]{{0.5}, {0.5}}));
+      }
+      for(Future<?> result : results) {
+        result.get();
+      }
+    } finally {
+      pool.shutdown();
+    }
+    Assertions.assertEquals(expected, ve.query("B=1|J=1,M=1"), 10e-12);
+  }
+
+  @Test void testIndependentBranches() {
+    // Root R with independent branches R -> Xi -> Yi, eliminated in parallel
+    BayesianNetwork wide = new BayesianNetwork();
+    ConditionalProbabilityDistribution root = new ConditionalProbabilityDistribution(
+        "R", 2, new double[][]{{0.3}, {0.7}});
+    for(int i = 0;i < 6;++i) {
+      ConditionalProbabilityDistribution x = new ConditionalProbabilityDistribution(
+          "X" + i, 2, Lists.newArrayList("R"), Lists.newArrayList(2),
+          new double[][]{{0.7 - i * 0.05, 0.2}, {0.3 + i * 0.05, 0.8}});
+      ConditionalProbabilityDistribution y = new ConditionalProbabilityDistribution(
+          "Y" + i, 3, Lists.newArrayList("X" + i), Lists.newArrayList(2),
+          new double[][]{{0.6, 0.1}, {0.3, 0.3}, {0.1, 0.6}});
+      wide.addEdge(root, x);
+      wide.addEdge(x, y);
+    }
+
+    DiscreteFactor joint = DiscreteFactor.sumProduct(wide.getCPDs().stream()
+        .map(ConditionalProbabilityDistribution::toDiscreteFactor)
+        .collect(Collectors.toList()), Lists.newArrayList());
+    List<Event> evidence = new EventStream("Y0=2,Y3=0,X5=1").getEvents();
+    DiscreteFactor reduced = (DiscreteFactor) joint.reduce(evidence, false).normalize(true);
+
+    for(VariableElimination.FactorType type : VariableElimination.FactorType.values()) {
+      VariableElimination engine = new VariableElimination(wide, type);
+      for(String v : Lists.newArrayList("R", "X0", "X1", "Y4")) {
+        Event event = new Event(v + "=1");
+        Assertions.assertEquals(reduced.getValue(event),
+            engine.query(Lists.newArrayList(event), evidence), 10e-6);
+      }
+    }
+  }
+
   @Test void testQuery() {
     Assertions.assertTrue(true);
   }
@@ -107,11 +425,62 @@ class VariableEliminationTest {
     Assertions.assertTrue(true);
   }
 
+  /**
+   * Check that the MAP assignment of binary variables has the largest
+   * posterior of all their joint assignments.
+   */
+  private void assertIsMap(String map, String queryString) {
+    EventStream es = new EventStream(queryString);
+    DiscreteFactor posterior = ve.queryFactor(es.getEvents(), es.getObservations());
+    List<String> scope = posterior.getScope();
+
+    int[][] assignments = new int[1 << scope.size()][scope.size()];
+    for(int r = 0;r < assignments.length;++r) {
+      for(int d = 0;d < scope.size();++d) {
+        assignments[r][d] = (r >> (scope.size() - 1 - d)) & 1;
+      }
+    }
+    double[] probabilities = new double[assignments.length];
+    posterior.getValues(assignments, probabilities);
+
+    int[] mapAssignment = new int[scope.size()];
+    for(Event event : new EventStream(map).getEvents()) {
+      mapAssignment[scope.indexOf(event.getVariable())] =
+          Integer.parseInt(event.getOutcome());
+    }
+    double[] mapProbability = new double[1];
+    posterior.getValues(new int[][]{mapAssignment}, mapProbability);
+
+    Assertions.assertEquals(Arrays.stream(probabilities).max().getAsDouble(),
+        mapProbability[0], 10e-12);
+  }
+
   @Test void testMapQuery() {
-    Assertions.assertTrue(true);
+    EventStream es = new EventStream("B,E|J=1,M=1");
+    Assertions.assertEquals("B=0,E=0", ve.mapQuery(es.getEvents(), es.getObservations()));
+    assertIsMap("B=0,E=0", "B,E|J=1,M=1");
+
+    es = new EventStream("B,A|J=1,M=1,E=1");
+    String map = ve.mapQuery(es.getEvents(), es.getObservations());
+    assertIsMap(map, "B,A|J=1,M=1,E=1");
+
+    es = new EventStream("J,M|B=1");
+    Assertions.assertEquals("J=1,M=1", ve.mapQuery(es.getEvents(), es.getObservations()));
+    assertIsMap("J=1,M=1", "J,M|B=1");
   }
 
   @Test void testMapQuery2() {
-    Assertions.assertTrue(true);
+    // Most probable explanation, every unobserved variable in name order
+    EventStream es = new EventStream("J=1,M=1");
+    Assertions.assertEquals("A=1,B=0,E=0",
+        ve.mapQuery(Lists.newArrayList(), es.getEvents()));
+    assertIsMap("A=1,B=0,E=0", "A,B,E|J=1,M=1");
+
+    Assertions.assertEquals("A=0,B=0,E=0,J=0,M=0", ve.mapQuery(Lists.newArrayList()));
+
+    for(VariableElimination.FactorType type : VariableElimination.FactorType.values()) {
+      Assertions.assertEquals("A=1,B=0,E=0",
+          new VariableElimination(bn, type).mapQuery(Lists.newArrayList(), es.getEvents()));
+    }
   }
 }
@@ -1,13 +1,22 @@
 package models;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import factors.discrete.ConditionalProbabilityDistribution;
+import factors.discrete.DiscreteFactor;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import primitives.Event;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import static org.mockito.Mockito.*;
 
@@ -62,6 +71,26 @@ class BayesianNetworkTest {
         () -> bayesianNetwork.addEdge("v", "u"));
   }
 
+  @Test void testAddAll() {
+    when(g.getEvidence()).thenReturn(Lists.newArrayList("I", "D"));
+    when(l.getEvidence()).thenReturn(Lists.newArrayList("G"));
+
+    bayesianNetwork.addAll(Lists.newArrayList(i, d, g, l));
+    Assertions.assertEquals(3, bayesianNetwork.getStructure().edges().size());
+    Assertions.assertTrue(bayesianNetwork.getStructure().successors("G").contains("L"));
+
+    // A cycle or a missing parent leaves the network as it was
+    int revision = bayesianNetwork.getRevision();
+    when(i.getEvidence()).thenReturn(Lists.newArrayList("L"));
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> bayesianNetwork.addAll(Lists.newArrayList(i)));
+    when(s.getEvidence()).thenReturn(Lists.newArrayList("H"));
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> bayesianNetwork.addAll(Lists.newArrayList(s)));
+    Assertions.assertEquals(revision, bayesianNetwork.getRevision());
+    Assertions.assertEquals(4, bayesianNetwork.getCPDs().size());
+  }
+
   @Test void testIsDSep() {
     bayesianNetwork.addEdge(c, d);
     bayesianNetwork.addEdge(d, g);
@@ -81,4 +110,165 @@ class BayesianNetworkTest {
     Assertions.assertTrue(bayesianNetwork.isDSep("D", "H", Sets.newHashSet("G", "J")));
     Assertions.assertTrue(bayesianNetwork.isDSep("L", "S", Sets.newHashSet("G")));
   }
+
+  @Test void testRelevantCPDs() {
+    ConditionalProbabilityDistribution[] cpds = {c, d, g, i, s, l, j, h};
+    String[][] parents = {{}, {"C"}, {"D", "I"}, {}, {"I"}, {"G"}, {"S", "L"}, {"G", "J"}};
+    for(int k = 0;k < cpds.length;++k) {
+      List<String> scope = Lists.newArrayList(cpds[k].getVariable());
+      scope.addAll(Arrays.asList(parents[k]));
+      when(cpds[k].getScope()).thenReturn(scope);
+      when(cpds[k].getEvidence()).thenReturn(Arrays.asList(parents[k]));
+    }
+    bayesianNetwork.addEdge(c, d);
+    bayesianNetwork.addEdge(d, g);
+    bayesianNetwork.addEdge(i, g);
+    bayesianNetwork.addEdge(i, s);
+    bayesianNetwork.addEdge(g, l);
+    bayesianNetwork.addEdge(s, j);
+    bayesianNetwork.addEdge(g, h);
+    bayesianNetwork.addEdge(j, h);
+    bayesianNetwork.addEdge(l, j);
+
+    // Every descendant of D is barren
+    Assertions.assertEquals(Sets.newHashSet("C", "D"),
+        this.relevant(Sets.newHashSet("D"), Sets.newHashSet()));
+    // Observing G couples its parents
+    Assertions.assertEquals(Sets.newHashSet("C", "D", "G", "I"),
+        this.relevant(Sets.newHashSet("D"), Sets.newHashSet("G")));
+    // I is d-separated from D by L and I itself
+    Assertions.assertEquals(Sets.newHashSet("C", "D", "G", "L"),
+        this.relevant(Sets.newHashSet("D"), Sets.newHashSet("L", "I")));
+    // The parents of J separate it from the rest of the network
+    Assertions.assertEquals(Sets.newHashSet("J"),
+        this.relevant(Sets.newHashSet("J"), Sets.newHashSet("S", "L")));
+  }
+
+  private Set<String> relevant(Set<String> query, Set<String> evidence) {
+    return bayesianNetwork.getRelevantCPDs(query, evidence).stream()
+        .map(ConditionalProbabilityDistribution::getVariable)
+        .collect(Collectors.toSet());
+  }
+
+  @Test void testPosteriorCache() {
+    ConditionalProbabilityDistribution[] cpds = {c, d, g, i, l};
+    String[][] parents = {{}, {"C"}, {"D", "I"}, {}, {"G"}};
+    for(int k = 0;k < cpds.length;++k) {
+      when(cpds[k].getEvidence()).thenReturn(Arrays.asList(parents[k]));
+    }
+    bayesianNetwork.addEdge(c, d);
+    bayesianNetwork.addEdge(d, g);
+    bayesianNetwork.addEdge(i, g);
+    bayesianNetwork.addEdge(g, l);
+
+    int[] computed = {0};
+    Supplier<DiscreteFactor> compute = () -> {
+      ++computed[0];
+      return new DiscreteFactor(Lists.newArrayList("D"), Lists.newArrayList(2),
+          new double[]{0.4, 0.6});
+    };
+
+    DiscreteFactor f = bayesianNetwork.getPosterior("VE", Sets.newHashSet("D"),
+        Lists.newArrayList(new Event("G=1"), new Event("I=0")), compute);
+    // The order of the evidence does not change the signature
+    DiscreteFactor cached = bayesianNetwork.getPosterior("VE", Sets.newHashSet("D"),
+        Lists.newArrayList(new Event("I=0"), new Event("G=1")), compute);
+    Assertions.assertEquals(1, computed[0]);
+    Assertions.assertEquals(f, cached);
+    Assertions.assertEquals(1, bayesianNetwork.getPosteriorCacheStats().hitCount());
+    Assertions.assertEquals(1, bayesianNetwork.getPosteriorCacheStats().missCount());
+
+    // Other engines and outcomes are cached apart
+    bayesianNetwork.getPosterior("JT", Sets.newHashSet("D"),
+        Lists.newArrayList(new Event("G=1"), new Event("I=0")), compute);
+    bayesianNetwork.getPosterior("VE", Sets.newHashSet("D"),
+        Lists.newArrayList(new Event("G=0"), new Event("I=0")), compute);
+    Assertions.assertEquals(3, computed[0]);
+
+    // L is not an ancestor of D, G or I
+    bayesianNetwork.addNode(l);
+    bayesianNetwork.addEdge(i, l);
+    bayesianNetwork.getPosterior("VE", Sets.newHashSet("D"),
+        Lists.newArrayList(new Event("G=1"), new Event("I=0")), compute);
+    Assertions.assertEquals(3, computed[0]);
+
+    // C is an ancestor of D
+    bayesianNetwork.addNode(c);
+    Assertions.assertEquals(0, bayesianNetwork.getPosteriorCacheSize());
+    bayesianNetwork.getPosterior("VE", Sets.newHashSet("D"),
+        Lists.newArrayList(new Event("G=1"), new Event("I=0")), compute);
+    Assertions.assertEquals(4, computed[0]);
+    Assertions.assertEquals(0, bayesianNetwork.getPosteriorCacheStats().evictionCount());
+  }
+
+  @Test void testSnapshot() {
+    bayesianNetwork.addEdge(i, g);
+    BayesianNetwork.Snapshot snapshot = bayesianNetwork.getSnapshot();
+    Assertions.assertEquals(bayesianNetwork.getRevision(), snapshot.getRevision());
+    Assertions.assertEquals(2, snapshot.getCPDs().size());
+
+    // A snapshot keeps the network as it was when it was taken
+    bayesianNetwork.addEdge(g, d);
+    Assertions.assertNotEquals(bayesianNetwork.getRevision(), snapshot.getRevision());
+    Assertions.assertEquals(2, snapshot.getCPDs().size());
+    Assertions.assertEquals(1, snapshot.getMoralStructure().edges().size());
+    Assertions.assertEquals(3, bayesianNetwork.getSnapshot().getCPDs().size());
+    Assertions.assertEquals(bayesianNetwork.getRevision(),
+        bayesianNetwork.getSnapshot().getRevision());
+  }
+
+  @Test void testSetPrecision() {
+    ConditionalProbabilityDistribution difficulty = new ConditionalProbabilityDistribution(
+        "D", 2, new double[][]{{0.6}, {0.4}});
+    ConditionalProbabilityDistribution grade = new ConditionalProbabilityDistribution(
+        "G", 2, Lists.newArrayList("D"), Lists.newArrayList(2),
+        new double[][]{{0.7, 0.2}, {0.3, 0.8}});
+    BayesianNetwork network = new BayesianNetwork();
+    network.addNode(difficulty);
+
+    network.setPrecision(ConditionalProbabilityDistribution.Precision.FLOAT);
+    Assertions.assertEquals(ConditionalProbabilityDistribution.Precision.FLOAT,
+        network.getNodeCPD("D").getPrecision());
+
+    // Distributions added later are rounded too
+    network.addEdge(difficulty, grade);
+    ConditionalProbabilityDistribution stored = network.getNodeCPD("G");
+    Assertions.assertEquals(ConditionalProbabilityDistribution.Precision.FLOAT,
+        stored.getPrecision());
+    Assertions.assertArrayEquals(grade.getTable(), stored.getTable(), 10e-7);
+
+    // Adding an unchanged distribution again does not drop posteriors of D
+    int[] computed = {0};
+    Supplier<DiscreteFactor> compute = () -> {
+      ++computed[0];
+      return difficulty.toDiscreteFactor();
+    };
+    network.getPosterior("VE", Sets.newHashSet("D"), Lists.newArrayList(), compute);
+    network.addEdge(difficulty, grade);
+    network.getPosterior("VE", Sets.newHashSet("D"), Lists.newArrayList(), compute);
+    Assertions.assertEquals(1, computed[0]);
+  }
+
+  @Test void testPosteriorCacheLimits() {
+    Supplier<DiscreteFactor> compute = () -> new DiscreteFactor(Lists.newArrayList("D"),
+        Lists.newArrayList(2), new double[]{0.4, 0.6});
+
+    bayesianNetwork.setPosteriorCacheLimits(2, 1 << 20);
+    for(String outcome : new String[]{"0", "1", "0", "2"}) {
+      bayesianNetwork.getPosterior("VE", Sets.newHashSet("D"),
+          Lists.newArrayList(new Event("G=" + outcome)), compute);
+    }
+    // G=1 was used least recently
+    Assertions.assertEquals(2, bayesianNetwork.getPosteriorCacheSize());
+    Assertions.assertEquals(1, bayesianNetwork.getPosteriorCacheStats().evictionCount());
+    Assertions.assertEquals(1, bayesianNetwork.getPosteriorCacheStats().hitCount());
+
+    // A table larger than the byte limit is never kept
+    bayesianNetwork.setPosteriorCacheLimits(2, 8);
+    bayesianNetwork.getPosterior("VE", Sets.newHashSet("D"), Lists.newArrayList(), compute);
+    Assertions.assertEquals(0, bayesianNetwork.getPosteriorCacheSize());
+
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> bayesianNetwork.setPosteriorCacheLimits(-1, 8));
+  }
 }
@@ -0,0 +1,119 @@
+package models;
+
+import com.google.common.collect.Lists;
+import factors.discrete.ConditionalProbabilityDistribution;
+import inference.exact.VariableElimination;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Test class for NetworkFormat
+ *
+ * @version 1.0.0
+ *
+ * @author Sean McMillan
+ */
+class NetworkFormatTest {
+  BayesianNetwork bn;
+
+  @BeforeEach void setUp() {
+    ConditionalProbabilityDistribution burglary = new ConditionalProbabilityDistribution(
+        "B", 2, new double[][]{{0.999}, {0.001}}
+    );
+    ConditionalProbabilityDistribution earthquake = new ConditionalProbabilityDistribution(
+        "E", 2, new double[][]{{0.998}, {0.002}}
+    );
+    ConditionalProbabilityDistribution alarm = new ConditionalProbabilityDistribution(
+        "A", 2,
+        Lists.newArrayList("B", "E"),
+        Lists.newArrayList(2, 2),
+        new double[][] { { 0.999, 0.71, 0.06, 0.05 },
+            { 0.001, 0.29, 0.94, 0.95 } }
+    );
+    ConditionalProbabilityDistribution johnCalls = new ConditionalProbabilityDistribution(
+        "J", 2,
+        Lists.newArrayList("A"),
+        Lists.newArrayList(2),
+        new double[][]{
+            {0.95, 0.10},
+            {0.05, 0.90}
+        }
+    );
+    ConditionalProbabilityDistribution weather = new ConditionalProbabilityDistribution(
+        "W", 3, new double[][]{{0.5}, {0.3}, {0.2}}
+    );
+
+    bn = new BayesianNetwork();
+    bn.addEdge(burglary, alarm);
+    bn.addEdge(earthquake, alarm);
+    bn.addEdge(alarm, johnCalls);
+    bn.addNode(weather);
+  }
+
+  @Test void testRoundTrip() throws IOException {
+    Path path = Files.createTempFile("network", ".jpgm");
+    try {
+      NetworkFormat.write(bn, path);
+      BayesianNetwork loaded = NetworkFormat.read(path);
+
+      Assertions.assertEquals(bn.getStructure(), loaded.getStructure());
+      for(ConditionalProbabilityDistribution cpd : bn.getCPDs()) {
+        Assertions.assertTrue(cpd.equals(loaded.getNodeCPD(cpd.getVariable())));
+      }
+
+      VariableElimination ve = new VariableElimination(bn);
+      VariableElimination loadedVe = new VariableElimination(loaded);
+      for(String query : Lists.newArrayList("B=1|J=1", "J=1|B=1", "W=2|J=1", "B=1")) {
+        Assertions.assertEquals(ve.query(query), loadedVe.query(query), 10e-12);
+      }
+
+      // The tables are read from the mapping until a distribution is written
+      for(ConditionalProbabilityDistribution cpd : loaded.getCPDs()) {
+        Assertions.assertTrue(cpd.isMapped());
+      }
+      ConditionalProbabilityDistribution alarm = loaded.getNodeCPD("A");
+      alarm.normalize(true);
+      Assertions.assertFalse(alarm.isMapped());
+      Assertions.assertTrue(alarm.equals(bn.getNodeCPD("A")));
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  @Test void testInvalidFile() throws IOException {
+    Path path = Files.createTempFile("network", ".jpgm");
+    try {
+      Files.write(path, new byte[]{'N', 'O', 'P', 'E', 1, 0, 0, 0});
+      Assertions.assertThrows(IOException.class, () -> NetworkFormat.read(path));
+
+      // A valid file cut off in the middle of its tables
+      NetworkFormat.write(bn, path);
+      byte[] bytes = Files.readAllBytes(path);
+      Files.write(path, Arrays.copyOf(bytes, bytes.length - 8));
+      Assertions.assertThrows(IOException.class, () -> NetworkFormat.read(path));
+
+      // X and Y are each other's parent
+      ByteBuffer cyclic = ByteBuffer.allocate(48 + 8 * Double.BYTES)
+          .order(ByteOrder.LITTLE_ENDIAN);
+      cyclic.putInt(NetworkFormat.MAGIC).putInt(NetworkFormat.VERSION).putInt(2);
+      cyclic.putInt(1).put((byte) 'X').putInt(2).putInt(1).putInt(1);
+      cyclic.putInt(1).put((byte) 'Y').putInt(2).putInt(1).putInt(0);
+      cyclic.position(48);
+      for(int i = 0;i < 8;++i) {
+        cyclic.putDouble(0.5);
+      }
+      Files.write(path, cyclic.array());
+      Assertions.assertThrows(IOException.class, () -> NetworkFormat.read(path));
+    } finally {
+      Files.delete(path);
+    }
+  }
+}
@@ -0,0 +1,48 @@
+package primitives;
+
+import com.google.common.collect.Lists;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class VariableRegistryTest {
+  @Test void testId() {
+    VariableRegistry.Pin a = VariableRegistry.pin("RegistryTestA");
+    VariableRegistry.Pin b = VariableRegistry.pin("RegistryTestB");
+
+    Assertions.assertEquals(a.id(), VariableRegistry.id("RegistryTestA"));
+    Assertions.assertEquals(a.id(), VariableRegistry.find("RegistryTestA"));
+    Assertions.assertEquals("RegistryTestA", VariableRegistry.name(a.id()));
+    Assertions.assertNotEquals(a.id(), b.id());
+    Assertions.assertSame(a, VariableRegistry.pin("RegistryTestA"));
+  }
+
+  @Test void testFindUnknown() {
+    Assertions.assertEquals(-1, VariableRegistry.find("RegistryTestUnknown"));
+  }
+
+  @Test void testRoundTrip() {
+    VariableRegistry.Pin[] pins =
+        VariableRegistry.pin(Lists.newArrayList("RegistryTestC", "RegistryTestD"));
+    int[] ids = VariableRegistry.ids(pins);
+
+    Assertions.assertArrayEquals(new String[]{"RegistryTestC", "RegistryTestD"},
+        VariableRegistry.names(ids));
+    Assertions.assertSame(pins[1], VariableRegistry.pin(ids)[1]);
+  }
+
+  @Test void testReclaim() throws InterruptedException {
+    VariableRegistry.Pin kept = VariableRegistry.pin("RegistryTestKept");
+    VariableRegistry.id("RegistryTestDropped");
+
+    // Once its pin is collected the unpinned name is dropped on the next
+    // registration, the pinned one stays
+    for(int i = 0;i < 100 && VariableRegistry.find("RegistryTestDropped") >= 0;++i) {
+      System.gc();
+      Thread.sleep(10);
+      VariableRegistry.id("RegistryTestProbe" + i);
+    }
+    Assertions.assertEquals(-1, VariableRegistry.find("RegistryTestDropped"));
+    Assertions.assertEquals(kept.id(), VariableRegistry.find("RegistryTestKept"));
+    Assertions.assertEquals("RegistryTestKept", VariableRegistry.name(kept.id()));
+  }
+}